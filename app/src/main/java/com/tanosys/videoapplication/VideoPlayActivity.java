@@ -20,35 +20,50 @@
 package com.tanosys.videoapplication;
 
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
-import android.os.Environment;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
+import android.widget.ImageView;
 import android.widget.SeekBar;
 
+import com.tanosys.videolibrary.AndroidMediaBackend;
+import com.tanosys.videolibrary.DataSource;
+import com.tanosys.videolibrary.MediaIndexCache;
+import com.tanosys.videolibrary.MediaIngest;
 import com.tanosys.videolibrary.MoviePlayer;
+import com.tanosys.videolibrary.ScrubPreviewCache;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Calendar;
 
 import static com.tanosys.videoapplication.R.id.seekBar;
 
-public class VideoPlayActivity extends AppCompatActivity implements SurfaceHolder.Callback, MoviePlayer.ProgressListener, MoviePlayer.MoviePlayerListener {
+public class VideoPlayActivity extends AppCompatActivity implements SurfaceHolder.Callback, MoviePlayer.ProgressListener, MoviePlayer.MoviePlayerListener, MoviePlayer.ScrubPreviewListener, MediaIngest.Listener, MoviePlayer.PrepareCallback {
     final private static String TAG = "VideoPlayActivity";
-    private String videoPath;
+    // played through its descriptor; the player's demuxers read it without a copy
+    private AssetFileDescriptor videoFile;
+    // copies videoFile when it is a stream rather than a file
+    private MediaIngest videoIngest;
+    private SurfaceHolder surfaceHolder;
+    // prepared off the main thread; becomes moviePlayer once onPrepared is called
+    private MoviePlayer preparingPlayer;
     MoviePlayer moviePlayer;
+    private MediaIndexCache mIndexCache;
+    private ScrubPreviewCache mPreviewCache;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mIndexCache = new MediaIndexCache(new File(getCacheDir(), "media-index"));
+        mPreviewCache = new ScrubPreviewCache();
+        registerComponentCallbacks(mPreviewCache);
         setContentView(R.layout.activity_video_play);
         findViewById(R.id.play_btn).setOnClickListener(new View.OnClickListener() {
             @Override
@@ -116,7 +131,7 @@ public class VideoPlayActivity extends AppCompatActivity implements SurfaceHolde
     @Override
     protected void onStart() {
         super.onStart();
-        if (videoPath == null)
+        if (videoFile == null)
             moveToGallery();
     }
 
@@ -130,8 +145,20 @@ public class VideoPlayActivity extends AppCompatActivity implements SurfaceHolde
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        unregisterComponentCallbacks(mPreviewCache);
+        if (videoIngest != null)
+            videoIngest.cancel();
+        if (preparingPlayer != null)
+            preparingPlayer.release();
         if (moviePlayer != null)
             moviePlayer.release();
+        if (videoFile != null) {
+            try {
+                videoFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     @Override
@@ -152,34 +179,20 @@ public class VideoPlayActivity extends AppCompatActivity implements SurfaceHolde
         }
     }
 
-    private void createFile() {
-        Calendar c = Calendar.getInstance();
-        String s = c.get(Calendar.YEAR)
-                + "_" + (c.get(Calendar.MONTH) + 1)
-                + "_" + c.get(Calendar.DAY_OF_MONTH)
-                + "_" + c.get(Calendar.HOUR_OF_DAY)
-                + "_" + c.get(Calendar.MINUTE)
-                + "_" + c.get(Calendar.SECOND)
-                + "_" + c.get(Calendar.MILLISECOND)
-                + ".mp4";
-        File folder = getCacheDir();
-        File file;
-        videoPath = folder + "/" + s;
-    }
-
     private void setVideoPath(Uri uri) throws IOException {
-
-        createFile();
-        InputStream is = getContentResolver().openInputStream(uri);
-        OutputStream output = new FileOutputStream(videoPath);
-        int DEFAULT_BUFFER_SIZE = 1024 * 4;
-        byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-        int size = -1;
-        while (-1 != (size = is.read(buffer))) {
-            output.write(buffer, 0, size);
+        AssetFileDescriptor file = getContentResolver().openAssetFileDescriptor(uri, "r");
+        if (file == null)
+            throw new IOException("can't open " + uri);
+        if (videoFile != null)
+            videoFile.close();
+        videoFile = file;
+        // the extractor can't read a pipe; copy it and play it while it arrives
+        if (file.getParcelFileDescriptor().getStatSize() < 0) {
+            videoIngest = new MediaIngest(file.createInputStream(), new File(getCacheDir(), "ingest.mp4"),
+                    file.getDeclaredLength());
+            videoIngest.setListener(this);
+            videoIngest.start();
         }
-        is.close();
-        output.close();
     }
 
     protected void moveToGallery() {
@@ -190,15 +203,48 @@ public class VideoPlayActivity extends AppCompatActivity implements SurfaceHolde
 
     @Override
     public void surfaceCreated(SurfaceHolder surfaceHolder) {
-        try {
-            File folder = Environment.getExternalStorageDirectory();
-            File file = new File(videoPath);
-            moviePlayer = new MoviePlayer(file, surfaceHolder.getSurface());
-            moviePlayer.setProgressListener(VideoPlayActivity.this);
-            moviePlayer.setListener(this);
-        } catch (IOException e) {
-            e.printStackTrace();
+        this.surfaceHolder = surfaceHolder;
+        openPlayer();
+    }
+
+    private void openPlayer() {
+        if (surfaceHolder == null || moviePlayer != null || preparingPlayer != null)
+            return;
+        DataSource source;
+        if (videoIngest == null) {
+            source = DataSource.fromFileDescriptor(videoFile.getFileDescriptor(),
+                    videoFile.getStartOffset(), videoFile.getLength());
+        } else if (videoIngest.isComplete()) {
+            source = DataSource.fromFile(videoIngest.getFile());
+        } else if (videoIngest.isPlayable() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            source = videoIngest.getDataSource();
+        } else {
+            // opened from onPlayable or onComplete
+            return;
         }
+        preparingPlayer = MoviePlayer.prepareAsync(source, surfaceHolder.getSurface(), new AndroidMediaBackend(),
+                mIndexCache, null, this);
+    }
+
+    @Override
+    public void onPrepared(MoviePlayer player) {
+        // released by surfaceDestroyed after this was posted
+        if (player != preparingPlayer)
+            return;
+        preparingPlayer = null;
+        moviePlayer = player;
+        moviePlayer.setProgressListener(VideoPlayActivity.this);
+        moviePlayer.setListener(this);
+        moviePlayer.setScrubPreviewListener(this);
+        moviePlayer.setScrubPreviewCache(mPreviewCache);
+        Log.d(TAG, "prepared in " + player.getPrepareLatencyUs() / 1000 + "ms");
+    }
+
+    @Override
+    public void onError(MoviePlayer player, IOException e) {
+        if (player == preparingPlayer)
+            preparingPlayer = null;
+        Log.w(TAG, "failed to open the video", e);
     }
 
     @Override
@@ -208,11 +254,32 @@ public class VideoPlayActivity extends AppCompatActivity implements SurfaceHolde
 
     @Override
     public void surfaceDestroyed(SurfaceHolder surfaceHolder) {
+        this.surfaceHolder = null;
+        if (preparingPlayer != null) {
+            preparingPlayer.release();
+            preparingPlayer = null;
+        }
         if (moviePlayer != null) {
             moviePlayer.release();
+            moviePlayer = null;
         }
     }
 
+    @Override
+    public void onPlayable(MediaIngest ingest) {
+        openPlayer();
+    }
+
+    @Override
+    public void onComplete(MediaIngest ingest) {
+        openPlayer();
+    }
+
+    @Override
+    public void onError(MediaIngest ingest, IOException e) {
+        Log.w(TAG, "failed to copy the video", e);
+    }
+
     @Override
     public void onProgressChange(float progress) {
         ((SeekBar) findViewById(seekBar)).setProgress((int) (progress * 100.0f));
@@ -242,5 +309,18 @@ public class VideoPlayActivity extends AppCompatActivity implements SurfaceHolde
     @Override
     public void onEndSeeking(MoviePlayer moviePlayer) {
         Log.d(TAG, "movie player onEndSeeking");
+        findViewById(R.id.scrub_preview).setVisibility(View.GONE);
+    }
+
+    @Override
+    public void onScrubPreview(MoviePlayer moviePlayer, Bitmap preview, long presentationTimeUs) {
+        ImageView previewView = (ImageView) findViewById(R.id.scrub_preview);
+        previewView.setImageBitmap(preview);
+        previewView.setVisibility(View.VISIBLE);
+    }
+
+    @Override
+    public void onSeekFrameRendered(MoviePlayer moviePlayer, long presentationTimeUs) {
+        findViewById(R.id.scrub_preview).setVisibility(View.GONE);
     }
 }
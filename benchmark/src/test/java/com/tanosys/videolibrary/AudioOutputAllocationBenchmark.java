@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.media.MediaCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link AudioDecoder#output} per decoded PCM buffer. Each invocation pushes
+ * {@link #FRAMES} buffers through the synthetic audio codec and into the sink; run with
+ * {@code -prof gc} to see allocation per buffer. AudioOutputAllocationTest checks that
+ * there is none.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AudioOutputAllocationBenchmark {
+    static final int FRAMES = 256;
+    private static final long TIMEOUT_USEC = 1000000;
+
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    private MoviePlayer mPlayer;
+    private AudioDecoder mDecoder;
+    private Codec mCodec;
+    private int mPacketSize;
+    private long mPacketDurationUs;
+    private long mTimeUs = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticMediaBackend backend = BenchmarkPlayers.newBackend();
+        backend.setAudioDecodeLatencyUs(0);
+        mPacketSize = backend.getAudioPacketSize();
+        mPacketDurationUs = backend.getAudioFramesPerPacket() * 1000000L / backend.getSampleRate();
+        mPlayer = BenchmarkPlayers.newPlayer(backend);
+        mPlayer.mPlayRate = BenchmarkPlayers.UNPACED_RATE;
+        mDecoder = mPlayer.getAudioDecoder();
+        mCodec = mDecoder.mMediaCodec;
+        mCodec.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mPlayer.release();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void output() {
+        for (int i = 0; i < FRAMES; i++) {
+            int input = mCodec.dequeueInputBuffer(TIMEOUT_USEC);
+            mCodec.queueInputBuffer(input, 0, mPacketSize, mTimeUs, 0);
+            mTimeUs += mPacketDurationUs;
+            int output;
+            do {
+                output = mCodec.dequeueOutputBuffer(mInfo, TIMEOUT_USEC);
+            } while (output < 0);
+            mDecoder.output(output, mInfo);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Audio/video offset during playback, as reported by
+ * {@link MoviePlayer#getAudioVideoOffsetUs()}.
+ * <p>
+ * The player plays in real time with video slaved to the synthetic audio sink. Each
+ * invocation waits {@link #SAMPLE_INTERVAL_MS} and samples the offset; the secondary
+ * results are the mean and the largest absolute offset seen per iteration, and the frames
+ * dropped and sync samples skipped to in it. Video decoding slower than the play rate shows
+ * up as video falling behind, unless late frames are dropped.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AvSyncBenchmark {
+    static final long SAMPLE_INTERVAL_MS = 10;
+
+    @Param({"0", "40000"})
+    public long videoDecodeLatencyUs;
+
+    @Param({"1.0", "2.0"})
+    public double rate;
+
+    @Param({"true", "false"})
+    public boolean dropLateFrames;
+
+    private MoviePlayer mPlayer;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Offsets {
+        public long meanOffsetUs;
+        public long maxAbsOffsetUs;
+        public long droppedFrames;
+        public long syncSkips;
+        private long mTotalUs;
+        private long mSamples;
+        private long mDroppedFramesBefore;
+        private long mSyncSkipsBefore;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            meanOffsetUs = 0;
+            maxAbsOffsetUs = 0;
+            droppedFrames = 0;
+            syncSkips = 0;
+            mTotalUs = 0;
+            mSamples = 0;
+        }
+
+        void add(MoviePlayer player) {
+            if (mSamples == 0) {
+                mDroppedFramesBefore = player.getDroppedFrames();
+                mSyncSkipsBefore = player.getSyncSkips();
+            }
+            droppedFrames = player.getDroppedFrames() - mDroppedFramesBefore;
+            syncSkips = player.getSyncSkips() - mSyncSkipsBefore;
+            long offsetUs = player.getAudioVideoOffsetUs();
+            mTotalUs += offsetUs;
+            mSamples++;
+            meanOffsetUs = mTotalUs / mSamples;
+            maxAbsOffsetUs = Math.max(maxAbsOffsetUs, Math.abs(offsetUs));
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticMediaBackend backend = BenchmarkPlayers.newBackend();
+        backend.setVideoDecodeLatencyUs(videoDecodeLatencyUs);
+        backend.setKeyFrameDecodeLatencyUs(videoDecodeLatencyUs * 2);
+        mPlayer = BenchmarkPlayers.newPlayer(backend);
+        mPlayer.setRate(rate);
+        mPlayer.setDropLateFrames(dropLateFrames);
+        mPlayer.play();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mPlayer.stop();
+        mPlayer.release();
+    }
+
+    @Benchmark
+    public void sample(Offsets offsets) throws InterruptedException {
+        Thread.sleep(SAMPLE_INTERVAL_MS);
+        offsets.add(mPlayer);
+    }
+}
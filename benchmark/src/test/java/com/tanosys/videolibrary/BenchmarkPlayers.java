@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Creates players over {@link SyntheticMediaBackend} for the benchmarks.
+ */
+final class BenchmarkPlayers {
+    /**
+     * Play rate at which {@link MediaDecoder#waitForClock} never waits, so the decode loop
+     * runs as fast as the decoder allows.
+     */
+    static final double UNPACED_RATE = 1000000.0;
+
+    private BenchmarkPlayers() {
+    }
+
+    static SyntheticMediaBackend newBackend() {
+        SyntheticMediaBackend backend = new SyntheticMediaBackend();
+        backend.setDurationUs(60000000);
+        return backend;
+    }
+
+    static MoviePlayer newPlayer(SyntheticMediaBackend backend) throws IOException {
+        return new MoviePlayer(new File("synthetic.mp4"), null, backend);
+    }
+
+    static void awaitState(MediaDecoder decoder, int state, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (decoder.getState() != state) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("decoder stuck in state " + decoder.getState() + ", expected " + state);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from constructing a {@link MoviePlayer} to its first frame when players are opened
+ * and released one after another, the way a feed of short clips does, with and without a
+ * {@link CodecPool}. The create latency stands in for allocating a hardware codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecPoolBenchmark {
+
+    @Param({"true", "false"})
+    public boolean pooled;
+
+    @Param({"0", "30000"})
+    public long codecCreateLatencyUs;
+
+    private SyntheticMediaBackend mBackend;
+    private CodecPool mPool;
+    private MoviePlayer mPlayer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mBackend = BenchmarkPlayers.newBackend();
+        mBackend.setCodecCreateLatencyUs(codecCreateLatencyUs);
+        mBackend.setCodecConfigureLatencyUs(5000);
+        // like a device that runs out of decoders, so the pool has to evict
+        mBackend.setMaxCodecInstances(3);
+        mPool = pooled ? new CodecPool(2) : null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (mPool != null)
+            mPool.clear();
+    }
+
+    @TearDown(Level.Invocation)
+    public void releasePlayer() {
+        mPlayer.stop();
+        mPlayer.release();
+        mPlayer = null;
+    }
+
+    @Benchmark
+    public MoviePlayer openToFirstFrame() throws IOException, InterruptedException {
+        mPlayer = new MoviePlayer(new File("synthetic.mp4"), null, mBackend, null, mPool);
+        mPlayer.play();
+        while (mPlayer.getResumeLatencyUs() < 0) {
+            Thread.sleep(0, 100000);
+        }
+        return mPlayer;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls play/pause, seeking and rate changes on one player from three threads at once, as
+ * a UI thread, a seek bar and a remote control might, while the decoders run.
+ * <p>
+ * The scores are control calls per millisecond. ControlStressTest checks that the player
+ * comes to rest afterwards.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ControlStressBenchmark {
+    private MoviePlayer mPlayer;
+
+    @State(Scope.Thread)
+    public static class Caller {
+        final Random mRandom = new Random();
+        boolean mFast;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mPlayer = BenchmarkPlayers.newPlayer(BenchmarkPlayers.newBackend());
+        mPlayer.setTrickPlayRate(4.0);
+        mPlayer.play();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mPlayer.stop();
+        mPlayer.release();
+    }
+
+    @Benchmark
+    @Group("control")
+    @GroupThreads(1)
+    public void playPause(Caller caller) throws InterruptedException {
+        if (caller.mRandom.nextBoolean())
+            mPlayer.play();
+        else
+            mPlayer.pause();
+        Thread.sleep(0, caller.mRandom.nextInt(500000));
+    }
+
+    @Benchmark
+    @Group("control")
+    @GroupThreads(1)
+    public void seek(Caller caller) throws InterruptedException {
+        mPlayer.startSeek();
+        for (int i = 0; i < 3; i++) {
+            mPlayer.seekTo(caller.mRandom.nextFloat());
+            Thread.sleep(0, caller.mRandom.nextInt(500000));
+        }
+        mPlayer.endSeek();
+    }
+
+    @Benchmark
+    @Group("control")
+    @GroupThreads(1)
+    public void rate(Caller caller) throws InterruptedException {
+        caller.mFast = !caller.mFast;
+        mPlayer.setRate(caller.mFast ? 8.0 : 1.0);
+        Thread.sleep(0, caller.mRandom.nextInt(500000));
+    }
+}
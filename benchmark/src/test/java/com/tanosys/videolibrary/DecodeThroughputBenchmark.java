@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.media.MediaExtractor;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sustained decode throughput through {@link MediaDecoder#step()}, polling the codec or
+ * driven by its callbacks.
+ * <p>
+ * One operation is one iteration of the decode loop; the {@code frames} counter reports
+ * decoded frames per second. Presentation pacing is switched off with a huge play rate,
+ * so the numbers are bounded by the loop itself and the synthetic decode latency.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeThroughputBenchmark {
+
+    @Param({"video", "audio"})
+    public String track;
+
+    @Param({"0", "2000"})
+    public long decodeLatencyUs;
+
+    @Param({"polling", "async"})
+    public String decodeMode;
+
+    private MoviePlayer mPlayer;
+    private MediaDecoder mDecoder;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Frames {
+        public long frames;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticMediaBackend backend = BenchmarkPlayers.newBackend();
+        backend.setVideoDecodeLatencyUs(decodeLatencyUs);
+        backend.setKeyFrameDecodeLatencyUs(decodeLatencyUs * 2);
+        backend.setAudioDecodeLatencyUs(decodeLatencyUs / 4);
+        mPlayer = BenchmarkPlayers.newPlayer(backend);
+        mPlayer.mPlayRate = BenchmarkPlayers.UNPACED_RATE;
+        mDecoder = "video".equals(track) ? mPlayer.getVideoDecoder() : mPlayer.getAudioDecoder();
+        if ("async".equals(decodeMode)) {
+            mPlayer.setDecodeMode(MoviePlayer.DECODE_MODE_ASYNC);
+            mDecoder.prepare();
+        }
+        mDecoder.mEvents.clear();
+        mDecoder.mMediaCodec.start();
+        mDecoder.setState(MediaDecoder.STATE_PLAYING);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mDecoder.setState(MediaDecoder.STATE_STOPPED);
+        mPlayer.release();
+    }
+
+    @Benchmark
+    public void decodeLoop(Frames counter) {
+        long lastPresentationTimeUs = mDecoder.mBufferInfo.presentationTimeUs;
+        mDecoder.step();
+        if (mDecoder.mBufferInfo.presentationTimeUs != lastPresentationTimeUs)
+            counter.frames++;
+        if (mDecoder.mOutputDone) {
+            // loop the clip without tearing the codec down
+            mDecoder.getExtractor().seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            mDecoder.mMediaCodec.flush();
+            if (mDecoder.mUseCallback) {
+                // a flushed asynchronous codec only resumes callbacks after start()
+                mDecoder.mEvents.clear();
+                mDecoder.mMediaCodec.start();
+            }
+            mDecoder.mInputDone = mDecoder.mOutputDone = false;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a picked video takes before a player can open it.
+ * <p>
+ * A {@link #fileMegabytes} MP4 file is copied from a stream that delivers
+ * {@link #sourceMegabytesPerSecond} (0 reads the file directly).
+ * {@link #byteArrayCopy} is a copy through a 4KB array, after which the player can open
+ * the file; {@link #ingestUntilPlayable} waits for a {@link MediaIngest} to have the moov
+ * box and first GOP, and {@link #ingestUntilComplete} for the whole copy. With the moov box
+ * at the end, the file is only playable once complete.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestBenchmark {
+
+    @Param({"0", "200"})
+    public int sourceMegabytesPerSecond;
+
+    @Param({"true", "false"})
+    public boolean moovFirst;
+
+    @Param({"64"})
+    public int fileMegabytes;
+
+    private File mSource;
+    private File mTarget;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mSource = File.createTempFile("ingest-source", ".mp4");
+        mTarget = File.createTempFile("ingest-target", ".mp4");
+        writeMp4(mSource, fileMegabytes * 1024 * 1024, moovFirst);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mSource.delete();
+        mTarget.delete();
+    }
+
+    @Benchmark
+    public long byteArrayCopy() throws IOException {
+        InputStream in = openSource();
+        OutputStream out = new FileOutputStream(mTarget);
+        byte[] buffer = new byte[4 * 1024];
+        long total = 0;
+        int size;
+        while ((size = in.read(buffer)) != -1) {
+            out.write(buffer, 0, size);
+            total += size;
+        }
+        in.close();
+        out.close();
+        return total;
+    }
+
+    @Benchmark
+    public long ingestUntilPlayable() throws IOException, InterruptedException {
+        // the cancelled copy may still be winding down; give the next one a file of its own
+        File target = File.createTempFile("ingest-target", ".mp4");
+        MediaIngest ingest = new MediaIngest(openSource(), target, mSource.length());
+        ingest.start();
+        ingest.awaitPlayable(60000);
+        long available = ingest.getBytesAvailable();
+        ingest.cancel();
+        target.delete();
+        return available;
+    }
+
+    @Benchmark
+    public long ingestUntilComplete() throws IOException, InterruptedException {
+        MediaIngest ingest = new MediaIngest(openSource(), mTarget, mSource.length());
+        ingest.start();
+        while (!ingest.isComplete()) {
+            ingest.awaitBytes(Long.MAX_VALUE);
+        }
+        return ingest.getLength();
+    }
+
+    private InputStream openSource() throws IOException {
+        FileInputStream in = new FileInputStream(mSource);
+        return sourceMegabytesPerSecond > 0 ? new ThrottledInputStream(in, sourceMegabytesPerSecond) : in;
+    }
+
+    /**
+     * Delivers at most the given rate, like a slow content provider.
+     */
+    private static class ThrottledInputStream extends FilterInputStream {
+        private static final int MAX_READ = 64 * 1024;
+        private final double mBytesPerNs;
+        private final long mStartNs = System.nanoTime();
+        private long mRead = 0;
+
+        ThrottledInputStream(InputStream in, int megabytesPerSecond) {
+            super(in);
+            mBytesPerNs = megabytesPerSecond * 1024.0 * 1024.0 / 1e9;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long dueNs = mStartNs + (long) (mRead / mBytesPerNs);
+            long waitNs = dueNs - System.nanoTime();
+            if (waitNs > 0) {
+                try {
+                    Thread.sleep(waitNs / 1000000, (int) (waitNs % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new java.io.InterruptedIOException();
+                }
+            }
+            int read = super.read(b, off, Math.min(len, MAX_READ));
+            if (read > 0)
+                mRead += read;
+            return read;
+        }
+    }
+
+    /**
+     * Writes an MP4 file of about {@code size} bytes: 30fps video with a keyframe every
+     * second and one audio sample per frame, interleaved one chunk each.
+     */
+    static void writeMp4(File file, long size, boolean moovFirst) throws IOException {
+        int frames = 1800;
+        int audioSize = 1024;
+        int videoSize = (int) (size / frames - audioSize);
+        int gop = 30;
+
+        ByteBuffer ftyp = box("ftyp", ByteBuffer.wrap("isom\0\0\0\0isomavc1".getBytes("US-ASCII")));
+        // chunk offsets depend on where the moov box ends up; its size doesn't
+        ByteBuffer moov = moov(frames, videoSize, audioSize, gop, 0);
+        long mdatStart = ftyp.remaining() + (moovFirst ? moov.remaining() : 0);
+        moov = moov(frames, videoSize, audioSize, gop, mdatStart + 8);
+        long mdatSize = 8 + (long) frames * (videoSize + audioSize);
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.getChannel().write(ftyp);
+            if (moovFirst)
+                out.getChannel().write(moov);
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt((int) mdatSize).put("mdat".getBytes("US-ASCII"));
+            header.flip();
+            out.getChannel().write(header);
+            byte[] payload = new byte[videoSize + audioSize];
+            for (int i = 0; i < frames; i++) {
+                out.write(payload);
+            }
+            if (!moovFirst)
+                out.getChannel().write(moov);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static ByteBuffer moov(int frames, int videoSize, int audioSize, int gop, long dataStart)
+            throws IOException {
+        long[] videoOffsets = new long[frames];
+        long[] audioOffsets = new long[frames];
+        for (int i = 0; i < frames; i++) {
+            videoOffsets[i] = dataStart + (long) i * (videoSize + audioSize);
+            audioOffsets[i] = videoOffsets[i] + videoSize;
+        }
+        int[] syncSamples = new int[(frames + gop - 1) / gop];
+        for (int i = 0; i < syncSamples.length; i++) {
+            syncSamples[i] = i * gop + 1;
+        }
+        return box("moov",
+                trak("vide", 30, 1, frames, videoSize, syncSamples, videoOffsets),
+                trak("soun", 44100, 1470, frames, audioSize, null, audioOffsets));
+    }
+
+    private static ByteBuffer trak(String handler, int timescale, int delta, int samples, int sampleSize,
+                                   int[] syncSamples, long[] chunkOffsets) throws IOException {
+        ByteBuffer mdhd = ByteBuffer.allocate(24);
+        mdhd.putInt(0).putInt(0).putInt(0).putInt(timescale).putInt(samples * delta).putInt(0);
+        mdhd.flip();
+        ByteBuffer hdlr = ByteBuffer.allocate(25);
+        hdlr.putInt(0).putInt(0).put(handler.getBytes("US-ASCII"));
+        hdlr.position(hdlr.capacity());
+        hdlr.flip();
+        ByteBuffer stts = table(new int[]{1, samples, delta});
+        ByteBuffer stsz = table(new int[]{sampleSize, samples});
+        ByteBuffer stsc = table(new int[]{1, 1, 1, 1});
+        int[] offsets = new int[chunkOffsets.length + 1];
+        offsets[0] = chunkOffsets.length;
+        for (int i = 0; i < chunkOffsets.length; i++) {
+            offsets[i + 1] = (int) chunkOffsets[i];
+        }
+        ByteBuffer stbl;
+        if (syncSamples != null) {
+            int[] stss = new int[syncSamples.length + 1];
+            stss[0] = syncSamples.length;
+            System.arraycopy(syncSamples, 0, stss, 1, syncSamples.length);
+            stbl = box("stbl", box("stts", stts), box("stss", table(stss)), box("stsz", stsz),
+                    box("stsc", stsc), box("stco", table(offsets)));
+        } else {
+            stbl = box("stbl", box("stts", stts), box("stsz", stsz), box("stsc", stsc),
+                    box("stco", table(offsets)));
+        }
+        return box("trak", box("mdia", box("mdhd", mdhd), box("hdlr", hdlr), box("minf", stbl)));
+    }
+
+    /**
+     * @return version and flags followed by the values
+     */
+    private static ByteBuffer table(int[] values) {
+        ByteBuffer table = ByteBuffer.allocate(4 + values.length * 4);
+        table.putInt(0);
+        for (int value : values) {
+            table.putInt(value);
+        }
+        table.flip();
+        return table;
+    }
+
+    private static ByteBuffer box(String type, ByteBuffer... children) throws IOException {
+        int size = 8;
+        for (ByteBuffer child : children) {
+            size += child.remaining();
+        }
+        ByteBuffer box = ByteBuffer.allocate(size);
+        box.putInt(size).put(type.getBytes("US-ASCII"));
+        for (ByteBuffer child : children) {
+            box.put(child.duplicate());
+        }
+        box.flip();
+        return box;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loops a one second clip, the way a kiosk would, with and without gapless looping.
+ * <p>
+ * Each invocation watches one clip's worth of playback, so it crosses one loop boundary.
+ * The secondary results are, over an iteration, the longest stretch with no new video
+ * frame and the frames dropped as late.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopBenchmark {
+    static final long CLIP_DURATION_US = 1000000;
+
+    @Param({"true", "false"})
+    public boolean gaplessLooping;
+
+    private MoviePlayer mPlayer;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Glitches {
+        public long maxRenderGapMs;
+        public long droppedFrames;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            maxRenderGapMs = 0;
+            droppedFrames = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        SyntheticMediaBackend backend = new SyntheticMediaBackend();
+        backend.setDurationUs(CLIP_DURATION_US);
+        mPlayer = BenchmarkPlayers.newPlayer(backend);
+        mPlayer.setLooping(true);
+        mPlayer.setGaplessLooping(gaplessLooping);
+        mPlayer.play();
+        BenchmarkPlayers.awaitState(mPlayer.getVideoDecoder(), MediaDecoder.STATE_PLAYING, 1000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mPlayer.stop();
+        mPlayer.release();
+    }
+
+    @Benchmark
+    public void loop(Glitches glitches) throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + CLIP_DURATION_US * 1000;
+        long frames = mPlayer.getRenderedFrames();
+        long dropped = mPlayer.getDroppedFrames();
+        long frameAt = start;
+        for (long now = start; now < end; now = System.nanoTime()) {
+            Thread.sleep(1);
+            long f = mPlayer.getRenderedFrames();
+            if (f != frames) {
+                frames = f;
+                frameAt = now;
+            }
+            glitches.maxRenderGapMs = Math.max(glitches.maxRenderGapMs, (now - frameAt) / 1000000);
+        }
+        glitches.droppedFrames += mPlayer.getDroppedFrames() - dropped;
+    }
+}
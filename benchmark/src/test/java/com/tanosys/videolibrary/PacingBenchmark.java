@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pacing jitter of {@link MediaDecoder#waitForClock(long)} against a clock running on the
+ * system clock, as it does for files without audio.
+ * <p>
+ * Each call waits for the next frame on an ideal grid, so a sample is the frame interval
+ * divided by the rate plus the change in lateness. The spread between the percentiles is
+ * the jitter a viewer sees.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PacingBenchmark {
+
+    @Param({"33333", "16667"})
+    public long frameIntervalUs;
+
+    @Param({"1.0", "2.0"})
+    public double rate;
+
+    private MoviePlayer mPlayer;
+    private MediaDecoder mDecoder;
+    private PlaybackClock mClock;
+    private long mPresentationTimeUs;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        mPlayer = BenchmarkPlayers.newPlayer(BenchmarkPlayers.newBackend());
+        mDecoder = mPlayer.getVideoDecoder();
+        mClock = mPlayer.getClock();
+        mPresentationTimeUs = 0;
+        mClock.start(0, rate);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        mPlayer.release();
+    }
+
+    /**
+     * @return how late the frame was released, in microseconds of media time
+     */
+    @Benchmark
+    public long paceFrame() {
+        mPresentationTimeUs += frameIntervalUs;
+        mDecoder.waitForClock(mPresentationTimeUs);
+        return mClock.getPositionUs() - mPresentationTimeUs;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from opening a {@link MoviePlayer} until it is prepared, and until its first frame
+ * once play() is called right away, with the constructor preparing the tracks one after the
+ * other on the calling thread or {@link MoviePlayer#prepareAsync} preparing them in
+ * parallel. The create latency stands in for allocating a hardware codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrepareBenchmark {
+    private static final long TIMEOUT_MS = 5000;
+
+    @Param({"false", "true"})
+    public boolean async;
+
+    @Param({"0", "30000"})
+    public long codecCreateLatencyUs;
+
+    private SyntheticMediaBackend mBackend;
+    private MoviePlayer mPlayer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mBackend = BenchmarkPlayers.newBackend();
+        mBackend.setCodecCreateLatencyUs(codecCreateLatencyUs);
+        mBackend.setCodecConfigureLatencyUs(5000);
+    }
+
+    @TearDown(Level.Invocation)
+    public void releasePlayer() {
+        mPlayer.stop();
+        mPlayer.release();
+        mPlayer = null;
+    }
+
+    @Benchmark
+    public MoviePlayer openToPrepared() throws IOException, InterruptedException {
+        open();
+        return mPlayer;
+    }
+
+    @Benchmark
+    public MoviePlayer openToFirstFrame() throws IOException, InterruptedException {
+        open();
+        mPlayer.play();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mPlayer.getFirstFrameLatencyUs() < 0) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("no frame shown");
+            Thread.sleep(0, 100000);
+        }
+        return mPlayer;
+    }
+
+    private void open() throws IOException, InterruptedException {
+        DataSource source = DataSource.fromFile(new File("synthetic.mp4"));
+        if (!async) {
+            mPlayer = new MoviePlayer(source, null, mBackend, null, null);
+            return;
+        }
+        mPlayer = MoviePlayer.prepareAsync(source, null, mBackend, null, null, null);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!mPlayer.isPrepared()) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("not prepared");
+            Thread.sleep(0, 100000);
+        }
+    }
+}
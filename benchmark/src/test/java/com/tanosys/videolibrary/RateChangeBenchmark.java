@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Taps the play rate between 1x and 2x while playing, as a user on a speed button would.
+ * <p>
+ * Each invocation changes the rate and watches playback for {@link #TAP_INTERVAL_MS}. The
+ * secondary results are, over an iteration, the longest stretch with no new video frame
+ * and the largest jump of the clock away from where the rate would take it. A trick play
+ * threshold of 1.5 makes every tap switch trick play, so the decoders are restarted from
+ * the closest sync sample; with 4.0 the taps are applied live.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RateChangeBenchmark {
+    static final long TAP_INTERVAL_MS = 200;
+
+    @Param({"4.0", "1.5"})
+    public double trickPlayRate;
+
+    private MoviePlayer mPlayer;
+    private boolean mFast = false;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Glitches {
+        public long maxRenderGapMs;
+        public long maxClockJumpMs;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            maxRenderGapMs = 0;
+            maxClockJumpMs = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        mPlayer = BenchmarkPlayers.newPlayer(BenchmarkPlayers.newBackend());
+        mPlayer.setTrickPlayRate(trickPlayRate);
+        mPlayer.play();
+        BenchmarkPlayers.awaitState(mPlayer.getVideoDecoder(), MediaDecoder.STATE_PLAYING, 1000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mPlayer.stop();
+        mPlayer.release();
+    }
+
+    @Benchmark
+    public void tap(Glitches glitches) throws InterruptedException {
+        mFast = !mFast;
+        double rate = mFast ? 2.0 : 1.0;
+        mPlayer.setRate(rate);
+        long start = System.nanoTime();
+        long end = start + TAP_INTERVAL_MS * 1000000;
+        long frames = mPlayer.getRenderedFrames();
+        long frameAt = start;
+        long position = mPlayer.getClock().getPositionUs();
+        long positionAt = start;
+        while (positionAt < end) {
+            Thread.sleep(1);
+            long now = System.nanoTime();
+            long f = mPlayer.getRenderedFrames();
+            if (f != frames) {
+                frames = f;
+                frameAt = now;
+            }
+            long p = mPlayer.getClock().getPositionUs();
+            long expectedUs = (long) ((now - positionAt) / 1000 * rate);
+            glitches.maxRenderGapMs = Math.max(glitches.maxRenderGapMs, (now - frameAt) / 1000000);
+            glitches.maxClockJumpMs = Math.max(glitches.maxClockJumpMs, Math.abs(p - position - expectedUs) / 1000);
+            position = p;
+            positionAt = now;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+
+package com.tanosys.videolibrary;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Playback while reads from storage stall now and then.
+ * <p>
+ * Every {@link #readStallInterval}-th sample read blocks for {@link #readStallUs}, which is
+ * still well within real time on average. Each invocation waits
+ * {@link AvSyncBenchmark#SAMPLE_INTERVAL_MS} and samples the audio/video offset; the
+ * secondary results are the largest absolute offset and the frames dropped per
+ * iteration. Reads that hold up the decoding thread show up as both.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadStallBenchmark {
+
+    @Param({"0", "100000"})
+    public long readStallUs;
+
+    @Param({"30"})
+    public int readStallInterval;
+
+    private MoviePlayer mPlayer;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Stalls {
+        public long maxAbsOffsetUs;
+        public long droppedFrames;
+        private long mDroppedFramesBefore = -1;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            maxAbsOffsetUs = 0;
+            droppedFrames = 0;
+            mDroppedFramesBefore = -1;
+        }
+
+        void add(MoviePlayer player) {
+            if (mDroppedFramesBefore < 0)
+                mDroppedFramesBefore = player.getDroppedFrames();
+            droppedFrames = player.getDroppedFrames() - mDroppedFramesBefore;
+            maxAbsOffsetUs = Math.max(maxAbsOffsetUs, Math.abs(player.getAudioVideoOffsetUs()));
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticMediaBackend backend = BenchmarkPlayers.newBackend();
+        backend.setReadStall(readStallUs, readStallInterval);
+        mPlayer = BenchmarkPlayers.newPlayer(backend);
+        mPlayer.setDropLateFrames(true);
+        mPlayer.play();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mPlayer.stop();
+        mPlayer.release();
+    }
+
+    @Benchmark
+    public void sample(Stalls stalls) throws InterruptedException {
+        Thread.sleep(AvSyncBenchmark.SAMPLE_INTERVAL_MS);
+        stalls.add(mPlayer);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of {@link MoviePlayer#play()} after a pause, measured until
+ * {@link MoviePlayer#getResumeLatencyUs()} reports the first frame shown, with and without
+ * hot pause. The configure latency stands in for setting up a hardware decoder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResumeBenchmark {
+
+    @Param({"true", "false"})
+    public boolean hotPause;
+
+    @Param({"0", "50000"})
+    public long codecConfigureLatencyUs;
+
+    private MoviePlayer mPlayer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        SyntheticMediaBackend backend = BenchmarkPlayers.newBackend();
+        backend.setCodecConfigureLatencyUs(codecConfigureLatencyUs);
+        mPlayer = BenchmarkPlayers.newPlayer(backend);
+        mPlayer.setHotPause(hotPause);
+        mPlayer.play();
+        BenchmarkPlayers.awaitState(mPlayer.getVideoDecoder(), MediaDecoder.STATE_PLAYING, 1000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mPlayer.stop();
+        mPlayer.release();
+    }
+
+    @Setup(Level.Invocation)
+    public void pause() throws InterruptedException {
+        mPlayer.pause();
+        BenchmarkPlayers.awaitState(mPlayer.getVideoDecoder(), MediaDecoder.STATE_STOPPED, 1000);
+        BenchmarkPlayers.awaitState(mPlayer.getAudioDecoder(), MediaDecoder.STATE_STOPPED, 1000);
+    }
+
+    @Benchmark
+    public long resume() throws InterruptedException {
+        mPlayer.play();
+        long latencyUs;
+        while ((latencyUs = mPlayer.getResumeLatencyUs()) < 0) {
+            Thread.sleep(0, 100000);
+        }
+        return latencyUs;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reverse playback of a synthetic 1080p file with 30 frame GOPs, whose frames take as long
+ * to decode as they do on a mid-range device.
+ * <p>
+ * Each invocation waits {@link #SAMPLE_INTERVAL_MS}. The secondary results count, per
+ * iteration, the frames shown and the frames dropped as late, and the largest gap between
+ * the video and the clock. At the file's 30 fps a 2 second iteration should show about 60
+ * frames times the rate. The small buffer fits two frames per store, so every GOP is
+ * decoded many times over. The synthetic backend has no surface, so the color conversion
+ * and drawing aren't part of what is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReversePlaybackBenchmark {
+    static final long SAMPLE_INTERVAL_MS = 10;
+
+    @Param({"-1.0", "-2.0"})
+    public double rate;
+
+    @Param({"67108864", "8388608"})
+    public long reverseBufferSize;
+
+    private MoviePlayer mPlayer;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Frames {
+        public long renderedFrames;
+        public long droppedFrames;
+        public long maxAbsOffsetUs;
+        private long mRenderedBefore = -1;
+        private long mDroppedBefore;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            renderedFrames = 0;
+            droppedFrames = 0;
+            maxAbsOffsetUs = 0;
+            mRenderedBefore = -1;
+        }
+
+        void add(MoviePlayer player) {
+            if (mRenderedBefore < 0) {
+                mRenderedBefore = player.getRenderedFrames();
+                mDroppedBefore = player.getDroppedFrames();
+            }
+            renderedFrames = player.getRenderedFrames() - mRenderedBefore;
+            droppedFrames = player.getDroppedFrames() - mDroppedBefore;
+            maxAbsOffsetUs = Math.max(maxAbsOffsetUs, Math.abs(player.getAudioVideoOffsetUs()));
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticMediaBackend backend = BenchmarkPlayers.newBackend();
+        backend.setVideoDecodeLatencyUs(8000);
+        backend.setKeyFrameDecodeLatencyUs(16000);
+        mPlayer = BenchmarkPlayers.newPlayer(backend);
+        mPlayer.setReverseBufferSize(reverseBufferSize);
+        mPlayer.setRate(rate);
+        mPlayer.play();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mPlayer.stop();
+        mPlayer.release();
+    }
+
+    @Benchmark
+    public void sample(Frames frames) throws InterruptedException {
+        Thread.sleep(SAMPLE_INTERVAL_MS);
+        frames.add(mPlayer);
+    }
+}
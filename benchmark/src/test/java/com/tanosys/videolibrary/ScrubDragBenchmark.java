@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fast drag on the seek bar: a burst of {@link VideoDecoder#seekTo(long)} calls issued
+ * back to back, measured until the seek thread settles. Fails if it settles anywhere but
+ * the last position of the burst.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScrubDragBenchmark {
+
+    /**
+     * Seek requests per drag.
+     */
+    @Param({"8", "64"})
+    public int burst;
+
+    /**
+     * Distance between two consecutive positions of the drag.
+     */
+    @Param({"100000", "1000000"})
+    public long stepUs;
+
+    private MoviePlayer mPlayer;
+    private VideoDecoder mDecoder;
+    private long mDurationUs;
+    private long mPositionUs;
+    private int mDirection = 1;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        SyntheticMediaBackend backend = BenchmarkPlayers.newBackend();
+        backend.setGopPattern(new int[]{12, 60, 24});
+        mPlayer = BenchmarkPlayers.newPlayer(backend);
+        mDecoder = mPlayer.getVideoDecoder();
+        mDurationUs = mPlayer.getVideoDuration() * 1000;
+        mDecoder.startSeeking();
+        awaitSeek();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mDecoder.endSeeking();
+        BenchmarkPlayers.awaitState(mDecoder, MediaDecoder.STATE_STOPPED, 5000);
+        mPlayer.release();
+    }
+
+    @Benchmark
+    public long drag() throws InterruptedException {
+        for (int i = 0; i < burst; i++) {
+            long next = mPositionUs + mDirection * stepUs;
+            if (next < 0 || next >= mDurationUs) {
+                // bounce off either end of the file
+                mDirection = -mDirection;
+                next = mPositionUs + mDirection * stepUs;
+            }
+            mPositionUs = next;
+            mDecoder.seekTo(mPositionUs);
+        }
+        awaitSeek();
+        if (mDecoder.mSeekTargetTime != mPositionUs)
+            throw new IllegalStateException("drag settled at " + mDecoder.mSeekTargetTime + ", expected " + mPositionUs);
+        return mPositionUs;
+    }
+
+    private void awaitSeek() throws InterruptedException {
+        synchronized (mDecoder.mDecoderSync) {
+            while (mDecoder.mIsSeeking) {
+                mDecoder.mDecoderSync.wait();
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of {@link VideoDecoder#seekTo(long)} while scrubbing, measured from the request
+ * until the seek thread reports the target frame as rendered.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SeekBenchmark {
+
+    @Param({"forward", "backward"})
+    public String direction;
+
+    /**
+     * Distance between two consecutive scrub positions: one frame, and half a second.
+     */
+    @Param({"33333", "500000"})
+    public long stepUs;
+
+    @Param({"30", "12,60,24"})
+    public String gopPattern;
+
+    private MoviePlayer mPlayer;
+    private VideoDecoder mDecoder;
+    private long mDurationUs;
+    private long mTargetUs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        SyntheticMediaBackend backend = BenchmarkPlayers.newBackend();
+        String[] gops = gopPattern.split(",");
+        int[] pattern = new int[gops.length];
+        for (int i = 0; i < gops.length; i++) {
+            pattern[i] = Integer.parseInt(gops[i]);
+        }
+        backend.setGopPattern(pattern);
+        mPlayer = BenchmarkPlayers.newPlayer(backend);
+        mDecoder = mPlayer.getVideoDecoder();
+        mDurationUs = mPlayer.getVideoDuration() * 1000;
+        mDecoder.startSeeking();
+        awaitSeek();
+        mTargetUs = "forward".equals(direction) ? 0 : mDurationUs - stepUs;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mDecoder.endSeeking();
+        BenchmarkPlayers.awaitState(mDecoder, MediaDecoder.STATE_STOPPED, 5000);
+        mPlayer.release();
+    }
+
+    @Benchmark
+    public long seek() throws InterruptedException {
+        if ("forward".equals(direction)) {
+            mTargetUs += stepUs;
+            if (mTargetUs >= mDurationUs - stepUs)
+                mTargetUs = 0;
+        } else {
+            mTargetUs -= stepUs;
+            if (mTargetUs < 0)
+                mTargetUs = mDurationUs - stepUs;
+        }
+        mDecoder.seekTo(mTargetUs);
+        awaitSeek();
+        return mTargetUs;
+    }
+
+    private void awaitSeek() throws InterruptedException {
+        synchronized (mDecoder.mDecoderSync) {
+            while (mDecoder.mIsSeeking) {
+                mDecoder.mDecoderSync.wait();
+            }
+        }
+    }
+}
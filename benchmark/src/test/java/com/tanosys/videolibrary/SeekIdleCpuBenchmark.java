@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU used by the seeking thread while the seek bar is held still, failing the run when
+ * the thread burns more than {@link #MAX_CPU_SHARE} of the wall time it sits idle.
+ * <p>
+ * Each invocation holds for {@link #HOLD_MS} and reads the thread's CPU time around it;
+ * the total is reported as the secondary result {@code cpuNanos}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SeekIdleCpuBenchmark {
+    static final long HOLD_MS = 20;
+    static final double MAX_CPU_SHARE = 0.01;
+
+    @Param({"polling", "async"})
+    public String decodeMode;
+
+    private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+
+    private MoviePlayer mPlayer;
+    private VideoDecoder mDecoder;
+    private long mSeekThreadId;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class CpuCounters {
+        public long cpuNanos;
+        public long holds;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            cpuNanos = 0;
+            holds = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void check() {
+            if (holds > 0 && cpuNanos / holds > HOLD_MS * 1000000.0 * MAX_CPU_SHARE)
+                throw new IllegalStateException("idle seek thread used " + cpuNanos / holds + " ns of CPU per "
+                        + HOLD_MS + " ms hold");
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        SyntheticMediaBackend backend = BenchmarkPlayers.newBackend();
+        mPlayer = BenchmarkPlayers.newPlayer(backend);
+        if ("async".equals(decodeMode)) {
+            mPlayer.setDecodeMode(MoviePlayer.DECODE_MODE_ASYNC);
+        }
+        mDecoder = mPlayer.getVideoDecoder();
+        mDecoder.startSeeking();
+        mDecoder.seekTo(mPlayer.getVideoDuration() * 1000 / 2);
+        synchronized (mDecoder.mDecoderSync) {
+            while (mDecoder.mIsSeeking) {
+                mDecoder.mDecoderSync.wait();
+            }
+        }
+        mSeekThreadId = findThread(VideoDecoder.class.getSimpleName());
+    }
+
+    private static long findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName()))
+                return thread.getId();
+        }
+        throw new IllegalStateException("no thread named " + name);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mDecoder.endSeeking();
+        BenchmarkPlayers.awaitState(mDecoder, MediaDecoder.STATE_STOPPED, 5000);
+        mPlayer.release();
+    }
+
+    @Benchmark
+    public void hold(CpuCounters counters) throws InterruptedException {
+        long before = mThreads.getThreadCpuTime(mSeekThreadId);
+        Thread.sleep(HOLD_MS);
+        counters.cpuNanos += mThreads.getThreadCpuTime(mSeekThreadId) - before;
+        counters.holds++;
+    }
+}
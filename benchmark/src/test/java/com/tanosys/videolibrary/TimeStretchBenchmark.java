@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link TimeStretcher} per decoded buffer of 48 kHz stereo PCM, failing the run
+ * when the steady state allocates.
+ * <p>
+ * A buffer is {@link #FRAMES_PER_BUFFER} frames, 21.3ms of audio. To keep up in real time
+ * at rate r, one core has to stretch a buffer in 21.3 / r ms, 10.7ms at 2x. Each
+ * invocation stretches {@link #BUFFERS} buffers of a tone mix with some noise, the way
+ * {@link AudioDecoder#output} does, and drains the result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeStretchBenchmark {
+    static final int SAMPLE_RATE = 48000;
+    static final int CHANNELS = 2;
+    static final int FRAMES_PER_BUFFER = 1024;
+    static final int BUFFERS = 64;
+
+    @Param({"0.5", "1.5", "2.0"})
+    public double rate;
+
+    private final com.sun.management.ThreadMXBean mThreads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private TimeStretcher mStretcher;
+    private ByteBuffer[] mInput;
+    private ByteBuffer mOutput;
+    private long mTimeUs = 0;
+
+    private long mAllocatedBytes;
+    private long mBuffers;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mStretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+        mStretcher.setRate(rate);
+        Random random = new Random(42);
+        mInput = new ByteBuffer[BUFFERS];
+        for (int b = 0; b < BUFFERS; b++) {
+            mInput[b] = ByteBuffer.allocateDirect(FRAMES_PER_BUFFER * CHANNELS * 2).order(ByteOrder.nativeOrder());
+            for (int f = 0; f < FRAMES_PER_BUFFER; f++) {
+                double t = (double) (b * FRAMES_PER_BUFFER + f) / SAMPLE_RATE;
+                double v = 0.4 * Math.sin(2 * Math.PI * 220 * t) + 0.2 * Math.sin(2 * Math.PI * 1375 * t)
+                        + 0.05 * random.nextGaussian();
+                for (int c = 0; c < CHANNELS; c++) {
+                    mInput[b].putShort((short) (v * 32767 * (c == 0 ? 1.0 : 0.8)));
+                }
+            }
+        }
+        mOutput = ByteBuffer.allocateDirect(FRAMES_PER_BUFFER * CHANNELS * 2 * 8);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetCounters() {
+        mAllocatedBytes = 0;
+        mBuffers = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkAllocation() {
+        if (mBuffers > 0 && mAllocatedBytes / mBuffers > 0)
+            throw new IllegalStateException("time stretching allocated " + mAllocatedBytes + " bytes over "
+                    + mBuffers + " buffers");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BUFFERS)
+    public int stretch() {
+        long threadId = Thread.currentThread().getId();
+        long before = mThreads.getThreadAllocatedBytes(threadId);
+        int frames = 0;
+        for (int b = 0; b < BUFFERS; b++) {
+            ByteBuffer input = mInput[b];
+            input.clear();
+            mStretcher.put(input, input.capacity(), mTimeUs);
+            mTimeUs += FRAMES_PER_BUFFER * 1000000L / SAMPLE_RATE;
+            mOutput.clear();
+            frames += mStretcher.drain(mOutput);
+        }
+        mAllocatedBytes += mThreads.getThreadAllocatedBytes(threadId) - before;
+        mBuffers += BUFFERS;
+        return frames;
+    }
+}
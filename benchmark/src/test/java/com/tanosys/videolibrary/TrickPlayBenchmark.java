@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fast-forward with and without trick play, on a synthetic file whose frames take as long
+ * to decode as 1080p does on a mid-range device.
+ * <p>
+ * Each invocation waits {@link #SAMPLE_INTERVAL_MS}. The secondary results count, per
+ * iteration, the frames shown and the frames decoded for nothing (dropped as late), and
+ * the largest gap between the video and the clock; together they show how smooth the
+ * preview is and what it costs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrickPlayBenchmark {
+    static final long SAMPLE_INTERVAL_MS = 10;
+
+    @Param({"8.0", "16.0"})
+    public double rate;
+
+    /**
+     * Trick play threshold; the second value keeps it off.
+     */
+    @Param({"4.0", "1000.0"})
+    public double trickPlayRate;
+
+    private MoviePlayer mPlayer;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Frames {
+        public long renderedFrames;
+        public long droppedFrames;
+        public long maxAbsOffsetUs;
+        private long mRenderedBefore = -1;
+        private long mDroppedBefore;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            renderedFrames = 0;
+            droppedFrames = 0;
+            maxAbsOffsetUs = 0;
+            mRenderedBefore = -1;
+        }
+
+        void add(MoviePlayer player) {
+            if (mRenderedBefore < 0) {
+                mRenderedBefore = player.getRenderedFrames();
+                mDroppedBefore = player.getDroppedFrames();
+            }
+            renderedFrames = player.getRenderedFrames() - mRenderedBefore;
+            droppedFrames = player.getDroppedFrames() - mDroppedBefore;
+            maxAbsOffsetUs = Math.max(maxAbsOffsetUs, Math.abs(player.getAudioVideoOffsetUs()));
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticMediaBackend backend = BenchmarkPlayers.newBackend();
+        backend.setVideoDecodeLatencyUs(8000);
+        backend.setKeyFrameDecodeLatencyUs(16000);
+        mPlayer = BenchmarkPlayers.newPlayer(backend);
+        mPlayer.setTrickPlayRate(trickPlayRate);
+        mPlayer.setRate(rate);
+        mPlayer.play();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mPlayer.stop();
+        mPlayer.release();
+    }
+
+    @Benchmark
+    public void sample(Frames frames) throws InterruptedException {
+        Thread.sleep(SAMPLE_INTERVAL_MS);
+        frames.add(mPlayer);
+    }
+}
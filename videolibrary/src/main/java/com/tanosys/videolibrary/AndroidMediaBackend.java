@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link MediaBackend} backed by {@link MediaExtractor} and {@link MediaCodec}.
+ */
+public class AndroidMediaBackend implements MediaBackend {
+
+    @Override
+    public Demuxer createDemuxer(DataSource source) throws IOException {
+        return new ExtractorDemuxer(source);
+    }
+
+    @Override
+    public Codec createDecoder(String mime) throws IOException {
+        return new MediaCodecDecoder(MediaCodec.createDecoderByType(mime));
+    }
+
+    @Override
+    public AudioSink createAudioSink(TrackFormat format) {
+        return new AudioTrackSink(format.getSampleRate(), format.getChannelCount());
+    }
+
+    @Override
+    public long getDuration(DataSource source) throws IOException {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            source.applyTo(retriever);
+            return Long.valueOf(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+        } catch (RuntimeException e) {
+            throw new IOException("failed to read duration of " + source, e);
+        } finally {
+            retriever.release();
+        }
+    }
+
+    @Override
+    public boolean rendersToSurface() {
+        return true;
+    }
+
+    static MediaFormat toMediaFormat(TrackFormat format) {
+        if (format.getPlatformFormat() != null)
+            return format.getPlatformFormat();
+        MediaFormat mediaFormat;
+        if (format.isVideo()) {
+            mediaFormat = MediaFormat.createVideoFormat(format.getMime(), format.getWidth(), format.getHeight());
+        } else {
+            mediaFormat = MediaFormat.createAudioFormat(format.getMime(), format.getSampleRate(), format.getChannelCount());
+        }
+        if (format.getMaxInputSize() > 0)
+            mediaFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, format.getMaxInputSize());
+        if (format.getDurationUs() >= 0)
+            mediaFormat.setLong(MediaFormat.KEY_DURATION, format.getDurationUs());
+        return mediaFormat;
+    }
+
+    static class ExtractorDemuxer implements Demuxer {
+        private final MediaExtractor mExtractor = new MediaExtractor();
+
+        ExtractorDemuxer(DataSource source) throws IOException {
+            try {
+                source.applyTo(mExtractor);
+            } catch (IOException | RuntimeException e) {
+                mExtractor.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public int getTrackCount() {
+            return mExtractor.getTrackCount();
+        }
+
+        @Override
+        public TrackFormat getTrackFormat(int index) {
+            return TrackFormat.fromMediaFormat(mExtractor.getTrackFormat(index));
+        }
+
+        @Override
+        public void selectTrack(int index) {
+            mExtractor.selectTrack(index);
+        }
+
+        @Override
+        public void seekTo(long timeUs, int mode) {
+            mExtractor.seekTo(timeUs, mode);
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer, int offset) {
+            return mExtractor.readSampleData(buffer, offset);
+        }
+
+        @Override
+        public long getSampleTime() {
+            return mExtractor.getSampleTime();
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return mExtractor.getSampleFlags();
+        }
+
+        @Override
+        public int getSampleTrackIndex() {
+            return mExtractor.getSampleTrackIndex();
+        }
+
+        @Override
+        public boolean advance() {
+            return mExtractor.advance();
+        }
+
+        @Override
+        public void release() {
+            mExtractor.release();
+        }
+    }
+
+    static class MediaCodecDecoder implements Codec {
+        private final MediaCodec mMediaCodec;
+        private Callback mCallback;
+        private HandlerThread mCallbackThread;
+        private MediaCodec.Callback mPlatformCallback;
+
+        MediaCodecDecoder(MediaCodec mediaCodec) {
+            mMediaCodec = mediaCodec;
+        }
+
+        @Override
+        public boolean isCallbackSupported() {
+            // setCallback(Callback, Handler) is API 23; the API 21 variant posts to whatever
+            // looper created the codec.
+            return android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M;
+        }
+
+        @Override
+        public void setCallback(Callback callback) {
+            if (!isCallbackSupported())
+                throw new UnsupportedOperationException("asynchronous MediaCodec needs API 23");
+            mCallback = callback;
+            if (callback == null && mPlatformCallback != null)
+                mMediaCodec.setCallback(null);
+        }
+
+        @Override
+        public void configure(TrackFormat format, Surface surface) {
+            if (mCallback != null) {
+                if (mCallbackThread == null) {
+                    mCallbackThread = new HandlerThread("MediaCodecCallback");
+                    mCallbackThread.start();
+                    // created lazily; MediaCodec.Callback doesn't exist below API 21
+                    mPlatformCallback = createPlatformCallback();
+                }
+                mMediaCodec.setCallback(mPlatformCallback, new Handler(mCallbackThread.getLooper()));
+            }
+            mMediaCodec.configure(toMediaFormat(format), surface, null, 0);
+        }
+
+        private MediaCodec.Callback createPlatformCallback() {
+            return new MediaCodec.Callback() {
+                @Override
+                public void onInputBufferAvailable(MediaCodec codec, int index) {
+                    mCallback.onInputBufferAvailable(index);
+                }
+
+                @Override
+                public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                    mCallback.onOutputBufferAvailable(index, info);
+                }
+
+                @Override
+                public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                    mCallback.onError(e);
+                }
+
+                @Override
+                public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                    mCallback.onOutputFormatChanged(TrackFormat.fromMediaFormat(format));
+                }
+            };
+        }
+
+        @Override
+        public void start() {
+            mMediaCodec.start();
+        }
+
+        @Override
+        public void stop() {
+            mMediaCodec.stop();
+        }
+
+        @Override
+        public void flush() {
+            mMediaCodec.flush();
+        }
+
+        @Override
+        public void release() {
+            mMediaCodec.release();
+            if (mCallbackThread != null) {
+                mCallbackThread.quit();
+                mCallbackThread = null;
+            }
+        }
+
+        @Override
+        public int dequeueInputBuffer(long timeoutUs) {
+            return mMediaCodec.dequeueInputBuffer(timeoutUs);
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
+                return mMediaCodec.getInputBuffer(index);
+            } else {
+                return mMediaCodec.getInputBuffers()[index];
+            }
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+            mMediaCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+        }
+
+        @Override
+        public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+            return mMediaCodec.dequeueOutputBuffer(info, timeoutUs);
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
+                return mMediaCodec.getOutputBuffer(index);
+            } else {
+                return mMediaCodec.getOutputBuffers()[index];
+            }
+        }
+
+        @Override
+        public Image getOutputImage(int index) {
+            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
+                return mMediaCodec.getOutputImage(index);
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public TrackFormat getOutputFormat() {
+            return TrackFormat.fromMediaFormat(mMediaCodec.getOutputFormat());
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index, boolean render) {
+            mMediaCodec.releaseOutputBuffer(index, render);
+        }
+    }
+
+    static class AudioTrackSink implements AudioSink {
+        private final AudioTrack mAudioTrack;
+        private final int mFrameSize;
+        // staging copy for AudioTrack.write(byte[]) below API 21; grows to the largest buffer once
+        private byte[] mChunk = new byte[0];
+        private long mFramesWritten = 0;
+        private final int mSampleRate;
+        // reused by getTimestamp on API 19+
+        private AudioTimestamp mTimestamp;
+
+        AudioTrackSink(int sampleRate, int channelCount) {
+            mFrameSize = 2 * Math.max(channelCount, 1);
+            mSampleRate = sampleRate;
+            int channelConfig = channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+            mAudioTrack = new AudioTrack(
+                    AudioManager.STREAM_MUSIC,
+                    sampleRate,
+                    channelConfig,
+                    AudioFormat.ENCODING_PCM_16BIT,
+                    AudioTrack.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT),
+                    AudioTrack.MODE_STREAM
+            );
+        }
+
+        @Override
+        public void play() {
+            mAudioTrack.play();
+        }
+
+        @Override
+        public void pause() {
+            mAudioTrack.pause();
+        }
+
+        @Override
+        public void stop() {
+            mAudioTrack.stop();
+        }
+
+        @Override
+        public void flush() {
+            mAudioTrack.flush();
+        }
+
+        @Override
+        public void release() {
+            mAudioTrack.release();
+        }
+
+        @Override
+        public int write(ByteBuffer buffer, int size) {
+            int written;
+            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
+                written = mAudioTrack.write(buffer, size, AudioTrack.WRITE_BLOCKING);
+            } else {
+                if (mChunk.length < size)
+                    mChunk = new byte[size];
+                buffer.get(mChunk, 0, size);
+                written = mAudioTrack.write(mChunk, 0, size);
+            }
+            if (written > 0) {
+                synchronized (this) {
+                    mFramesWritten += written / mFrameSize;
+                }
+            }
+            return written;
+        }
+
+        @Override
+        public synchronized long getPlaybackHeadPosition() {
+            // the head position only moves once per mixer period; a timestamp can be
+            // extrapolated to now
+            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.KITKAT
+                    && mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
+                if (mTimestamp == null)
+                    mTimestamp = new AudioTimestamp();
+                if (mAudioTrack.getTimestamp(mTimestamp)) {
+                    long elapsedNs = System.nanoTime() - mTimestamp.nanoTime;
+                    long frames = mTimestamp.framePosition + (long) (elapsedNs * (double) mSampleRate / 1000000000);
+                    return Math.min(frames, mFramesWritten);
+                }
+            }
+            // an unsigned 32 bit frame count
+            return mAudioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        }
+    }
+}
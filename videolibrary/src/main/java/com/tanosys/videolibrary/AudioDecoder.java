@@ -19,14 +19,9 @@
 
 package com.tanosys.videolibrary;
 
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
 import android.media.MediaCodec;
-import android.media.MediaFormat;
 import android.util.Log;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -37,55 +32,67 @@ public class AudioDecoder extends MediaDecoder {
     protected static final int MSG_FRAME_AVAILABLE = 2;
     private  int mSampleRate = 0;
     private static final String TAG = "AudioDecoder";
-    private AudioTrack mAudioTrack;
+    private AudioSink mAudioSink;
+    private int mFrameSize = 0;
+    private long mFramesWritten = 0;
+    // changes tempo at rates other than 1.0; the sink always plays at the sample rate
+    private TimeStretcher mStretcher;
+    // stretched PCM on its way to the sink; grows to the largest output once
+    private ByteBuffer mStretchBuffer;
+    // true while playing at a trick play rate or backwards: nothing is decoded or heard
+    private boolean mMuted = false;
+    // longest a muted decoder sleeps before looking at the clock again
+    private static final long MUTED_WAIT_USEC = 100000;
 
     public void setPlayRate(double playRate) {
-        if (mState == STATE_NO_TRACK_FOUND)
+        if (getState() == STATE_NO_TRACK_FOUND)
             return;
-        mAudioTrack.setPlaybackRate((int) ((double)mSampleRate * playRate));
+        mStretcher.setRate(playRate);
     }
 
-    public AudioDecoder(MoviePlayer player, File sourceFile) throws IOException {
-        super(player,sourceFile);
+    /**
+     * Applies a rate change to the sink while playing; a muted decoder has nothing to change.
+     */
+    void changePlayRateLive(double playRate) {
+        if (getState() != STATE_PLAYING || mMuted)
+            return;
+        setPlayRate(playRate);
+    }
+
+    public AudioDecoder(MoviePlayer player, DataSource source) throws IOException {
+        super(player, source);
         this.TRACK_TYPE = "audio";
+        this.mTraceTrack = Tracer.TRACK_AUDIO;
     }
 
     @Override
     protected void prepare() throws IOException {
-        if (mState < STATE_PREPARED) {
-            MediaFormat format;
-            if (mState == STATE_UNINITIALIZED) {
+        if (getState() < STATE_PREPARED) {
+            TrackFormat format;
+            if (getState() == STATE_UNINITIALIZED) {
                 mTrackIndex = selectTrack();
                 if (mTrackIndex < 0) {
                     setState(STATE_NO_TRACK_FOUND);
                     return;
                 }
-                mExtractor.selectTrack(mTrackIndex);
                 format = mExtractor.getTrackFormat(mTrackIndex);
-                mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-                int audioChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-                mAudioTrack = new AudioTrack(
-                        AudioManager.STREAM_MUSIC,
-                        mSampleRate,
-                        (audioChannels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO),
-                        AudioFormat.ENCODING_PCM_16BIT,
-                        AudioTrack.getMinBufferSize(
-                                mSampleRate,
-                                (audioChannels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO),
-                                AudioFormat.ENCODING_PCM_16BIT
-                        ),
-                        AudioTrack.MODE_STREAM
-                );
-                mState = STATE_INITIALIZED;
+                mSampleRate = format.getSampleRate();
+                mFrameSize = 2 * Math.max(format.getChannelCount(), 1);
+                mAudioSink = mWeakPlayer.get().getBackend().createAudioSink(format);
+                mStretcher = new TimeStretcher(mSampleRate, format.getChannelCount());
+                mWeakPlayer.get().getClock().setAudioSink(mAudioSink, mSampleRate);
+                // selected last: preparing in parallel, the video track's keyframe walk can
+                // still use the shared demuxer while the audio output is created
+                mExtractor.selectTrack(mTrackIndex);
+                setState(STATE_INITIALIZED);
             } else {
                 format = mExtractor.getTrackFormat(mTrackIndex);
             }
 
-            String mime = format.getString(MediaFormat.KEY_MIME);
+            String mime = format.getMime();
             Log.d(TAG, mime);
-            mMediaCodec = MediaCodec.createDecoderByType(mime);
-//            mMediaCodec.setCallback(mCallback);
-            mMediaCodec.configure(format, null, null, 0);
+            mMediaCodec = createCodec(format);
+            mMediaCodec.configure(format, null);
             setState(STATE_PREPARED);
         }
         super.prepare();
@@ -94,38 +101,138 @@ public class AudioDecoder extends MediaDecoder {
     @Override
     protected void output(int outputBufIndex, MediaCodec.BufferInfo bufferInfo) {
         if (mMediaCodec == null) return;
-        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-            Log.d(TAG, "output EOS");
-        }
-        ByteBuffer buf;
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-            buf = mMediaCodec.getOutputBuffer(outputBufIndex);
-        } else {
-            buf = mMediaCodec.getOutputBuffers()[outputBufIndex];
+        PlaybackClock clock = mWeakPlayer.get().getClock();
+        if (bufferInfo.size > 0) {
+            // hand the codec's buffer straight to the sink; nothing is allocated per buffer
+            ByteBuffer buf = mMediaCodec.getOutputBuffer(outputBufIndex);
+            buf.limit(bufferInfo.offset + bufferInfo.size);
+            buf.position(bufferInfo.offset);
+            if (mStretcher.isActive()) {
+                mStretcher.put(buf, bufferInfo.size, bufferInfo.presentationTimeUs);
+                writeStretched(clock);
+            } else {
+                clock.onAudioQueued(bufferInfo.presentationTimeUs, mFramesWritten, 1.0);
+                write(buf, bufferInfo.size);
+            }
+            buf.clear(); // ** MUST DO!!! OTHERWISE THE NEXT TIME YOU GET THIS SAME BUFFER BAD THINGS WILL HAPPEN
         }
-        final byte[] chunk = new byte[bufferInfo.size];
-        buf.get(chunk); // Read the buffer all at once
-        buf.clear(); // ** MUST DO!!! OTHERWISE THE NEXT TIME YOU GET THIS SAME BUFFER BAD THINGS WILL HAPPEN
-        if (chunk.length > 0) {
-            mAudioTrack.write(chunk, 0, chunk.length);
-            mStartTime = adjustPresentationTime(mStartTime, (long) ((double)bufferInfo.presentationTimeUs/mWeakPlayer.get().getPlayRate()));
+        // looping gaplessly, the sink plays on into the next loop
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 && !loopsGapless()) {
+            Log.d(TAG, "output EOS");
+            clock.onAudioEnded();
         }
         mMediaCodec.releaseOutputBuffer(outputBufIndex, false);
 
     }
 
+    @Override
+    protected boolean readsDemuxer() {
+        return !mMuted;
+    }
+
+    private void writeStretched(PlaybackClock clock) {
+        int size = mStretcher.getOutputFrames() * mFrameSize;
+        if (size == 0)
+            return;
+        if (mStretchBuffer == null || mStretchBuffer.capacity() < size)
+            mStretchBuffer = ByteBuffer.allocateDirect(size * 2);
+        clock.onAudioQueued(mStretcher.getOutputTimeUs(), mFramesWritten, mStretcher.getOutputRate());
+        mStretchBuffer.clear();
+        mStretcher.drain(mStretchBuffer);
+        mStretchBuffer.flip();
+        write(mStretchBuffer, size);
+    }
+
+    private void write(ByteBuffer buf, int size) {
+        // the write blocks while the sink is full, which paces this thread
+        int written = mAudioSink.write(buf, size);
+        if (written > 0)
+            mFramesWritten += written / mFrameSize;
+    }
+
     @Override
     protected void startPlaying() throws IOException, IllegalStateException {
-        if (mState == STATE_NO_TRACK_FOUND)
+        if (getState() == STATE_NO_TRACK_FOUND)
             return;
-        setPlayRate(mWeakPlayer.get().getPlayRate());
-        mAudioTrack.play();
+        // whatever is buffered is from before a seek or a loop
+        mStretcher.flush();
+        flushSink();
+        mMuted = mWeakPlayer.get().isTrickPlay() || mWeakPlayer.get().isReverse();
+        if (!mMuted) {
+            setPlayRate(mWeakPlayer.get().getPlayRate());
+            mAudioSink.play();
+        }
         super.startPlaying();
     }
 
+    /**
+     * Pauses the sink, so what it still holds isn't heard while stopped or seeking.
+     */
     protected void stopPlaying() {
-        if (mAudioTrack != null)
-            mAudioTrack.stop();
+        if (mAudioSink != null)
+            mAudioSink.pause();
+    }
+
+    /**
+     * Drops what the sink still holds. The clock has just been restarted without audio to
+     * follow, so the frames written start counting again from the sink's playback head.
+     */
+    private void flushSink() {
+        if (mAudioSink == null)
+            return;
+        mAudioSink.pause();
+        mAudioSink.flush();
+        // AudioTrack puts its head back to 0 on flush()
+        mFramesWritten = mAudioSink.getPlaybackHeadPosition();
+    }
+
+    @Override
+    protected void requestStop() {
+        super.requestStop();
+        stopPlaying();
+    }
+
+    @Override
+    protected void release() {
+        super.release();
+        if (mAudioSink != null) {
+            mAudioSink.release();
+            mAudioSink = null;
+        }
+    }
+
+    @Override
+    protected void step() {
+        if (mMuted) {
+            idleWhileMuted();
+        } else {
+            super.step();
+        }
+    }
+
+    /**
+     * Stands in for decoding while muted: sleeps until the state changes or the clock passes
+     * the end of the file (the start, playing backwards), then ends the track the way end of
+     * stream would, so looping still waits for both tracks.
+     */
+    private void idleWhileMuted() {
+        PlaybackClock clock = mWeakPlayer.get().getClock();
+        long endUs = clock.getRate() < 0 ? 0 : mWeakPlayer.get().getVideoDuration() * 1000;
+        long remainingUs = untilClockReaches(clock, endUs);
+        if (remainingUs <= 0) {
+            mOutputDone = true;
+            return;
+        }
+        long waitUs = Math.min((long) (remainingUs / Math.abs(clock.getRate())), MUTED_WAIT_USEC);
+        synchronized (mDecoderSync) {
+            if (getState() != STATE_PLAYING)
+                return;
+            try {
+                mDecoderSync.wait(waitUs / 1000 + 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     @Override
@@ -141,8 +248,7 @@ public class AudioDecoder extends MediaDecoder {
     @Override
     public void startSeeking() throws IOException {
         super.startSeeking();
-        if (mState == STATE_SEEKING)
-            return;
+        stopPlaying();
         setState(STATE_SEEKING);
     }
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import java.nio.ByteBuffer;
+
+/**
+ * PCM output used by {@link AudioDecoder}. Mirrors the streaming part of
+ * {@link android.media.AudioTrack}.
+ */
+public interface AudioSink {
+    void play();
+
+    void pause();
+
+    void stop();
+
+    void flush();
+
+    void release();
+
+    /**
+     * Writes 16 bit PCM, blocking until all of it is queued. Must not allocate.
+     *
+     * @param buffer data to write, starting at its position
+     * @param size   number of bytes to write
+     * @return number of bytes written, or a negative AudioTrack error code
+     */
+    int write(ByteBuffer buffer, int size);
+
+    /**
+     * @return frames the sink has played out since it was created, as close to this moment
+     * as the platform can tell; never more than were written
+     */
+    long getPlaybackHeadPosition();
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder used by {@link MediaDecoder}.
+ * <p>
+ * Mirrors the synchronous buffer API of {@link MediaCodec}; return values and flags use
+ * the MediaCodec constants ({@link MediaCodec#INFO_TRY_AGAIN_LATER} and so on).
+ */
+public interface Codec {
+    /**
+     * Receives codec events once {@link #setCallback(Callback)} has switched the codec to
+     * asynchronous mode. Methods are called on a thread owned by the codec.
+     */
+    interface Callback {
+        void onInputBufferAvailable(int index);
+
+        void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info);
+
+        void onOutputFormatChanged(TrackFormat format);
+
+        void onError(Exception e);
+    }
+
+    boolean isCallbackSupported();
+
+    /**
+     * Switches the codec to asynchronous mode. Must be called before {@link #configure};
+     * afterwards the dequeue methods must not be used. Null switches a codec that isn't
+     * configured back to the synchronous calls.
+     */
+    void setCallback(Callback callback);
+
+    /**
+     * @param surface output surface, or null to decode into byte buffers
+     */
+    void configure(TrackFormat format, Surface surface);
+
+    void start();
+
+    void stop();
+
+    void flush();
+
+    void release();
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    /**
+     * Use instead of {@link #getOutputBuffer} to read a decoded frame through its planes.
+     *
+     * @return the frame, to be closed before its buffer is released, or null if the codec
+     * can't describe it
+     */
+    Image getOutputImage(int index);
+
+    TrackFormat getOutputFormat();
+
+    void releaseOutputBuffer(int index, boolean render);
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.media.MediaCodec;
+
+/**
+ * Hands {@link Codec.Callback} events from the codec's thread to the decoding thread.
+ * <p>
+ * Events are kept in preallocated arrays so that delivering a buffer doesn't allocate.
+ * Input buffers the decoder can't fill yet (while paused at a seek position, for example)
+ * are parked with {@link #holdInput(int)} and picked up again with {@link #pollHeldInput()}.
+ */
+class CodecEventQueue implements Codec.Callback {
+    static final int EVENT_NONE = 0;
+    static final int EVENT_INPUT = 1;
+    static final int EVENT_OUTPUT = 2;
+    static final int EVENT_FORMAT_CHANGED = 3;
+    static final int EVENT_ERROR = 4;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Object mLock = new Object();
+
+    private int[] mTypes = new int[INITIAL_CAPACITY];
+    private int[] mIndices = new int[INITIAL_CAPACITY];
+    private int[] mOffsets = new int[INITIAL_CAPACITY];
+    private int[] mSizes = new int[INITIAL_CAPACITY];
+    private int[] mFlags = new int[INITIAL_CAPACITY];
+    private long[] mTimesUs = new long[INITIAL_CAPACITY];
+    private int mHead = 0;
+    private int mCount = 0;
+
+    private int[] mHeldInputs = new int[INITIAL_CAPACITY];
+    private int mHeldCount = 0;
+
+    private int mEventIndex = -1;
+    private boolean mWakeRequested = false;
+    private Exception mError;
+
+    @Override
+    public void onInputBufferAvailable(int index) {
+        put(EVENT_INPUT, index, null);
+    }
+
+    @Override
+    public void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+        put(EVENT_OUTPUT, index, info);
+    }
+
+    @Override
+    public void onOutputFormatChanged(TrackFormat format) {
+        put(EVENT_FORMAT_CHANGED, -1, null);
+    }
+
+    @Override
+    public void onError(Exception e) {
+        synchronized (mLock) {
+            mError = e;
+        }
+        put(EVENT_ERROR, -1, null);
+    }
+
+    private void put(int type, int index, MediaCodec.BufferInfo info) {
+        synchronized (mLock) {
+            if (mCount == mTypes.length)
+                grow();
+            int slot = (mHead + mCount) % mTypes.length;
+            mTypes[slot] = type;
+            mIndices[slot] = index;
+            if (info != null) {
+                mOffsets[slot] = info.offset;
+                mSizes[slot] = info.size;
+                mTimesUs[slot] = info.presentationTimeUs;
+                mFlags[slot] = info.flags;
+            }
+            mCount++;
+            mLock.notify();
+        }
+    }
+
+    private void grow() {
+        int capacity = mTypes.length * 2;
+        int[] types = new int[capacity];
+        int[] indices = new int[capacity];
+        int[] offsets = new int[capacity];
+        int[] sizes = new int[capacity];
+        int[] flags = new int[capacity];
+        long[] timesUs = new long[capacity];
+        for (int i = 0; i < mCount; i++) {
+            int slot = (mHead + i) % mTypes.length;
+            types[i] = mTypes[slot];
+            indices[i] = mIndices[slot];
+            offsets[i] = mOffsets[slot];
+            sizes[i] = mSizes[slot];
+            flags[i] = mFlags[slot];
+            timesUs[i] = mTimesUs[slot];
+        }
+        mTypes = types;
+        mIndices = indices;
+        mOffsets = offsets;
+        mSizes = sizes;
+        mFlags = flags;
+        mTimesUs = timesUs;
+        mHead = 0;
+    }
+
+    /**
+     * Takes the oldest event, waiting up to timeoutUs for one to arrive.
+     *
+     * @param info filled in for {@link #EVENT_OUTPUT}
+     * @return the event type, or {@link #EVENT_NONE} on timeout or after {@link #wake()}
+     */
+    int nextEvent(MediaCodec.BufferInfo info, long timeoutUs) throws InterruptedException {
+        synchronized (mLock) {
+            long deadline = System.nanoTime() + timeoutUs * 1000;
+            while (mCount == 0 && !mWakeRequested) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return EVENT_NONE;
+                mLock.wait(remaining / 1000000, (int) (remaining % 1000000));
+            }
+            mWakeRequested = false;
+            if (mCount == 0)
+                return EVENT_NONE;
+            int slot = mHead;
+            mHead = (mHead + 1) % mTypes.length;
+            mCount--;
+            mEventIndex = mIndices[slot];
+            if (mTypes[slot] == EVENT_OUTPUT) {
+                // field by field: BufferInfo.set() is a no-op on the mockable android.jar
+                info.offset = mOffsets[slot];
+                info.size = mSizes[slot];
+                info.presentationTimeUs = mTimesUs[slot];
+                info.flags = mFlags[slot];
+            }
+            return mTypes[slot];
+        }
+    }
+
+    /**
+     * @return buffer index of the event last returned by {@link #nextEvent}
+     */
+    int eventIndex() {
+        synchronized (mLock) {
+            return mEventIndex;
+        }
+    }
+
+    Exception getError() {
+        synchronized (mLock) {
+            return mError;
+        }
+    }
+
+    void holdInput(int index) {
+        synchronized (mLock) {
+            if (mHeldCount == mHeldInputs.length) {
+                int[] held = new int[mHeldInputs.length * 2];
+                System.arraycopy(mHeldInputs, 0, held, 0, mHeldCount);
+                mHeldInputs = held;
+            }
+            mHeldInputs[mHeldCount++] = index;
+        }
+    }
+
+    /**
+     * @return a parked input buffer index, or -1 when there is none
+     */
+    int pollHeldInput() {
+        synchronized (mLock) {
+            if (mHeldCount == 0)
+                return -1;
+            int index = mHeldInputs[0];
+            mHeldCount--;
+            System.arraycopy(mHeldInputs, 1, mHeldInputs, 0, mHeldCount);
+            return index;
+        }
+    }
+
+    /**
+     * Makes a waiting {@link #nextEvent} return so the decoder re-reads its state.
+     */
+    void wake() {
+        synchronized (mLock) {
+            mWakeRequested = true;
+            mLock.notify();
+        }
+    }
+
+    /**
+     * Drops every pending event and parked buffer; call before the codec is (re)started.
+     */
+    void clear() {
+        synchronized (mLock) {
+            mHead = mCount = mHeldCount = 0;
+            mEventIndex = -1;
+            mWakeRequested = false;
+            mError = null;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Decoders kept for reuse, so that opening a player doesn't have to create one when a
+ * decoder of the same kind was handed back recently.
+ * <p>
+ * Codecs are pooled by backend, mime type and resolution class: a codec created for 1080p
+ * video is only lent out again for video of that class. A codec handed back is stopped
+ * and the next borrower configures it. Up to maxIdle codecs are kept. Whenever there are
+ * more, or the backend fails to create a codec because the platform's limit on instances
+ * is reached, the idle codec handed back the longest ago is released, whatever its kind,
+ * so no kind of codec can hold on to every slot.
+ * <p>
+ * Pass the pool to
+ * {@link MoviePlayer#MoviePlayer(java.io.File, Surface, MediaBackend, MediaIndexCache, CodecPool)};
+ * one instance can be shared by any number of players. Register it with
+ * {@code Context.registerComponentCallbacks()} so that idle codecs are released when the
+ * system is low on memory.
+ */
+public class CodecPool implements ComponentCallbacks2 {
+    private static final String TAG = "CodecPool";
+    public static final int DEFAULT_MAX_IDLE = 4;
+    // how long to wait for a player that is being released to hand its codecs back
+    private static final long HANDBACK_TIMEOUT_MS = 500;
+    // largest frame, in pixels, of each resolution class
+    private static final int[] RESOLUTION_CLASSES = {720 * 576, 1280 * 720, 1920 * 1088, 4096 * 2304};
+
+    private final int mMaxIdle;
+    // the codec handed back the longest ago first
+    private final ArrayList<Entry> mIdle = new ArrayList<>();
+    private int mCreated = 0;
+    private int mReused = 0;
+    private int mEvicted = 0;
+    private int mLent = 0;
+
+    public CodecPool() {
+        this(DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * @param maxIdle codecs kept while no player uses them
+     */
+    public CodecPool(int maxIdle) {
+        if (maxIdle < 0) throw new IllegalArgumentException("maxIdle must not be negative: " + maxIdle);
+        mMaxIdle = maxIdle;
+    }
+
+    public int getMaxIdle() {
+        return mMaxIdle;
+    }
+
+    public synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+    /**
+     * @return codecs created because none of the kind asked for was idle
+     */
+    public synchronized int getCreatedCount() {
+        return mCreated;
+    }
+
+    /**
+     * @return codecs lent out again
+     */
+    public synchronized int getReusedCount() {
+        return mReused;
+    }
+
+    /**
+     * @return idle codecs released to stay within maxIdle or to make room for a new one
+     */
+    public synchronized int getEvictedCount() {
+        return mEvicted;
+    }
+
+    /**
+     * Lends a codec that isn't configured yet for decoding format; releasing it hands it
+     * back to the pool.
+     */
+    Codec acquire(MediaBackend backend, TrackFormat format) throws IOException {
+        String mime = format.getMime();
+        int resolutionClass = resolutionClass(format);
+        Codec codec = null;
+        synchronized (this) {
+            for (int i = mIdle.size() - 1; i >= 0; i--) {
+                Entry entry = mIdle.get(i);
+                if (entry.backend == backend && entry.resolutionClass == resolutionClass && entry.mime.equals(mime)) {
+                    mIdle.remove(i);
+                    codec = entry.codec;
+                    mReused++;
+                    break;
+                }
+            }
+        }
+        if (codec == null)
+            codec = create(backend, mime);
+        synchronized (this) {
+            mLent++;
+        }
+        return new PooledCodec(new Entry(backend, mime, resolutionClass, codec));
+    }
+
+    private Codec create(MediaBackend backend, String mime) throws IOException {
+        long deadline = System.currentTimeMillis() + HANDBACK_TIMEOUT_MS;
+        while (true) {
+            try {
+                Codec codec = backend.createDecoder(mime);
+                synchronized (this) {
+                    mCreated++;
+                }
+                return codec;
+            } catch (IOException | RuntimeException e) {
+                // most likely out of codec instances; idle ones are the first to go
+                if (evictOldest()) {
+                    Log.d(TAG, "released an idle codec to make room for " + mime);
+                } else if (!awaitHandBack(deadline)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a lent codec to come back. A player releases its codecs on its decoding
+     * threads, so they may still be on their way when the next player is opened.
+     *
+     * @return false if none came back before the deadline
+     */
+    private synchronized boolean awaitHandBack(long deadline) {
+        int lent = mLent;
+        while (mIdle.isEmpty() && mLent >= lent) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (lent == 0 || remaining <= 0)
+                return false;
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if there was no idle codec to release
+     */
+    private boolean evictOldest() {
+        Entry entry;
+        synchronized (this) {
+            if (mIdle.isEmpty())
+                return false;
+            entry = mIdle.remove(0);
+            mEvicted++;
+        }
+        entry.codec.release();
+        return true;
+    }
+
+    /**
+     * @param stop          true if the codec is still configured
+     * @param clearCallback true if the codec was switched to asynchronous mode; the next
+     *                      borrower may poll
+     */
+    private void giveBack(Entry entry, boolean stop, boolean clearCallback) {
+        try {
+            if (stop)
+                entry.codec.stop();
+            if (clearCallback)
+                entry.codec.setCallback(null);
+        } catch (IllegalStateException e) {
+            // in no state to be reused
+            entry.codec.release();
+            onReturned();
+            return;
+        }
+        Entry evicted = entry;
+        synchronized (this) {
+            if (mMaxIdle > 0) {
+                mIdle.add(entry);
+                evicted = mIdle.size() > mMaxIdle ? mIdle.remove(0) : null;
+            }
+            if (evicted != null)
+                mEvicted++;
+        }
+        if (evicted != null)
+            evicted.codec.release();
+        onReturned();
+    }
+
+    private synchronized void onReturned() {
+        mLent--;
+        notifyAll();
+    }
+
+    /**
+     * Releases every idle codec.
+     */
+    public void clear() {
+        while (evictOldest()) {
+        }
+    }
+
+    static int resolutionClass(TrackFormat format) {
+        if (!format.isVideo())
+            return 0;
+        long pixels = (long) format.getWidth() * format.getHeight();
+        for (int i = 0; i < RESOLUTION_CLASSES.length; i++) {
+            if (pixels <= RESOLUTION_CLASSES[i])
+                return i + 1;
+        }
+        return RESOLUTION_CLASSES.length + 1;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_RUNNING_CRITICAL)
+            clear();
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    private static final class Entry {
+        final MediaBackend backend;
+        final String mime;
+        final int resolutionClass;
+        final Codec codec;
+
+        Entry(MediaBackend backend, String mime, int resolutionClass, Codec codec) {
+            this.backend = backend;
+            this.mime = mime;
+            this.resolutionClass = resolutionClass;
+            this.codec = codec;
+        }
+    }
+
+    /**
+     * A borrowed codec; {@link #release()} hands it back instead of releasing it.
+     */
+    private final class PooledCodec implements Codec {
+        private Entry mEntry;
+        private boolean mConfigured = false;
+        private boolean mCallbackSet = false;
+
+        PooledCodec(Entry entry) {
+            mEntry = entry;
+        }
+
+        private Codec codec() {
+            Entry entry = mEntry;
+            if (entry == null)
+                throw new IllegalStateException("codec was handed back to the pool");
+            return entry.codec;
+        }
+
+        @Override
+        public boolean isCallbackSupported() {
+            return codec().isCallbackSupported();
+        }
+
+        @Override
+        public void setCallback(Callback callback) {
+            codec().setCallback(callback);
+            mCallbackSet = callback != null;
+        }
+
+        @Override
+        public void configure(TrackFormat format, Surface surface) {
+            codec().configure(format, surface);
+            mConfigured = true;
+        }
+
+        @Override
+        public void start() {
+            codec().start();
+        }
+
+        @Override
+        public void stop() {
+            codec().stop();
+            mConfigured = false;
+        }
+
+        @Override
+        public void flush() {
+            codec().flush();
+        }
+
+        @Override
+        public synchronized void release() {
+            if (mEntry == null)
+                return;
+            Entry entry = mEntry;
+            mEntry = null;
+            giveBack(entry, mConfigured, mCallbackSet);
+        }
+
+        @Override
+        public int dequeueInputBuffer(long timeoutUs) {
+            return codec().dequeueInputBuffer(timeoutUs);
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return codec().getInputBuffer(index);
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+            codec().queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+        }
+
+        @Override
+        public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+            return codec().dequeueOutputBuffer(info, timeoutUs);
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return codec().getOutputBuffer(index);
+        }
+
+        @Override
+        public Image getOutputImage(int index) {
+            return codec().getOutputImage(index);
+        }
+
+        @Override
+        public TrackFormat getOutputFormat() {
+            return codec().getOutputFormat();
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index, boolean render) {
+            codec().releaseOutputBuffer(index, render);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.media.MediaMetadataRetriever;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * Media a {@link MoviePlayer} plays: a file, a range of an open file descriptor or, from
+ * API 23, a {@link MediaDataSource}.
+ * <p>
+ * Every demuxer and metadata retriever of a player opens the same source, so content from a
+ * ContentResolver plays through its descriptor without being copied into a file first.
+ * {@link MappedDataSource} maps a file once for all of them.
+ */
+public abstract class DataSource {
+
+    DataSource() {
+    }
+
+    public static DataSource fromFile(File file) {
+        return new FileSource(file);
+    }
+
+    /**
+     * The descriptor stays owned by the caller and must stay open until the players using
+     * it are released; each demuxer reads through a duplicate of it.
+     *
+     * @param offset where the media starts
+     * @param length length of the media in bytes, or a negative value for the rest of the
+     *               file, like {@link android.content.res.AssetFileDescriptor#UNKNOWN_LENGTH}
+     */
+    public static DataSource fromFileDescriptor(FileDescriptor fd, long offset, long length) {
+        // the length MediaExtractor.setDataSource(FileDescriptor) passes for a whole file
+        return new FileDescriptorSource(fd, offset, length >= 0 ? length : 0x7ffffffffffffffL);
+    }
+
+    /**
+     * The platform calls {@link MediaDataSource#close()} whenever one of the player's
+     * demuxers is released, so the source has to keep answering reads until the player is.
+     */
+    public static DataSource fromMediaDataSource(MediaDataSource source) {
+        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.M)
+            throw new UnsupportedOperationException("MediaDataSource needs API 23");
+        return new CallbackSource(source);
+    }
+
+    abstract void applyTo(MediaExtractor extractor) throws IOException;
+
+    abstract void applyTo(MediaMetadataRetriever retriever);
+
+    /**
+     * @return a key that changes with the content, for {@link MediaIndexCache}, or null
+     * when the source has none
+     */
+    String getIdentity() {
+        return null;
+    }
+
+    static String fileIdentity(File file) {
+        return file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified();
+    }
+
+    static class FileSource extends DataSource {
+        private final File mFile;
+
+        FileSource(File file) {
+            mFile = file;
+        }
+
+        @Override
+        void applyTo(MediaExtractor extractor) throws IOException {
+            extractor.setDataSource(mFile.toString());
+        }
+
+        @Override
+        void applyTo(MediaMetadataRetriever retriever) {
+            retriever.setDataSource(mFile.toString());
+        }
+
+        @Override
+        String getIdentity() {
+            return fileIdentity(mFile);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FileSource && ((FileSource) o).mFile.equals(mFile);
+        }
+
+        @Override
+        public int hashCode() {
+            return mFile.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return mFile.toString();
+        }
+    }
+
+    static class FileDescriptorSource extends DataSource {
+        private final FileDescriptor mFd;
+        private final long mOffset;
+        private final long mLength;
+
+        FileDescriptorSource(FileDescriptor fd, long offset, long length) {
+            mFd = fd;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override
+        void applyTo(MediaExtractor extractor) throws IOException {
+            extractor.setDataSource(mFd, mOffset, mLength);
+        }
+
+        @Override
+        void applyTo(MediaMetadataRetriever retriever) {
+            retriever.setDataSource(mFd, mOffset, mLength);
+        }
+
+        @Override
+        String getIdentity() {
+            // the inode, size and modification time of what the descriptor points at;
+            // fstat is API 21
+            if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.LOLLIPOP)
+                return null;
+            try {
+                StructStat stat = Os.fstat(mFd);
+                return "fd|" + stat.st_dev + '|' + stat.st_ino + '|' + stat.st_size + '|' + stat.st_mtime
+                        + '|' + mOffset + '|' + mLength;
+            } catch (ErrnoException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "fd " + mFd + " at " + mOffset + "+" + mLength;
+        }
+    }
+
+    static class CallbackSource extends DataSource {
+        private final MediaDataSource mSource;
+
+        CallbackSource(MediaDataSource source) {
+            mSource = source;
+        }
+
+        @Override
+        void applyTo(MediaExtractor extractor) throws IOException {
+            extractor.setDataSource(mSource);
+        }
+
+        @Override
+        void applyTo(MediaMetadataRetriever retriever) {
+            retriever.setDataSource(mSource);
+        }
+
+        @Override
+        public String toString() {
+            return mSource.toString();
+        }
+    }
+}
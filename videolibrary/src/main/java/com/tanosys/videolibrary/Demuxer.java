@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Container reader used by {@link MediaDecoder}.
+ * <p>
+ * Mirrors the subset of {@link android.media.MediaExtractor} the player relies on, once
+ * {@link MediaBackend#createDemuxer} has opened it. Seek modes and sample flags use the
+ * MediaExtractor constants.
+ */
+public interface Demuxer {
+    int getTrackCount();
+
+    TrackFormat getTrackFormat(int index);
+
+    void selectTrack(int index);
+
+    void seekTo(long timeUs, int mode);
+
+    /**
+     * Reads the current sample into {@code buffer} starting at {@code offset}.
+     *
+     * @return the sample size in bytes, or -1 when no more samples are available
+     */
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    /**
+     * @return presentation time of the current sample in microseconds, or -1 at the end of stream
+     */
+    long getSampleTime();
+
+    int getSampleFlags();
+
+    /**
+     * @return index of the track the current sample belongs to, or -1 at the end of stream
+     */
+    int getSampleTrackIndex();
+
+    /**
+     * @return false when there are no more samples
+     */
+    boolean advance();
+
+    void release();
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.graphics.Bitmap;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Draws bitmaps on a surface through an EGL window surface, for {@link ReversePlayback}.
+ * <p>
+ * Locking a Canvas would leave the surface connected to the app as its producer for good,
+ * and no codec could be configured with it after reverse playback. Destroying the EGL
+ * window surface in {@link #release()} disconnects it again. The renderer belongs to the
+ * thread that creates it, which must also draw and release.
+ */
+class FrameRenderer {
+    private static final String VERTEX_SHADER =
+            "attribute vec4 aPosition;\n" +
+            "attribute vec2 aTexCoord;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = aPosition;\n" +
+            "    vTexCoord = aTexCoord;\n" +
+            "}\n";
+    private static final String FRAGMENT_SHADER =
+            "precision mediump float;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "uniform sampler2D sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTexCoord);\n" +
+            "}\n";
+    // a triangle strip over the whole surface: bottom left, bottom right, top left, top right
+    private static final float[] POSITIONS = {-1, -1, 1, -1, -1, 1, 1, 1};
+    // bitmap corners clockwise from the top left, which is where the texture starts
+    private static final float[] CORNERS = {0, 0, 1, 0, 1, 1, 0, 1};
+    // which of CORNERS each strip vertex shows when the frame is upright
+    private static final int[] STRIP_CORNERS = {3, 2, 0, 1};
+
+    private EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext mContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface mEglSurface = EGL14.EGL_NO_SURFACE;
+    private final int[] mValues = new int[1];
+    private final FloatBuffer mPositions;
+    private final FloatBuffer mTexCoords;
+    private int mProgram;
+    private int mTexture;
+    private int mTextureWidth;
+    private int mTextureHeight;
+
+    /**
+     * Connects to surface and makes the renderer current on the calling thread.
+     *
+     * @param rotation clockwise degrees the frames are turned by to be upright
+     * @throws RuntimeException if EGL can't draw on surface
+     */
+    FrameRenderer(Surface surface, int rotation) {
+        mPositions = floatBuffer(POSITIONS);
+        // turning the picture clockwise moves each corner one place on per quarter turn
+        int quarterTurns = ((rotation / 90) % 4 + 4) % 4;
+        float[] texCoords = new float[POSITIONS.length];
+        for (int i = 0; i < STRIP_CORNERS.length; i++) {
+            int corner = (STRIP_CORNERS[i] - quarterTurns + 4) % 4;
+            texCoords[i * 2] = CORNERS[corner * 2];
+            texCoords[i * 2 + 1] = CORNERS[corner * 2 + 1];
+        }
+        mTexCoords = floatBuffer(texCoords);
+        boolean ready = false;
+        try {
+            setUp(surface);
+            ready = true;
+        } finally {
+            if (!ready)
+                release();
+        }
+    }
+
+    private void setUp(Surface surface) {
+        mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (mDisplay == EGL14.EGL_NO_DISPLAY || !EGL14.eglInitialize(mDisplay, version, 0, version, 1))
+            throw eglError("eglInitialize");
+        int[] configAttributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_WINDOW_BIT,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        if (!EGL14.eglChooseConfig(mDisplay, configAttributes, 0, configs, 0, 1, mValues, 0) || mValues[0] < 1)
+            throw eglError("eglChooseConfig");
+        int[] contextAttributes = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE};
+        mContext = EGL14.eglCreateContext(mDisplay, configs[0], EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+        if (mContext == null || mContext == EGL14.EGL_NO_CONTEXT) {
+            mContext = EGL14.EGL_NO_CONTEXT;
+            throw eglError("eglCreateContext");
+        }
+        mEglSurface = EGL14.eglCreateWindowSurface(mDisplay, configs[0], surface, new int[]{EGL14.EGL_NONE}, 0);
+        if (mEglSurface == null || mEglSurface == EGL14.EGL_NO_SURFACE) {
+            mEglSurface = EGL14.EGL_NO_SURFACE;
+            throw eglError("eglCreateWindowSurface");
+        }
+        if (!EGL14.eglMakeCurrent(mDisplay, mEglSurface, mEglSurface, mContext))
+            throw eglError("eglMakeCurrent");
+
+        mProgram = GLES20.glCreateProgram();
+        int vertexShader = compile(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragmentShader = compile(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+        GLES20.glAttachShader(mProgram, vertexShader);
+        GLES20.glAttachShader(mProgram, fragmentShader);
+        GLES20.glLinkProgram(mProgram);
+        // flagged for deletion with the program
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+        GLES20.glGetProgramiv(mProgram, GLES20.GL_LINK_STATUS, mValues, 0);
+        if (mValues[0] == 0)
+            throw new RuntimeException("can't link program: " + GLES20.glGetProgramInfoLog(mProgram));
+        GLES20.glUseProgram(mProgram);
+        int position = GLES20.glGetAttribLocation(mProgram, "aPosition");
+        GLES20.glEnableVertexAttribArray(position);
+        GLES20.glVertexAttribPointer(position, 2, GLES20.GL_FLOAT, false, 0, mPositions);
+        int texCoord = GLES20.glGetAttribLocation(mProgram, "aTexCoord");
+        GLES20.glEnableVertexAttribArray(texCoord);
+        GLES20.glVertexAttribPointer(texCoord, 2, GLES20.GL_FLOAT, false, 0, mTexCoords);
+        GLES20.glUniform1i(GLES20.glGetUniformLocation(mProgram, "sTexture"), 0);
+
+        GLES20.glGenTextures(1, mValues, 0);
+        mTexture = mValues[0];
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        // needed for textures whose size isn't a power of two
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    }
+
+    private int compile(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, mValues, 0);
+        if (mValues[0] == 0) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new RuntimeException("can't compile shader: " + log);
+        }
+        return shader;
+    }
+
+    /**
+     * Stretches bitmap over the whole surface, turned upright, and shows it.
+     *
+     * @return false if the surface is gone
+     */
+    boolean draw(Bitmap bitmap) {
+        EGL14.eglQuerySurface(mDisplay, mEglSurface, EGL14.EGL_WIDTH, mValues, 0);
+        int width = mValues[0];
+        EGL14.eglQuerySurface(mDisplay, mEglSurface, EGL14.EGL_HEIGHT, mValues, 0);
+        GLES20.glViewport(0, 0, width, mValues[0]);
+        if (bitmap.getWidth() != mTextureWidth || bitmap.getHeight() != mTextureHeight) {
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+            mTextureWidth = bitmap.getWidth();
+            mTextureHeight = bitmap.getHeight();
+        } else {
+            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, bitmap);
+        }
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        return EGL14.eglSwapBuffers(mDisplay, mEglSurface);
+    }
+
+    /**
+     * Frees the GL objects and disconnects from the surface. The default display stays
+     * initialized, as other code in the process may share it.
+     */
+    void release() {
+        if (mDisplay == EGL14.EGL_NO_DISPLAY)
+            return;
+        if (mContext != EGL14.EGL_NO_CONTEXT && mEglSurface != EGL14.EGL_NO_SURFACE
+                && EGL14.eglMakeCurrent(mDisplay, mEglSurface, mEglSurface, mContext)) {
+            if (mTexture != 0) {
+                mValues[0] = mTexture;
+                GLES20.glDeleteTextures(1, mValues, 0);
+            }
+            if (mProgram != 0)
+                GLES20.glDeleteProgram(mProgram);
+        }
+        EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        if (mEglSurface != EGL14.EGL_NO_SURFACE)
+            EGL14.eglDestroySurface(mDisplay, mEglSurface);
+        if (mContext != EGL14.EGL_NO_CONTEXT)
+            EGL14.eglDestroyContext(mDisplay, mContext);
+        EGL14.eglReleaseThread();
+        mEglSurface = EGL14.EGL_NO_SURFACE;
+        mContext = EGL14.EGL_NO_CONTEXT;
+        mDisplay = EGL14.EGL_NO_DISPLAY;
+        mTexture = 0;
+        mProgram = 0;
+    }
+
+    private static RuntimeException eglError(String call) {
+        return new RuntimeException(call + " failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+    }
+
+    private static FloatBuffer floatBuffer(float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buffer.put(values).position(0);
+        return buffer;
+    }
+}
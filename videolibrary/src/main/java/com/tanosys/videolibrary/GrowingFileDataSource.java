@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.media.MediaMetadataRetriever;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The file of a {@link MediaIngest} while it is being written; reads past what has been
+ * copied wait for the copy. Needs API 23.
+ * <p>
+ * It has no identity for {@link MediaIndexCache}: the file changes until it is complete.
+ */
+class GrowingFileDataSource extends DataSource {
+    private final MediaIngest mIngest;
+
+    GrowingFileDataSource(MediaIngest ingest) {
+        mIngest = ingest;
+    }
+
+    @Override
+    void applyTo(MediaExtractor extractor) throws IOException {
+        extractor.setDataSource(new Reader());
+    }
+
+    @Override
+    void applyTo(MediaMetadataRetriever retriever) {
+        retriever.setDataSource(new Reader());
+    }
+
+    @Override
+    public String toString() {
+        return mIngest.getFile().toString();
+    }
+
+    /**
+     * Reads of one demuxer, through a file of its own that the platform closes with the
+     * demuxer.
+     */
+    private class Reader extends MediaDataSource {
+        private RandomAccessFile mFile;
+        private FileChannel mChannel;
+
+        @Override
+        public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+            long available = mIngest.awaitBytes(position + size);
+            if (position >= available)
+                return -1;
+            if (mChannel == null) {
+                mFile = new RandomAccessFile(mIngest.getFile(), "r");
+                mChannel = mFile.getChannel();
+            }
+            ByteBuffer dst = ByteBuffer.wrap(buffer, offset, (int) Math.min(size, available - position));
+            while (dst.hasRemaining()) {
+                if (mChannel.read(dst, position + dst.position() - offset) < 0)
+                    break;
+            }
+            return dst.position() - offset;
+        }
+
+        @Override
+        public long getSize() {
+            return mIngest.getLength();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mFile != null) {
+                mFile.close();
+                mFile = null;
+                mChannel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.media.MediaExtractor;
+
+import java.util.Arrays;
+
+/**
+ * Presentation times of every sync sample in a video track, in ascending order.
+ */
+final class KeyframeIndex {
+    private final long[] mTimesUs;
+
+    KeyframeIndex(long[] timesUs) {
+        mTimesUs = timesUs;
+    }
+
+    /**
+     * Walks the selected track from sync sample to sync sample. Leaves the demuxer
+     * positioned at an arbitrary sample; seek it afterwards.
+     */
+    static KeyframeIndex build(Demuxer demuxer) {
+        long[] times = new long[64];
+        int count = 0;
+        demuxer.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long timeUs = demuxer.getSampleTime();
+        // SEEK_TO_NEXT_SYNC past the last sync sample either ends the track or lands on it again
+        while (timeUs >= 0 && (count == 0 || timeUs > times[count - 1])) {
+            if (count == times.length)
+                times = Arrays.copyOf(times, count * 2);
+            times[count++] = timeUs;
+            demuxer.seekTo(timeUs + 1, MediaExtractor.SEEK_TO_NEXT_SYNC);
+            timeUs = demuxer.getSampleTime();
+        }
+        return new KeyframeIndex(Arrays.copyOf(times, count));
+    }
+
+    /**
+     * @return the backing array; don't modify it
+     */
+    long[] getTimesUs() {
+        return mTimesUs;
+    }
+
+    int size() {
+        return mTimesUs.length;
+    }
+
+    long timeAt(int index) {
+        return mTimesUs[index];
+    }
+
+    /**
+     * @return index of the last sync sample at or before {@code timeUs}; 0 when the time is
+     * before the first one, -1 when the index is empty
+     */
+    int floorIndex(long timeUs) {
+        if (mTimesUs.length == 0)
+            return -1;
+        int i = Arrays.binarySearch(mTimesUs, timeUs);
+        return i >= 0 ? i : Math.max(-i - 2, 0);
+    }
+
+    /**
+     * @return time of the sync sample decoding has to start from to reach {@code timeUs}
+     */
+    long floor(long timeUs) {
+        int i = floorIndex(timeUs);
+        return i >= 0 ? mTimesUs[i] : 0;
+    }
+
+    /**
+     * @return time of the first sync sample at or after {@code timeUs}, or -1 when there is
+     * none
+     */
+    long ceiling(long timeUs) {
+        int i = Arrays.binarySearch(mTimesUs, timeUs);
+        if (i < 0)
+            i = -i - 1;
+        return i < mTimesUs.length ? mTimesUs[i] : -1;
+    }
+}
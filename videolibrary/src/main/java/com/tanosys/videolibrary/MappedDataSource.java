@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.media.MediaMetadataRetriever;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A memory-mapped file read by every demuxer of the players using it through
+ * {@link MediaDataSource}; needs API 23.
+ * <p>
+ * The file is mapped in 64MB windows as reading reaches them. Each demuxer keeps only the
+ * window it reads and the one it read before mapped, so a file of any size takes up a few
+ * windows of address space; the others go away when they are garbage collected. Each
+ * demuxer touches the pages ahead of where it reads sequentially, a page-aligned megabyte
+ * at a time, so page faults come in batches on the read-ahead thread instead of one at a
+ * time in every read. Close the source once its players are released.
+ */
+public class MappedDataSource extends DataSource implements Closeable {
+    private static final int PAGE_SIZE = 4096;
+    private static final long WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int READ_AHEAD = 1024 * 1024;
+
+    private final File mFile;
+    private final String mIdentity;
+    private final long mSize;
+    private FileChannel mChannel;
+
+    public MappedDataSource(File file) throws IOException {
+        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.M)
+            throw new UnsupportedOperationException("MediaDataSource needs API 23");
+        mFile = file;
+        mIdentity = fileIdentity(file);
+        mChannel = new RandomAccessFile(file, "r").getChannel();
+        mSize = mChannel.size();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    private synchronized MappedByteBuffer map(int index) throws IOException {
+        if (mChannel == null)
+            throw new IOException(mFile + " is closed");
+        long start = index * WINDOW_SIZE;
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, mSize - start));
+    }
+
+    @Override
+    void applyTo(MediaExtractor extractor) throws IOException {
+        extractor.setDataSource(new Reader());
+    }
+
+    @Override
+    void applyTo(MediaMetadataRetriever retriever) {
+        retriever.setDataSource(new Reader());
+    }
+
+    @Override
+    String getIdentity() {
+        return mIdentity;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mFile.toString();
+    }
+
+    /**
+     * Reads of one demuxer. The platform closes it when the demuxer is released, which
+     * drops its windows.
+     */
+    private class Reader extends MediaDataSource {
+        // the window read last and the one before; reads and read-ahead cross between them
+        private final ByteBuffer[] mViews = new ByteBuffer[2];
+        private final int[] mViewIndices = {-1, -1};
+        // pages from mTouchedFrom to mTouchedTo have been faulted in
+        private long mTouchedFrom = 0;
+        private long mTouchedTo = 0;
+        // written so that touching a page isn't optimized away
+        private int mTouched;
+
+        @Override
+        public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+            if (position >= mSize)
+                return -1;
+            size = (int) Math.min(size, mSize - position);
+            int read = 0;
+            while (read < size) {
+                long at = position + read;
+                ByteBuffer view = view((int) (at / WINDOW_SIZE));
+                view.position((int) (at % WINDOW_SIZE));
+                int count = Math.min(size - read, view.remaining());
+                view.get(buffer, offset + read, count);
+                read += count;
+            }
+            readAhead(position + size);
+            return size;
+        }
+
+        private ByteBuffer view(int index) throws IOException {
+            if (index != mViewIndices[0]) {
+                ByteBuffer view = index == mViewIndices[1] ? mViews[1] : map(index);
+                mViews[1] = mViews[0];
+                mViewIndices[1] = mViewIndices[0];
+                mViews[0] = view;
+                mViewIndices[0] = index;
+            }
+            return mViews[0];
+        }
+
+        private void readAhead(long end) throws IOException {
+            if (end < mTouchedFrom || end > mTouchedTo) {
+                // a seek; start over from the page it landed on
+                mTouchedFrom = mTouchedTo = end & ~(PAGE_SIZE - 1);
+            }
+            if (mTouchedTo - end >= READ_AHEAD / 2 || mTouchedTo >= mSize)
+                return;
+            long to = Math.min(mTouchedTo + READ_AHEAD, mSize);
+            int touched = mTouched;
+            for (long page = mTouchedTo; page < to; page += PAGE_SIZE) {
+                touched += view((int) (page / WINDOW_SIZE)).get((int) (page % WINDOW_SIZE));
+            }
+            mTouched = touched;
+            mTouchedTo = to;
+        }
+
+        @Override
+        public long getSize() {
+            return mSize;
+        }
+
+        @Override
+        public void close() {
+            mViews[0] = mViews[1] = null;
+            mViewIndices[0] = mViewIndices[1] = -1;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import java.io.IOException;
+
+/**
+ * Creates the demuxers, decoders and audio output a {@link MoviePlayer} plays through.
+ * <p>
+ * {@link AndroidMediaBackend} is used unless another backend is passed to the player.
+ * {@link SyntheticMediaBackend} runs on a plain JVM for benchmarking the player's scheduling.
+ */
+public interface MediaBackend {
+    /**
+     * @return a demuxer reading source, with no track selected
+     */
+    Demuxer createDemuxer(DataSource source) throws IOException;
+
+    Codec createDecoder(String mime) throws IOException;
+
+    /**
+     * @param format decoded audio track; sample rate and channel count are used
+     */
+    AudioSink createAudioSink(TrackFormat format);
+
+    /**
+     * @return duration of the media in milliseconds
+     */
+    long getDuration(DataSource source) throws IOException;
+
+    /**
+     * @return true when video decoders need an output surface to be configured
+     */
+    boolean rendersToSurface();
+}
@@ -20,14 +20,13 @@
 package com.tanosys.videolibrary;
 
 import android.media.MediaCodec;
-import android.media.MediaExtractor;
-import android.media.MediaFormat;
 import android.util.Log;
 
-import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.media.MediaExtractor.SEEK_TO_CLOSEST_SYNC;
 
@@ -37,6 +36,11 @@ import static android.media.MediaExtractor.SEEK_TO_CLOSEST_SYNC;
 
 public abstract class MediaDecoder {
     private static final int TIMEOUT_USEC = 10000;
+    // state changes wake the event wait explicitly; this only bounds a missed wake-up
+    private static final int EVENT_TIMEOUT_USEC = 100000;
+    private static final long RELEASE_TIMEOUT_MS = 500;
+    // the playback clock stalls and jumps with the audio head; look at it at least this often
+    private static final long CLOCK_WAIT_USEC = 10000;
     public static final int STATE_NO_TRACK_FOUND = -2;
     public static final int STATE_UNINITIALIZED = -1;
     public static final int STATE_INITIALIZED = 0;
@@ -52,45 +56,180 @@ public abstract class MediaDecoder {
     public static final int STATE_END_SEEK = 10;
     public static final int STATE_ERROR = 99;
 
-    protected boolean mIsSeeking = false;
+    protected static final long NO_PENDING_SEEK = Long.MIN_VALUE;
+
+    // written by seekTo() on the caller's thread, read by the seek thread without the lock
+    protected volatile boolean mIsSeeking = false;
     protected long mSeekTargetTime = -1;
+    /**
+     * Latest seek target not yet picked up by the seeking thread; newer requests overwrite
+     * older ones.
+     */
+    protected final AtomicLong mPendingSeekTime = new AtomicLong(NO_PENDING_SEEK);
 
-    public MediaExtractor getExtractor() {
+    public Demuxer getExtractor() {
         return mExtractor;
     }
 
-    protected MediaExtractor mExtractor = new MediaExtractor();
+    protected Demuxer mExtractor;
+
+    protected final DataSource mSource;
+
+    /**
+     * Looping gaplessly, the demuxer the next loop reads from, already at the start.
+     */
+    protected Demuxer mLoopExtractor;
+
+    /**
+     * Added to sample times while looping gaplessly, so the timeline the codec and the clock
+     * see keeps running from one loop into the next.
+     */
+    protected volatile long mLoopOffsetUs = 0;
+
+    // whether this run of the decoding thread loops by flushing the codec
+    private boolean mLoopGapless = false;
+
+    // TRANSITIONS[slot(from)] has bit slot(to) set when the decoder may move from one to the other
+    private static final int[] TRANSITIONS = new int[STATE_END_SEEK - STATE_NO_TRACK_FOUND + 1];
+
+    static {
+        allow(STATE_UNINITIALIZED, STATE_NO_TRACK_FOUND, STATE_INITIALIZED);
+        allow(STATE_INITIALIZED, STATE_PREPARED, STATE_SEEKING);
+        allow(STATE_PREPARED, STATE_INITIALIZED, STATE_PLAYING, STATE_SEEKING);
+        allow(STATE_STOPPED, STATE_INITIALIZED, STATE_PLAYING, STATE_SEEKING);
+        allow(STATE_PLAYING, STATE_INITIALIZED, STATE_REQUEST_STOP, STATE_REQUEST_SEEK,
+                STATE_REQUEST_CHANGE_RATE, STATE_WAITING_FOR_LOOP);
+        allow(STATE_REQUEST_STOP, STATE_INITIALIZED, STATE_STOPPED, STATE_REQUEST_SEEK, STATE_END_SEEK);
+        allow(STATE_REQUEST_SEEK, STATE_INITIALIZED, STATE_SEEKING);
+        allow(STATE_SEEKING, STATE_INITIALIZED, STATE_STOPPED, STATE_REQUEST_STOP);
+        allow(STATE_WAITING_FOR_LOOP, STATE_INITIALIZED, STATE_STOPPED, STATE_PLAYING, STATE_REQUEST_SEEK,
+                STATE_SEEKING, STATE_CHANGE_RATE);
+        allow(STATE_REQUEST_CHANGE_RATE, STATE_INITIALIZED, STATE_REQUEST_STOP, STATE_REQUEST_SEEK,
+                STATE_CHANGE_RATE);
+        allow(STATE_CHANGE_RATE, STATE_INITIALIZED, STATE_STOPPED, STATE_PLAYING, STATE_REQUEST_SEEK,
+                STATE_SEEKING);
+        allow(STATE_END_SEEK, STATE_INITIALIZED, STATE_STOPPED, STATE_REQUEST_SEEK, STATE_SEEKING);
+        // a decoder with a track can always be released; a missing track is final
+        for (int state = STATE_UNINITIALIZED; state <= STATE_END_SEEK; state++)
+            allow(state, STATE_UNINITIALIZED);
+    }
+
+    private static void allow(int from, int... to) {
+        for (int state : to)
+            TRANSITIONS[slot(from)] |= 1 << slot(state);
+    }
+
+    private static int slot(int state) {
+        return state - STATE_NO_TRACK_FOUND;
+    }
+
+    static boolean canTransition(int from, int to) {
+        return from != to && to >= STATE_NO_TRACK_FOUND && to <= STATE_END_SEEK
+                && (TRANSITIONS[slot(from)] & (1 << slot(to))) != 0;
+    }
 
     public int getState() {
-        return mState;
+        return mState.get();
     }
 
-    public void setState(int state) {
-        if (this.mState == STATE_NO_TRACK_FOUND)
-            return;
-        this.mState = state;
-        if (state == STATE_PLAYING) {
-            mLastPresentationTime = mExtractor.getSampleTime();
-            mLastSystemTime = (System.nanoTime() / 1000);
-            mStartTime = mLastSystemTime - (long) ((double) mLastPresentationTime / mWeakPlayer.get().getPlayRate());
+    /**
+     * Moves to state from whatever state the decoder is in, if the transition table allows it.
+     *
+     * @return false if the decoder was already in state or can't get there from where it is
+     */
+    public boolean setState(int state) {
+        for (; ; ) {
+            int from = mState.get();
+            if (!canTransition(from, state)) {
+                if (DEBUG) Log.d(TAG, TRACK_TYPE + " can't move from state " + from + " to " + state);
+                return false;
+            }
+            if (transition(from, state))
+                return true;
+        }
+    }
+
+    /**
+     * Moves from one state to another, failing if another thread has moved the decoder on
+     * meanwhile. Wakes this decoder's threads, and only this decoder's, to look at the new
+     * state.
+     */
+    protected boolean transition(int from, int to) {
+        if (!canTransition(from, to) || !mState.compareAndSet(from, to))
+            return false;
+        mEvents.wake();
+        synchronized (mDecoderSync) {
+            mDecoderSync.notifyAll();
         }
+        return true;
     }
 
-    protected int mState = STATE_UNINITIALIZED;
+    private final AtomicInteger mState = new AtomicInteger(STATE_UNINITIALIZED);
+
+    /**
+     * True from starting a decoding or seeking thread until that thread is done with the
+     * codec; a stop or seek it was asked for can't be acted on before then.
+     */
+    protected volatile boolean mDecoding = false;
 
-    private static final boolean DEBUG = true;    // TODO set false on release
+    private static final boolean DEBUG = false;
     private static final String TAG = "MediaDecoder";
 
     protected String TRACK_TYPE = "";
 
+    protected int mTraceTrack = Tracer.TRACK_NONE;
+
 
     public int getTrackIndex() {
         return mTrackIndex;
     }
 
+    long getLoopOffsetUs() {
+        return mLoopOffsetUs;
+    }
+
+    /**
+     * @return the selected track's duration, or -1 if there is no track or it isn't known
+     */
+    long getTrackDurationUs() {
+        if (getState() == STATE_NO_TRACK_FOUND || mTrackIndex < 0)
+            return -1;
+        TrackFormat format = mMediaIndex != null ? mMediaIndex.getTrackFormat(mTrackIndex) : mExtractor.getTrackFormat(mTrackIndex);
+        return format.getDurationUs();
+    }
+
     protected int mTrackIndex;
 
-    protected MediaCodec mMediaCodec;                // API >= 16(Android4.1.2)
+    /**
+     * Index loaded from a {@link MediaIndexCache}, or null when the file is probed directly.
+     */
+    protected MediaIndex mMediaIndex;
+
+    void setMediaIndex(MediaIndex mediaIndex) {
+        mMediaIndex = mediaIndex;
+    }
+
+    protected Codec mMediaCodec;
+
+    /**
+     * True when {@link #mMediaCodec} reports buffers through {@link #mEvents} instead of
+     * being polled.
+     */
+    protected boolean mUseCallback = false;
+
+    /**
+     * True while paused with {@link #mMediaCodec} left started, so resuming only has to
+     * flush it.
+     */
+    protected boolean mCodecWarm = false;
+
+    protected final CodecEventQueue mEvents = new CodecEventQueue();
+
+    /**
+     * Set when the codec reports an error; the decoding thread then releases the codec and
+     * the decoder waits in {@link #STATE_INITIALIZED} to be played or sought again.
+     */
+    protected volatile boolean mCodecFailed = false;
 
     protected WeakReference<MoviePlayer> mWeakPlayer;
 
@@ -112,12 +251,6 @@ public abstract class MediaDecoder {
 
     protected Object mDecoderSync = new Object();
 
-    protected long mStartTime = 0;
-
-    protected long mLastSystemTime = 0;
-
-    protected long mLastPresentationTime = 0;
-
     public long getPresentTimeStamp() {
         return mExtractor.getSampleTime();
     }
@@ -129,10 +262,37 @@ public abstract class MediaDecoder {
     private WeakReference<Thread> mDecodingThread;
 
 
-    public MediaDecoder(MoviePlayer moviePlayer, File sourceFile) throws IOException {
+    public MediaDecoder(MoviePlayer moviePlayer, DataSource source) throws IOException {
         if (moviePlayer == null) throw new NullPointerException("player is null");
         mWeakPlayer = new WeakReference<>(moviePlayer);
-        mExtractor.setDataSource(sourceFile.toString());
+        mSource = source;
+        mExtractor = moviePlayer.getDemuxer().newTrack();
+    }
+
+    /**
+     * @return false while the decoding thread won't read samples, so that seeks of the other
+     * track may move this one along
+     */
+    protected boolean readsDemuxer() {
+        return true;
+    }
+
+    protected static void setReading(Demuxer demuxer, boolean reading) {
+        if (demuxer instanceof SharedDemuxer.Track)
+            ((SharedDemuxer.Track) demuxer).setReading(reading);
+    }
+
+    protected Codec createCodec(TrackFormat format) throws IOException {
+        MoviePlayer player = mWeakPlayer.get();
+        CodecPool pool = player.getCodecPool();
+        Codec codec = pool != null ? pool.acquire(player.getBackend(), format)
+                : player.getBackend().createDecoder(format.getMime());
+        // reverse playback drives the codec from its own threads with the synchronous calls
+        mUseCallback = player.getDecodeMode() == MoviePlayer.DECODE_MODE_ASYNC && codec.isCallbackSupported()
+                && !player.isReverse();
+        if (mUseCallback)
+            codec.setCallback(mEvents);
+        return codec;
     }
 
 
@@ -140,10 +300,10 @@ public abstract class MediaDecoder {
         if (mWeakPlayer == null || mWeakPlayer.get() == null)
             return -1;
         // Select the first video track we find, ignore the rest.
-        int numTracks = mExtractor.getTrackCount();
+        int numTracks = mMediaIndex != null ? mMediaIndex.getTrackCount() : mExtractor.getTrackCount();
         for (int i = 0; i < numTracks; i++) {
-            MediaFormat format = mExtractor.getTrackFormat(i);
-            String mime = format.getString(MediaFormat.KEY_MIME);
+            TrackFormat format = mMediaIndex != null ? mMediaIndex.getTrackFormat(i) : mExtractor.getTrackFormat(i);
+            String mime = format.getMime();
             Log.d(TAG, "track: " + mime);
             if (mime.startsWith(TRACK_TYPE + "/")) {
                 Log.d(TAG, "Extractor selected track " + i + " (" + mime + "): " + format);
@@ -155,99 +315,197 @@ public abstract class MediaDecoder {
     }
 
     protected void prepare() throws IOException {
-        if (mState == STATE_NO_TRACK_FOUND)
+        if (getState() == STATE_NO_TRACK_FOUND)
             return;
-        Log.d(TAG, TRACK_TYPE + "'s state is " + mState);
-        if (mState > STATE_PREPARED) {
+        Log.d(TAG, TRACK_TYPE + "'s state is " + getState());
+        if (getState() > STATE_PREPARED && !mCodecWarm) {
             configure();
         }
     }
 
     void startPlaying() throws IOException, IllegalStateException {
-        if (mState == STATE_NO_TRACK_FOUND)
+        if (getState() == STATE_NO_TRACK_FOUND)
             return;
-        synchronized (mWeakPlayer.get().getSync()) {
-            mInputDone = mOutputDone = false;
-            prepare();
-            setState(STATE_PLAYING);
+        checkCanPlay();
+        mCodecFailed = false;
+        mInputDone = mOutputDone = false;
+        prepare();
+        mLoopOffsetUs = 0;
+        MoviePlayer player = mWeakPlayer.get();
+        mLoopGapless = player.isGaplessLooping() && !player.isTrickPlay() && !player.isReverse();
+        if (mLoopGapless)
+            prepareLoopExtractor();
+        if (!setState(STATE_PLAYING)) {
+            // released meanwhile; don't leave behind a codec prepare() may have created
+            releaseCodec();
+            throw new IllegalStateException(TRACK_TYPE + " can't play in state " + getState());
+        }
+        startCodec();
+        setReading(mExtractor, readsDemuxer());
+        startDecodingThread(mRunnable);
+        if (DEBUG) Log.v(TAG, "startPlaying");
+    }
+
+    /**
+     * @throws IllegalStateException if the decoder can't start playing from its state
+     */
+    protected void checkCanPlay() {
+        int state = getState();
+        if (state != STATE_INITIALIZED && !canTransition(state, STATE_PLAYING))
+            throw new IllegalStateException(TRACK_TYPE + " can't play in state " + state);
+    }
+
+    /**
+     * Runs runnable on a new thread that owns the codec until it clears {@link #mDecoding}.
+     */
+    protected void startDecodingThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, getClass().getSimpleName());
+        mDecodingThread = new WeakReference<>(thread);
+        mDecoding = true;
+        thread.start();
+    }
+
+    protected boolean isDecodingThreadAlive() {
+        Thread thread = mDecodingThread != null ? mDecodingThread.get() : null;
+        return thread != null && thread.isAlive();
+    }
+
+
+    /**
+     * Starts the configured codec, or flushes it if it was left started over a pause.
+     */
+    protected void startCodec() {
+        if (mCodecWarm) {
+            mCodecWarm = false;
+            flushCodec();
+        } else {
+            mEvents.clear();
             mMediaCodec.start();
-            Thread thread = new Thread(mRunnable, getClass().getSimpleName());
-            mDecodingThread = new WeakReference<>(thread);
-            thread.start();
-            if (DEBUG) Log.v(TAG, "startPlaying");
-            mWeakPlayer.get().getSync().notify();
         }
     }
 
+    /**
+     * @return true if pausing should leave the codec started
+     */
+    protected boolean keepsCodecWarm() {
+        return mWeakPlayer.get().isHotPause();
+    }
 
     /**
      * Release all releated objects
      */
     protected void requestStop() {
-        if (mState == STATE_NO_TRACK_FOUND)
-            return;
-        synchronized (mWeakPlayer.get().getSync()) {
-            setState(STATE_REQUEST_STOP);
+        // a track that has just reached its end is already stopped
+        if (setState(STATE_REQUEST_STOP) || setState(STATE_STOPPED))
             if (DEBUG) Log.v(TAG, "request stop");
-            mWeakPlayer.get().getSync().notify();
-        }
     }
 
     protected void requestSeek() {
-        if (mState == STATE_NO_TRACK_FOUND)
-            return;
-        synchronized (mWeakPlayer.get().getSync()) {
-            if (mState == STATE_SEEKING)
+        for (; ; ) {
+            int state = getState();
+            if (state == STATE_NO_TRACK_FOUND || state == STATE_SEEKING
+                    || state == STATE_REQUEST_SEEK && mDecoding)
                 return;
-            if (mDecodingThread != null && mDecodingThread.get() != null && mDecodingThread.get().isAlive()) {
-                setState(STATE_REQUEST_SEEK);
-                Log.v(TAG, "request seek");
+            // a running thread seeks once it has stopped the codec; a parked codec can seek now
+            if (state == STATE_PLAYING || state == STATE_REQUEST_STOP || state == STATE_REQUEST_CHANGE_RATE) {
+                if (transition(state, STATE_REQUEST_SEEK)) {
+                    Log.v(TAG, "request seek");
+                    return;
+                }
             } else {
                 try {
                     startSeeking();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
+                return;
             }
-            mWeakPlayer.get().getSync().notify();
         }
     }
 
     public void startSeeking() throws IOException {
         Log.d(TAG, TRACK_TYPE + "start seeking");
+        mCodecFailed = false;
+        mLoopOffsetUs = 0;
+    }
+
+    /**
+     * Opens the demuxer for the next loop, if there isn't one yet, and moves it to the start.
+     */
+    private void prepareLoopExtractor() throws IOException {
+        if (mLoopExtractor == null) {
+            Demuxer demuxer = mWeakPlayer.get().getLoopDemuxer().newTrack();
+            demuxer.selectTrack(mTrackIndex);
+            mLoopExtractor = demuxer;
+        }
+        mLoopExtractor.seekTo(0, SEEK_TO_CLOSEST_SYNC);
+    }
+
+    /**
+     * @return true if the end of stream just reached goes straight on into the next loop
+     */
+    protected boolean loopsGapless() {
+        return mLoopGapless && getState() == STATE_PLAYING && mWeakPlayer.get().isLooping();
+    }
+
+    /**
+     * Starts the next loop without stopping the codec: the demuxer already at the start
+     * takes over and the codec is flushed of the end of stream.
+     */
+    private void loopGapless() {
+        MoviePlayer player = mWeakPlayer.get();
+        Demuxer finished = mExtractor;
+        mExtractor = mLoopExtractor;
+        mLoopExtractor = finished;
+        setReading(finished, false);
+        setReading(mExtractor, true);
+        mLoopOffsetUs += player.getLoopDurationUs();
+        if (Tracer.ENABLED) Tracer.trace(Tracer.LOOPED, mTraceTrack, mLoopOffsetUs, 0);
+        flushCodec();
+        // ready for the loop after this one
+        mLoopExtractor.seekTo(0, SEEK_TO_CLOSEST_SYNC);
+        player.onLooped(this);
     }
 
     protected void stop() {
-        if (mState == STATE_NO_TRACK_FOUND)
+        if (getState() == STATE_NO_TRACK_FOUND)
             return;
-        synchronized (mWeakPlayer.get().getSync()) {
+        synchronized (mDecoderSync) {
             Log.d(TAG, TRACK_TYPE + " is requested to stop");
-            if (mDecodingThread != null && mDecodingThread.get() != null && mDecodingThread.get().isAlive()) {
+            if (mDecoding && isDecodingThreadAlive()) {
                 Log.d(TAG, TRACK_TYPE + "decoding thread is alive");
                 mDecodingThread.get().interrupt();
             } else {
                 releaseCodec();
             }
-            mWeakPlayer.get().getSync().notify();
         }
     }
 
     protected void releaseCodec() {
-        if (mState == STATE_NO_TRACK_FOUND)
+        if (getState() == STATE_NO_TRACK_FOUND)
             return;
-        if (mMediaCodec != null) {
-            try {
-                mState = STATE_INITIALIZED;
-                if (mExtractor != null)
-                    mExtractor.seekTo(mExtractor.getSampleTime(), SEEK_TO_CLOSEST_SYNC);
-                mMediaCodec.stop();
-                mMediaCodec.release();
-                mMediaCodec = null;
-                Log.d(TAG, TRACK_TYPE + " successfully released MediaCodec");
-            } catch (Exception e) {
-                Log.e(TAG, "failed releasing MediaCodec", e);
+        synchronized (mDecoderSync) {
+            if (mMediaCodec != null) {
+                try {
+                    // a released decoder stays released
+                    int state = getState();
+                    while (state != STATE_UNINITIALIZED && canTransition(state, STATE_INITIALIZED)
+                            && !transition(state, STATE_INITIALIZED))
+                        state = getState();
+                    mCodecWarm = false;
+                    if (mExtractor != null)
+                        mExtractor.seekTo(mExtractor.getSampleTime(), SEEK_TO_CLOSEST_SYNC);
+                    mMediaCodec.stop();
+                    mMediaCodec.release();
+                    mMediaCodec = null;
+                    Log.d(TAG, TRACK_TYPE + " successfully released MediaCodec");
+                } catch (Exception e) {
+                    Log.e(TAG, "failed releasing MediaCodec", e);
+                }
+                return;
             }
-        } else if (mState != STATE_UNINITIALIZED) {
+        }
+        if (getState() != STATE_UNINITIALIZED) {
             try {
                 prepare();
             } catch (IOException e) {
@@ -257,19 +515,32 @@ public abstract class MediaDecoder {
     }
 
     protected void release() {
-        if (mState == STATE_NO_TRACK_FOUND)
+        if (getState() == STATE_NO_TRACK_FOUND)
             return;
-        synchronized (mWeakPlayer.get().getSync()) {
-            setState(STATE_UNINITIALIZED);
-            mWeakPlayer.get().getSync().notify();
-        }
+        setState(STATE_UNINITIALIZED);
         stop();
-        synchronized (mWeakPlayer.get().getSync()) {
+        synchronized (mDecoderSync) {
+            // the decoding thread reads the extractor until it has released the codec
+            long deadline = System.currentTimeMillis() + RELEASE_TIMEOUT_MS;
+            while (mDecoding && isDecodingThreadAlive()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    break;
+                try {
+                    mDecoderSync.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
             if (mExtractor != null) {
                 mExtractor.release();
                 mExtractor = null;
             }
-            mWeakPlayer.get().getSync().notify();
+            if (mLoopExtractor != null) {
+                mLoopExtractor.release();
+                mLoopExtractor = null;
+            }
         }
     }
 
@@ -283,108 +554,214 @@ public abstract class MediaDecoder {
     protected final Runnable mRunnable = new Runnable() {
         @Override
         public void run() {
-            for (; mState == STATE_PLAYING && !mOutputDone; ) {
+            // held until the codec is released, so that a player dropped right after
+            // release() isn't collected under the thread
+            MoviePlayer player = mWeakPlayer.get();
+            if (player == null) {
+                mDecoding = false;
+                return;
+            }
+            for (; getState() == STATE_PLAYING && !mOutputDone; ) {
                 if (Thread.currentThread().isInterrupted())
                     break;
-                handleInput();
-                handleOutput();
+                step();
             }
+            setReading(mExtractor, false);
+            onDecodeLoopEnd();
             Log.d(TAG, TRACK_TYPE + " done io");
 
+            if (finishDecoding())
+                player.onStopped();
+        }
+    };
+
+    /**
+     * Leaves the codec the way the state the decoding loop ended in needs it, then moves on
+     * from that state. The codec is done with before the new state is published, so whoever
+     * sees it may start the codec again.
+     *
+     * @return false if the thread was interrupted and has released the codec
+     */
+    private boolean finishDecoding() {
+        int state = getState();
+        Log.d(TAG, TRACK_TYPE + " state is " + state);
+        synchronized (mDecoderSync) {
+            // stop() interrupts only while mDecoding is set, and releases the codec itself after
             if (Thread.currentThread().isInterrupted()) {
-                synchronized (mWeakPlayer.get().getSync()) {
-                    Log.d(TAG, "thread interrupted");
-                    releaseCodec();
-                    mWeakPlayer.get().getSync().notify();
-                }
-            } else {
-                synchronized (mWeakPlayer.get().getSync()) {
-                    mInputDone = mOutputDone = true;
-                    Log.d(TAG, TRACK_TYPE + " state is " + mState);
-                    if (mState == STATE_PLAYING) {
-                        setState(STATE_WAITING_FOR_LOOP);
-                        mExtractor.seekTo(0, SEEK_TO_CLOSEST_SYNC);
-                    } else if (mState == STATE_REQUEST_CHANGE_RATE) {
-                        setState(STATE_CHANGE_RATE);
-                    } else if (mState == STATE_REQUEST_STOP) {
-                        setState(STATE_STOPPED);
-                    } else if (mState == STATE_REQUEST_SEEK) {
-                        Log.d(TAG, TRACK_TYPE + "'s new state is " + mState);
-                    }
-                    mMediaCodec.stop();
-                    mWeakPlayer.get().getSync().notify();
-                }
-                mWeakPlayer.get().onStopped();
+                Log.d(TAG, "thread interrupted");
+                releaseCodec();
+                mDecoding = false;
+                mDecoderSync.notifyAll();
+                return false;
             }
+            if (mCodecFailed) {
+                releaseCodec();
+                mDecoding = false;
+                mDecoderSync.notifyAll();
+                return true;
+            }
+            mInputDone = mOutputDone = true;
+            if (state == STATE_PLAYING)
+                mExtractor.seekTo(0, SEEK_TO_CLOSEST_SYNC);
+            mCodecWarm = state == STATE_REQUEST_STOP && keepsCodecWarm();
+            if (!mCodecWarm)
+                mMediaCodec.stop();
+            mDecoding = false;
+            mDecoderSync.notifyAll();
         }
-    };
+        // a request that came in meanwhile decides where to go instead
+        for (; ; ) {
+            int next = state == STATE_PLAYING ? STATE_WAITING_FOR_LOOP
+                    : state == STATE_REQUEST_CHANGE_RATE ? STATE_CHANGE_RATE
+                    : state == STATE_REQUEST_STOP ? STATE_STOPPED
+                    : state;
+            if (next == state || transition(state, next))
+                return true;
+            state = getState();
+        }
+    }
+
+    /**
+     * Called on the decoding thread once playback stops stepping, before the codec is
+     * stopped or released.
+     */
+    protected void onDecodeLoopEnd() {
+    }
+
+    /**
+     * Moves at most one input and one output buffer through the codec.
+     */
+    protected void step() {
+        if (mUseCallback) {
+            handleEvents();
+        } else {
+            handleInput();
+            handleOutput();
+        }
+    }
+
+    private boolean movesBuffers() {
+        int state = getState();
+        return state == STATE_PLAYING || state == STATE_SEEKING;
+    }
+
+    protected boolean canQueueInput() {
+        return movesBuffers() && !mInputDone;
+    }
+
+    protected void handleEvents() {
+        int inputBufIndex;
+        while (canQueueInput() && (inputBufIndex = mEvents.pollHeldInput()) >= 0) {
+            mInputDone = input(inputBufIndex);
+        }
+        final int event;
+        try {
+            event = mEvents.nextEvent(mBufferInfo, EVENT_TIMEOUT_USEC);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        switch (event) {
+            case CodecEventQueue.EVENT_INPUT:
+                if (canQueueInput()) {
+                    mInputDone = input(mEvents.eventIndex());
+                } else {
+                    mEvents.holdInput(mEvents.eventIndex());
+                }
+                break;
+            case CodecEventQueue.EVENT_OUTPUT:
+                if (movesBuffers() && !mOutputDone)
+                    processOutput(mEvents.eventIndex());
+                else
+                    // nothing will dequeue it again; the codec only gets it back when released
+                    mMediaCodec.releaseOutputBuffer(mEvents.eventIndex(), false);
+                break;
+            case CodecEventQueue.EVENT_FORMAT_CHANGED:
+                processOutput(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED);
+                break;
+            case CodecEventQueue.EVENT_ERROR:
+                fail(mEvents.getError());
+                break;
+        }
+    }
+
+    /**
+     * Ends decoding after a codec error, the way the end of the stream would; the decoding
+     * thread releases the codec and tells the player.
+     */
+    protected void fail(Exception e) {
+        Log.e(TAG, TRACK_TYPE + " decoder failed", e);
+        mCodecFailed = true;
+        mInputDone = mOutputDone = true;
+    }
 
     protected void handleInput() {
-        if ((mState == STATE_PLAYING || mState == STATE_SEEKING) && !mInputDone) {
+        if (canQueueInput()) {
             final int inputBufIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
-            Log.d(TAG, TRACK_TYPE + "input status: " + inputBufIndex);
             if (inputBufIndex == MediaCodec.INFO_TRY_AGAIN_LATER)
                 return;
             mInputDone = input(inputBufIndex);
-            Log.d(TAG, TRACK_TYPE + "input done " + mInputDone);
         }
     }
 
     protected void handleOutput() {
-        Log.d(TAG, TRACK_TYPE + " handle output ");
-        if ((mState == STATE_PLAYING || mState == STATE_SEEKING) && !mOutputDone) {
+        if (movesBuffers() && !mOutputDone) {
             final int decoderStatus;
             try {
                 decoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
             } catch (IllegalStateException e) {
-                Log.d(TAG, "can't dequeue output buffer: " + e.getMessage());
+                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP
+                        && e instanceof MediaCodec.CodecException && !((MediaCodec.CodecException) e).isTransient())
+                    fail(e);
+                else if (DEBUG) Log.d(TAG, "can't dequeue output buffer: " + e.getMessage());
                 return;
             }
-            Log.d(TAG, TRACK_TYPE + " decoder status: " + decoderStatus);
-            if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-            } else if (decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                final MediaFormat newFormat = mMediaCodec.getOutputFormat();
-                if (DEBUG) Log.d(TAG, TRACK_TYPE + " decoder output format changed: " + newFormat);
-            } else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                if (DEBUG) Log.d(TAG, TRACK_TYPE + " decoder output buffer changed: ");
-            } else if (decoderStatus < 0) {
-                throw new RuntimeException(
-                        "unexpected result from " + TRACK_TYPE + " decoder.dequeueOutputBuffer: " + decoderStatus);
-            } else {
-                Log.d(TAG, TRACK_TYPE + " Out put");
-                output(decoderStatus, mBufferInfo);
-            }
-            if ((mBufferInfo.flags == MediaCodec.BUFFER_FLAG_END_OF_STREAM) && mState != STATE_SEEKING) {
-                Log.d(TAG, TRACK_TYPE + ":output EOS");
-                mBufferInfo = new MediaCodec.BufferInfo();
-                mOutputDone = true;
-                synchronized (mWeakPlayer.get().getSync()) {
-                    mWeakPlayer.get().getSync().notify();
-                }
+            processOutput(decoderStatus);
+        }
+    }
+
+    protected void processOutput(int decoderStatus) {
+        if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+        } else if (decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            if (Tracer.ENABLED) Tracer.trace(Tracer.OUTPUT_FORMAT_CHANGED, mTraceTrack, 0, 0);
+            if (DEBUG) Log.d(TAG, TRACK_TYPE + " decoder output format changed: " + mMediaCodec.getOutputFormat());
+        } else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            if (Tracer.ENABLED) Tracer.trace(Tracer.OUTPUT_BUFFERS_CHANGED, mTraceTrack, 0, 0);
+        } else if (decoderStatus < 0) {
+            throw new RuntimeException(
+                    "unexpected result from " + TRACK_TYPE + " decoder.dequeueOutputBuffer: " + decoderStatus);
+        } else {
+            if (Tracer.ENABLED)
+                Tracer.trace(Tracer.OUTPUT_BUFFER, mTraceTrack, mBufferInfo.presentationTimeUs, mBufferInfo.flags);
+            output(decoderStatus, mBufferInfo);
+        }
+        if ((mBufferInfo.flags == MediaCodec.BUFFER_FLAG_END_OF_STREAM) && getState() != STATE_SEEKING) {
+            if (Tracer.ENABLED) Tracer.trace(Tracer.OUTPUT_EOS, mTraceTrack, 0, 0);
+            mBufferInfo = new MediaCodec.BufferInfo();
+            if (loopsGapless()) {
+                loopGapless();
+                return;
             }
+            mOutputDone = true;
         }
     }
 
 
     protected boolean input(int inputBufIndex) {
         if (inputBufIndex >= 0) {
-            ByteBuffer inputBuf;
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-                inputBuf = mMediaCodec.getInputBuffer(inputBufIndex);
-            } else {
-                inputBuf = mMediaCodec.getInputBuffers()[inputBufIndex];
-            }
+            ByteBuffer inputBuf = mMediaCodec.getInputBuffer(inputBufIndex);
             int chunkSize = mExtractor.readSampleData(inputBuf, 0);
             if (chunkSize <= 0) {
-                if (mState != STATE_SEEKING) {
+                if (getState() != STATE_SEEKING) {
                     mMediaCodec.queueInputBuffer(inputBufIndex, 0, 0, 0L,
                             MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    Log.d(TAG, TRACK_TYPE + " sent input EOS");
+                    if (Tracer.ENABLED) Tracer.trace(Tracer.INPUT_EOS, mTraceTrack, inputBufIndex, 0);
                     return true;
                 } else {
                     synchronized (mDecoderSync) {
-                        mIsSeeking = false;
-                        Log.d(TAG, "no chunk available: " + mSeekTargetTime);
+                        mIsSeeking = mPendingSeekTime.get() != NO_PENDING_SEEK;
+                        if (Tracer.ENABLED)
+                            Tracer.trace(Tracer.INPUT_EMPTY_WHILE_SEEKING, mTraceTrack, mSeekTargetTime, 0);
                         mMediaCodec.queueInputBuffer(inputBufIndex, 0, 0, 0L,
                                 0);
                         mDecoderSync.notify();
@@ -393,51 +770,37 @@ public abstract class MediaDecoder {
                 }
             } else {
                 long presentationTimeUs = mExtractor.getSampleTime();
-                Log.d(TAG, TRACK_TYPE + " time:" + presentationTimeUs);
                 mMediaCodec.queueInputBuffer(inputBufIndex, 0, chunkSize,
-                        presentationTimeUs, 0 /*flags*/);
-                boolean b = !mExtractor.advance();
-                Log.d(TAG, TRACK_TYPE + " extractor advanced " + b);
-                return mState != STATE_SEEKING ? b : false;
-//                    Log.d(TAG, "submitted frame " + presentationTimeUs);
+                        presentationTimeUs + mLoopOffsetUs, 0 /*flags*/);
+                if (Tracer.ENABLED) Tracer.trace(Tracer.INPUT_QUEUED, mTraceTrack, presentationTimeUs, chunkSize);
+                boolean b = !advanceExtractor(presentationTimeUs);
+                return getState() != STATE_SEEKING ? b : false;
             }
         }
         return true;
     }
 
-//    protected MediaCodec.Callback mCallback = new MediaCodec.Callback() {
-//        @Override
-//        public void onInputBufferAvailable(@NonNull MediaCodec mediaCodec, int i) {
-//            if (mState == STATE_PLAYING) {
-//                if (mRequestedSeekTo > 0) {
-//                    mExtractor.seekTo(mRequestedSeekTo, SEEK_TO_CLOSEST_SYNC);
-//                    mRequestedSeekTo = -1;
-//                }
-//                if (input(i) || !mExtractor.advance()) {
-//                    mExtractor.seekTo(0, SEEK_TO_CLOSEST_SYNC);
-//                    setState(STATE_WAITING_FOR_LOOP);
-//                    mWeakPlayer.get().onStopped();
-//                }
-//            } else if (mState == STATE_REQUEST_STOP) {
-//                mWeakPlayer.get().onStopped();
-//            }
-//        }
-//
-//        @Override
-//        public void onOutputBufferAvailable(@NonNull MediaCodec mediaCodec, int i, @NonNull MediaCodec.BufferInfo bufferInfo) {
-//            output(i, bufferInfo);
-//        }
-//
-//        @Override
-//        public void onError(@NonNull MediaCodec mediaCodec, @NonNull MediaCodec.CodecException e) {
-//
-//        }
-//
-//        @Override
-//        public void onOutputFormatChanged(@NonNull MediaCodec mediaCodec, @NonNull MediaFormat mediaFormat) {
-//
-//        }
-//    };
+    /**
+     * Moves the extractor on from the sample just queued.
+     *
+     * @return false when there is nothing more to read
+     */
+    protected boolean advanceExtractor(long presentationTimeUs) {
+        return mExtractor.advance();
+    }
+
+    /**
+     * Drops every buffer queued to the codec.
+     */
+    protected void flushCodec() {
+        mMediaCodec.flush();
+        if (mUseCallback) {
+            // an asynchronous codec only resumes callbacks after start()
+            mEvents.clear();
+            mMediaCodec.start();
+        }
+        mInputDone = mOutputDone = false;
+    }
 
     protected int getFrameAvailable() {
         return 0;
@@ -448,67 +811,96 @@ public abstract class MediaDecoder {
     }
 
     protected void configure() {
-        MediaFormat format = mExtractor.getTrackFormat(mTrackIndex);
-        mMediaCodec.configure(format, null, null, 0);
-    }
-
-    protected long adjustPresentationTime(final long startTime, final long presentationTimeUs) {
-        if (startTime > 0) {
-            for (long t = presentationTimeUs - (System.nanoTime() / 1000 - startTime);
-                 t > 0; t = presentationTimeUs - (System.nanoTime() / 1000 - startTime)) {
-                synchronized (mDecoderSync) {
-                    try {
-                        mDecoderSync.wait(t / 1000, (int) ((t % 1000) * 1000));
-                    } catch (final InterruptedException e) {
-                        Log.d(TAG, "wait interrupted");
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
-                    if ((mState == STATE_REQUEST_STOP) || (mState == STATE_SEEKING) || (mState == STATE_CHANGE_RATE))
-                        break;
+        TrackFormat format = mExtractor.getTrackFormat(mTrackIndex);
+        mMediaCodec.configure(format, null);
+    }
+
+    /**
+     * Blocks until the player's {@link PlaybackClock} reaches presentationTimeUs, or the
+     * decoder is asked to stop or seek.
+     */
+    protected void waitForClock(final long presentationTimeUs) {
+        PlaybackClock clock = mWeakPlayer.get().getClock();
+        for (long t = untilClockReaches(clock, presentationTimeUs); t > 0; t = untilClockReaches(clock, presentationTimeUs)) {
+            long waitUs = Math.min((long) (t / Math.abs(clock.getRate())), CLOCK_WAIT_USEC);
+            if (waitUs <= 0)
+                continue;
+            synchronized (mDecoderSync) {
+                try {
+                    mDecoderSync.wait(waitUs / 1000, (int) ((waitUs % 1000) * 1000));
+                } catch (final InterruptedException e) {
+                    Log.d(TAG, "wait interrupted");
+                    Thread.currentThread().interrupt();
+                    break;
                 }
+                // a rate change still plays this frame on time
+                int state = getState();
+                if (state != STATE_PLAYING && state != STATE_REQUEST_CHANGE_RATE)
+                    break;
             }
-            return startTime;
-        } else {
-            return System.nanoTime() / 1000;
         }
     }
 
+    /**
+     * @return media time left before the clock reaches timeUs in the direction it runs
+     */
+    protected static long untilClockReaches(PlaybackClock clock, long timeUs) {
+        long t = timeUs - clock.getPositionUs();
+        return clock.getRate() < 0 ? -t : t;
+    }
+
     public void changePlayRate() {
-        if (mState == STATE_NO_TRACK_FOUND)
-            return;
-        mState = STATE_REQUEST_CHANGE_RATE;
+        if (!setState(STATE_REQUEST_CHANGE_RATE) && getState() == STATE_WAITING_FOR_LOOP)
+            setState(STATE_CHANGE_RATE);
     }
 
     public boolean isRequestingStateChange() {
-        return mState == STATE_REQUEST_STOP || mState == STATE_REQUEST_SEEK || mState == STATE_REQUEST_CHANGE_RATE || mState == STATE_WAITING_FOR_LOOP;
+        int state = getState();
+        return state == STATE_REQUEST_STOP || state == STATE_REQUEST_SEEK || state == STATE_REQUEST_CHANGE_RATE || state == STATE_WAITING_FOR_LOOP;
     }
 
     public boolean isPlaying() {
-        return mState == STATE_PLAYING || mState == STATE_NO_TRACK_FOUND;
+        return isIn(STATE_PLAYING);
     }
 
+    /**
+     * @return true if stopped, or back to {@link #STATE_INITIALIZED} after a codec error
+     */
     public boolean isStopped() {
-        return mState == STATE_STOPPED || mState == STATE_NO_TRACK_FOUND;
+        return isIn(STATE_STOPPED) || mCodecFailed && getState() == STATE_INITIALIZED;
+    }
+
+    public boolean hasFailed() {
+        return mCodecFailed;
     }
 
     public boolean isWaitingForLoop() {
-        return mState == STATE_WAITING_FOR_LOOP || mState == STATE_NO_TRACK_FOUND;
+        return isIn(STATE_WAITING_FOR_LOOP);
     }
 
     public boolean isChangeRate() {
-        return mState == STATE_CHANGE_RATE || mState == STATE_NO_TRACK_FOUND;
+        return isIn(STATE_CHANGE_RATE);
     }
 
+    /**
+     * @return true once a seek was asked for and the decoding thread is done with the codec,
+     * so the seek can start
+     */
     public boolean isRequestSeek() {
-        return mState == STATE_REQUEST_SEEK || mState == STATE_NO_TRACK_FOUND;
+        return isIn(STATE_REQUEST_SEEK) && !mDecoding;
     }
 
     public boolean isSeeking() {
-        return mState == STATE_SEEKING || mState == STATE_NO_TRACK_FOUND;
+        return isIn(STATE_SEEKING);
     }
 
     public boolean isEndSeek() {
-        return mState == STATE_END_SEEK || mState == STATE_NO_TRACK_FOUND;
+        return isIn(STATE_END_SEEK);
+    }
+
+    // a decoder without a track goes along with whatever the other one does
+    private boolean isIn(int state) {
+        int current = getState();
+        return current == state || current == STATE_NO_TRACK_FOUND;
     }
 }
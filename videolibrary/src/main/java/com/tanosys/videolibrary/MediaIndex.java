@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * What a {@link MoviePlayer} learns about a file before it can play it: duration, track
+ * formats and the video keyframe table. Persisted by {@link MediaIndexCache}.
+ */
+final class MediaIndex {
+    // 2 dropped the video sample sizes
+    private static final int VERSION = 2;
+
+    private final long mDurationMs;
+    private final TrackFormat[] mFormats;
+    private final long[] mKeyframeTimesUs;
+
+    MediaIndex(long durationMs, TrackFormat[] formats, long[] keyframeTimesUs) {
+        mDurationMs = durationMs;
+        mFormats = formats;
+        mKeyframeTimesUs = keyframeTimesUs;
+    }
+
+    long getDurationMs() {
+        return mDurationMs;
+    }
+
+    int getTrackCount() {
+        return mFormats.length;
+    }
+
+    TrackFormat getTrackFormat(int index) {
+        return mFormats[index];
+    }
+
+    KeyframeIndex getKeyframeIndex() {
+        return new KeyframeIndex(mKeyframeTimesUs);
+    }
+
+    static TrackFormat[] readFormats(Demuxer demuxer) {
+        TrackFormat[] formats = new TrackFormat[demuxer.getTrackCount()];
+        for (int i = 0; i < formats.length; i++) {
+            formats[i] = demuxer.getTrackFormat(i);
+        }
+        return formats;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeLong(mDurationMs);
+        out.writeInt(mFormats.length);
+        for (TrackFormat format : mFormats) {
+            out.writeUTF(format.getMime());
+            out.writeInt(format.getWidth());
+            out.writeInt(format.getHeight());
+            out.writeInt(format.getRotation());
+            out.writeInt(format.getSampleRate());
+            out.writeInt(format.getChannelCount());
+            out.writeInt(format.getMaxInputSize());
+            out.writeLong(format.getDurationUs());
+        }
+        out.writeInt(mKeyframeTimesUs.length);
+        for (long timeUs : mKeyframeTimesUs) {
+            out.writeLong(timeUs);
+        }
+    }
+
+    /**
+     * @throws IOException when the data is truncated or written by another version
+     */
+    static MediaIndex read(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("unsupported index version " + version);
+        long durationMs = in.readLong();
+        TrackFormat[] formats = new TrackFormat[in.readInt()];
+        for (int i = 0; i < formats.length; i++) {
+            TrackFormat format = new TrackFormat(in.readUTF());
+            format.setWidth(in.readInt());
+            format.setHeight(in.readInt());
+            format.setRotation(in.readInt());
+            format.setSampleRate(in.readInt());
+            format.setChannelCount(in.readInt());
+            format.setMaxInputSize(in.readInt());
+            format.setDurationUs(in.readLong());
+            formats[i] = format;
+        }
+        long[] keyframeTimesUs = new long[in.readInt()];
+        for (int i = 0; i < keyframeTimesUs.length; i++) {
+            keyframeTimesUs[i] = in.readLong();
+        }
+        return new MediaIndex(durationMs, formats, keyframeTimesUs);
+    }
+}
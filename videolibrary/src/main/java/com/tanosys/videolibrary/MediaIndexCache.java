@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Keeps the {@link MediaIndex} of recently played files on disk, so that opening the same
+ * file again skips the duration query and the keyframe walk.
+ * <p>
+ * Entries are keyed by the file's path, size and modification time (for a file descriptor,
+ * those of the file it points at); a file that changes gets a new entry and the stale one
+ * ages out. Sources without such a key, like a {@link android.media.MediaDataSource}, aren't
+ * cached. The least recently used entries are deleted once the directory grows past its
+ * size limit. Pass the cache to
+ * {@link MoviePlayer#MoviePlayer(DataSource, android.view.Surface, MediaBackend, MediaIndexCache, CodecPool)};
+ * one instance can be shared by any number of players.
+ */
+public class MediaIndexCache {
+    private static final String TAG = "MediaIndexCache";
+    private static final int MAGIC = 0x4d494458; // "MIDX"
+    private static final String SUFFIX = ".idx";
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    public MediaIndexCache(File directory) {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param directory where entries are stored, usually under {@code Context.getCacheDir()}
+     * @param maxBytes  total size the entries may take up
+     */
+    public MediaIndexCache(File directory, long maxBytes) {
+        if (directory == null) throw new NullPointerException("directory is null");
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * @return the stored index of the source, or null when there is none for its current
+     * size and modification time
+     */
+    synchronized MediaIndex get(DataSource source) {
+        String identity = source.getIdentity();
+        if (identity == null)
+            return null;
+        File entry = entryFile(identity);
+        if (!entry.isFile())
+            return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+            if (in.readInt() != MAGIC || !identity.equals(in.readUTF()))
+                return null;
+            MediaIndex index = MediaIndex.read(in);
+            entry.setLastModified(System.currentTimeMillis());
+            return index;
+        } catch (IOException e) {
+            Log.w(TAG, "dropping unreadable entry for " + source, e);
+            entry.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    synchronized void put(DataSource source, MediaIndex index) {
+        String identity = source.getIdentity();
+        if (identity == null)
+            return;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "can't create " + mDirectory);
+            return;
+        }
+        File entry = entryFile(identity);
+        File temp = new File(mDirectory, entry.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeUTF(identity);
+            index.write(out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(entry))
+                throw new IOException("can't rename " + temp + " to " + entry);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to store index of " + source, e);
+            temp.delete();
+            return;
+        } finally {
+            closeQuietly(out);
+        }
+        evict();
+    }
+
+    /**
+     * Deletes every entry.
+     */
+    public synchronized void clear() {
+        File[] entries = listEntries();
+        if (entries == null)
+            return;
+        for (File entry : entries) {
+            entry.delete();
+        }
+    }
+
+    private void evict() {
+        File[] entries = listEntries();
+        if (entries == null)
+            return;
+        long total = 0;
+        for (File entry : entries) {
+            total += entry.length();
+        }
+        if (total <= mMaxBytes)
+            return;
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long ta = a.lastModified();
+                long tb = b.lastModified();
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < entries.length && total > mMaxBytes; i++) {
+            long length = entries[i].length();
+            if (entries[i].delete())
+                total -= length;
+        }
+    }
+
+    /**
+     * @return the stored indexes, leaving out temporary files and anything else in the
+     * directory; null if it can't be listed
+     */
+    private File[] listEntries() {
+        return mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+    }
+
+    private File entryFile(String identity) {
+        return new File(mDirectory, sha1(identity) + SUFFIX);
+    }
+
+    private static String sha1(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Copies media from a stream, such as one of a ContentResolver, into a file on a thread of
+ * its own, so that playback can start before the copy is done.
+ * <p>
+ * The copy goes through {@link FileChannel#transferFrom} a megabyte at a time, which stays
+ * in the kernel when the stream reads a file, and through a direct buffer when it reads a
+ * pipe. {@link #getDataSource()} reads the file as it grows: reads past what has been copied
+ * wait for it. {@link Listener#onPlayable} reports when the moov box and the first GOP of an
+ * MP4 file have arrived, which is what a {@link MoviePlayer} needs to open the source and
+ * start; other files are playable once complete.
+ */
+public class MediaIngest {
+    private static final String TAG = "MediaIngest";
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private final ReadableByteChannel mSource;
+    private final File mFile;
+    private final Object mLock = new Object();
+
+    private volatile long mAvailable = 0;
+    private volatile long mLength;
+    // only touched by the copying thread
+    private long mPlayableLength = Mp4Probe.UNKNOWN;
+    private boolean mPlayable = false;
+    private boolean mComplete = false;
+    private IOException mError;
+    private volatile boolean mCancelled = false;
+
+    private long mStartNs;
+    private volatile long mPlayableLatencyUs = -1;
+    private volatile long mCompleteLatencyUs = -1;
+
+    private Thread mThread;
+    private DataSource mDataSource;
+    private WeakReference<Listener> mListener;
+
+    /**
+     * @param source read to its end, or up to {@code length} bytes; closed when done
+     * @param file   where the media is copied to; overwritten
+     * @param length bytes to copy, or -1 to copy until the end of the stream
+     */
+    public MediaIngest(InputStream source, File file, long length) {
+        // a FileInputStream's channel can hand the copy to the kernel
+        mSource = source instanceof FileInputStream ? ((FileInputStream) source).getChannel()
+                : Channels.newChannel(source);
+        mFile = file;
+        mLength = length;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = new WeakReference<>(listener);
+    }
+
+    public synchronized void start() {
+        if (mThread != null) throw new IllegalStateException("already started");
+        mStartNs = System.nanoTime();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                copy();
+            }
+        }, "MediaIngest");
+        mThread.start();
+    }
+
+    /**
+     * Stops the copy; reads waiting for more of the file fail.
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        if (mThread != null)
+            mThread.interrupt();
+        fail(new InterruptedIOException("ingest of " + mFile + " cancelled"));
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getBytesAvailable() {
+        return mAvailable;
+    }
+
+    /**
+     * @return the size of the media, or -1 while it isn't known
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    public boolean isPlayable() {
+        synchronized (mLock) {
+            return mPlayable;
+        }
+    }
+
+    public boolean isComplete() {
+        synchronized (mLock) {
+            return mComplete;
+        }
+    }
+
+    /**
+     * @return how long after {@link #start()} the media became playable, or -1
+     */
+    public long getPlayableLatencyUs() {
+        return mPlayableLatencyUs;
+    }
+
+    /**
+     * @return how long after {@link #start()} the copy completed, or -1
+     */
+    public long getCompleteLatencyUs() {
+        return mCompleteLatencyUs;
+    }
+
+    /**
+     * Waits until the media is playable.
+     *
+     * @return false on timeout
+     * @throws IOException if the copy failed
+     */
+    public boolean awaitPlayable(long timeoutMs) throws IOException, InterruptedException {
+        synchronized (mLock) {
+            long deadline = System.nanoTime() + timeoutMs * 1000000;
+            while (!mPlayable) {
+                if (mError != null)
+                    throw new IOException("ingest of " + mFile + " failed", mError);
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                mLock.wait(remaining / 1000000, (int) (remaining % 1000000));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The file as it is being copied; needs API 23. Once the copy is complete,
+     * {@link DataSource#fromFile} reads it without waiting on the ingest.
+     */
+    public synchronized DataSource getDataSource() {
+        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.M)
+            throw new UnsupportedOperationException("MediaDataSource needs API 23");
+        if (mDataSource == null)
+            mDataSource = new GrowingFileDataSource(this);
+        return mDataSource;
+    }
+
+    /**
+     * Waits until the copy has reached {@code end}, is complete or has failed.
+     *
+     * @return the bytes available
+     */
+    long awaitBytes(long end) throws IOException {
+        long available = mAvailable;
+        if (available >= end)
+            return available;
+        synchronized (mLock) {
+            while (mAvailable < end && !mComplete) {
+                if (mError != null)
+                    throw new IOException("ingest of " + mFile + " failed", mError);
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            return mAvailable;
+        }
+    }
+
+    private void copy() {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            file.setLength(0);
+            FileChannel out = file.getChannel();
+            ByteBuffer buffer = null;
+            long position = 0;
+            long length = mLength;
+            while (length < 0 || position < length) {
+                if (mCancelled)
+                    return;
+                int chunk = (int) (length < 0 ? CHUNK_SIZE : Math.min(CHUNK_SIZE, length - position));
+                long count = out.transferFrom(mSource, position, chunk);
+                if (count == 0) {
+                    // transferFrom doesn't tell the end of the stream from a source it can't
+                    // size, like a pipe
+                    if (buffer == null)
+                        buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                    buffer.clear();
+                    buffer.limit(chunk);
+                    count = mSource.read(buffer);
+                    if (count < 0)
+                        break;
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer, position + buffer.position());
+                    }
+                }
+                position += count;
+                publish(out, position);
+            }
+            if (length >= 0 && position < length)
+                throw new IOException("stream ended after " + position + " of " + length + " bytes");
+            complete(position);
+        } catch (IOException e) {
+            if (!mCancelled)
+                Log.w(TAG, "failed to copy to " + mFile, e);
+            fail(e);
+        } finally {
+            closeQuietly(file);
+            try {
+                mSource.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void publish(FileChannel out, long available) throws IOException {
+        if (mPlayableLength == Mp4Probe.UNKNOWN)
+            mPlayableLength = Mp4Probe.playableLength(out, available);
+        boolean playable = false;
+        synchronized (mLock) {
+            mAvailable = available;
+            if (mPlayableLength != Mp4Probe.UNKNOWN && available >= mPlayableLength)
+                playable = setPlayable();
+            mLock.notifyAll();
+        }
+        if (playable)
+            post(mOnPlayableRunnable);
+    }
+
+    private void complete(long length) {
+        boolean playable;
+        synchronized (mLock) {
+            mAvailable = length;
+            mLength = length;
+            mComplete = true;
+            playable = setPlayable();
+            mCompleteLatencyUs = (System.nanoTime() - mStartNs) / 1000;
+            mLock.notifyAll();
+        }
+        Log.d(TAG, mFile + ": " + length + " bytes in " + mCompleteLatencyUs / 1000 + "ms, playable after "
+                + mPlayableLatencyUs / 1000 + "ms");
+        if (playable)
+            post(mOnPlayableRunnable);
+        post(mOnCompleteRunnable);
+    }
+
+    /**
+     * @return true if the media just became playable
+     */
+    private boolean setPlayable() {
+        if (mPlayable)
+            return false;
+        mPlayable = true;
+        mPlayableLatencyUs = (System.nanoTime() - mStartNs) / 1000;
+        return true;
+    }
+
+    private void fail(final IOException e) {
+        synchronized (mLock) {
+            if (mComplete || mError != null)
+                return;
+            mError = e;
+            mLock.notifyAll();
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null && mListener.get() != null)
+                    mListener.get().onError(MediaIngest.this, e);
+            }
+        });
+    }
+
+    private void post(Runnable runnable) {
+        Handler handler = new Handler(Looper.getMainLooper());
+        handler.post(runnable);
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file == null)
+            return;
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private Runnable mOnPlayableRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mListener != null && mListener.get() != null)
+                mListener.get().onPlayable(MediaIngest.this);
+        }
+    };
+
+    private Runnable mOnCompleteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mListener != null && mListener.get() != null)
+                mListener.get().onComplete(MediaIngest.this);
+        }
+    };
+
+    /**
+     * Called on the main thread.
+     */
+    public interface Listener {
+        /**
+         * Enough of the media has arrived for a player to open {@link #getDataSource()}.
+         */
+        void onPlayable(MediaIngest ingest);
+
+        void onComplete(MediaIngest ingest);
+
+        void onError(MediaIngest ingest, IOException e);
+    }
+}
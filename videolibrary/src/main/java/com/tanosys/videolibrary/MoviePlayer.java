@@ -19,7 +19,7 @@
 
 package com.tanosys.videolibrary;
 
-import android.media.MediaMetadataRetriever;
+import android.graphics.Bitmap;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
@@ -28,9 +28,12 @@ import android.view.Surface;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static android.media.MediaExtractor.SEEK_TO_CLOSEST_SYNC;
-import static com.tanosys.videolibrary.MediaDecoder.STATE_NO_TRACK_FOUND;
 import static com.tanosys.videolibrary.MediaDecoder.STATE_STOPPED;
 
 /**
@@ -39,6 +42,16 @@ import static com.tanosys.videolibrary.MediaDecoder.STATE_STOPPED;
 public class MoviePlayer {
     private static final String TAG = "MoviePlayer";
 
+    /**
+     * Decoding threads poll the codecs for buffers.
+     */
+    public static final int DECODE_MODE_POLLING = 0;
+    /**
+     * Codecs report buffers through callbacks and decoding threads sleep until one arrives.
+     * Falls back to polling where the backend can't deliver callbacks (API &lt; 23).
+     */
+    public static final int DECODE_MODE_ASYNC = 1;
+
 
     // May be set/read by different threads.
     private volatile boolean mIsStopRequested;
@@ -62,6 +75,9 @@ public class MoviePlayer {
 
     protected long mVideoDuration = 0;
 
+    /**
+     * @return the lock the player's controls take; the decoders change state without it
+     */
     public Object getSync() {
         return mSync;
     }
@@ -90,38 +106,448 @@ public class MoviePlayer {
 
     private boolean mIsLooping = true;
 
+    public boolean isGaplessLooping() {
+        return mGaplessLooping;
+    }
+
+    /**
+     * When true, looping while playing forward below the trick play rate doesn't stop the
+     * codecs at the end: a second demuxer waits at the start, the codecs are flushed and
+     * the clock runs on into the next loop. Takes effect the next time playback starts.
+     */
+    public void setGaplessLooping(boolean gaplessLooping) {
+        this.mGaplessLooping = gaplessLooping;
+    }
+
+    private volatile boolean mGaplessLooping = false;
+
+    // how far the timeline moves on at each gapless loop
+    private long mLoopDurationUs = 0;
+
+    long getLoopDurationUs() {
+        return mLoopDurationUs;
+    }
+
+    public boolean isDroppingLateFrames() {
+        return mDropLateFrames;
+    }
+
+    /**
+     * When true (the default), video frames that are already late when decoded are not
+     * shown, and decoding skips ahead to the next sync sample if it keeps falling behind.
+     * When false every frame is shown, however late.
+     */
+    public void setDropLateFrames(boolean dropLateFrames) {
+        this.mDropLateFrames = dropLateFrames;
+    }
+
+    private volatile boolean mDropLateFrames = true;
+
+    public static final double DEFAULT_TRICK_PLAY_RATE = 4.0;
+
+    public double getTrickPlayRate() {
+        return mTrickPlayRate;
+    }
+
+    /**
+     * Play rates above this one play in trick mode: only sync samples are decoded, shown at
+     * their presentation times, and audio is muted. Takes effect the next time playback
+     * starts or the rate changes.
+     */
+    public void setTrickPlayRate(double trickPlayRate) {
+        this.mTrickPlayRate = trickPlayRate;
+    }
+
+    private volatile double mTrickPlayRate = DEFAULT_TRICK_PLAY_RATE;
+
+    boolean isTrickPlay() {
+        return mPlayRate > mTrickPlayRate;
+    }
+
+    boolean isReverse() {
+        return mPlayRate < 0;
+    }
+
+    public static final long DEFAULT_REVERSE_BUFFER_SIZE = 64L * 1024 * 1024;
+
+    public long getReverseBufferSize() {
+        return mReverseBufferSize;
+    }
+
+    /**
+     * Memory in bytes for decoded frames while playing backwards. Half of it holds the
+     * frames being shown and half the frames decoded ahead; a GOP that doesn't fit is
+     * decoded more than once. Takes effect the next time reverse playback starts.
+     */
+    public void setReverseBufferSize(long reverseBufferSize) {
+        this.mReverseBufferSize = reverseBufferSize;
+    }
+
+    private volatile long mReverseBufferSize = DEFAULT_REVERSE_BUFFER_SIZE;
+
     public void setListener(MoviePlayerListener listener) {
         this.mListener = new WeakReference<>(listener);
     }
 
     private WeakReference<MoviePlayerListener> mListener;
 
+    public MediaBackend getBackend() {
+        return mBackend;
+    }
+
+    CodecPool getCodecPool() {
+        return mCodecPool;
+    }
+
+    SharedDemuxer getDemuxer() {
+        return mDemuxer;
+    }
+
+    SharedDemuxer getLoopDemuxer() throws IOException {
+        synchronized (mSync) {
+            if (mLoopDemuxer == null)
+                mLoopDemuxer = new SharedDemuxer(mBackend, mSource);
+            return mLoopDemuxer;
+        }
+    }
+
+    /**
+     * Starts filling the cache with keyframe previews of this player's file. While seeking,
+     * {@link ScrubPreviewListener#onScrubPreview} then gets the closest cached frame right
+     * away. Pass null to stop using a cache.
+     */
+    public void setScrubPreviewCache(ScrubPreviewCache previewCache) {
+        synchronized (mSync) {
+            if (mPreviewCache != null)
+                mPreviewCache.stop();
+            mPreviewCache = previewCache;
+            if (mPreviewCache != null)
+                mPreviewCache.fill(mSource, mVideoDecoder.getKeyframeIndex());
+        }
+    }
+
+    public void setScrubPreviewListener(ScrubPreviewListener listener) {
+        this.mPreviewListener = new WeakReference<>(listener);
+    }
+
+    public int getDecodeMode() {
+        return mDecodeMode;
+    }
+
+    /**
+     * Selects how the decoders talk to their codecs. Takes effect the next time the codecs
+     * are created; a paused player recreates them right away.
+     *
+     * @param decodeMode {@link #DECODE_MODE_POLLING} or {@link #DECODE_MODE_ASYNC}
+     */
+    public void setDecodeMode(int decodeMode) {
+        if (decodeMode != DECODE_MODE_POLLING && decodeMode != DECODE_MODE_ASYNC)
+            throw new IllegalArgumentException("unknown decode mode: " + decodeMode);
+        synchronized (mSync) {
+            if (mDecodeMode == decodeMode)
+                return;
+            mDecodeMode = decodeMode;
+            if (isPaused()) {
+                mVideoDecoder.releaseCodec();
+                mAudioDecoder.releaseCodec();
+            }
+            mSync.notifyAll();
+        }
+    }
+
+    private volatile int mDecodeMode = DECODE_MODE_POLLING;
+
+    public boolean isHotPause() {
+        return mHotPause;
+    }
+
+    /**
+     * When true, pausing leaves the codecs configured and started, and resuming flushes
+     * them instead of configuring and starting them again. The codecs hold on to their
+     * buffers while paused. Doesn't apply while playing backwards; takes effect the next
+     * time playback pauses.
+     */
+    public void setHotPause(boolean hotPause) {
+        this.mHotPause = hotPause;
+    }
+
+    private volatile boolean mHotPause = false;
+
+    private final MediaBackend mBackend;
+
+    private final MediaIndexCache mIndexCache;
+
+    private final CodecPool mCodecPool;
+
+    // read once for both decoders; the second one feeds the next loop when looping gaplessly
+    private SharedDemuxer mDemuxer;
+    private SharedDemuxer mLoopDemuxer;
+
+    private final DataSource mSource;
+
+    private ScrubPreviewCache mPreviewCache;
+
+    private WeakReference<ScrubPreviewListener> mPreviewListener;
+
+    private final PlaybackClock mClock = new PlaybackClock();
+
+    private static Executor sPrepareExecutor;
+
+    // System.nanoTime() / 1000 when preparing started
+    private final long mPrepareStartUs;
+    private volatile long mPrepareLatencyUs = -1;
+    // set while prepareAsync is running; release() then leaves the releasing to it
+    private boolean mPreparing = false;
+    private boolean mReleaseWhenPrepared = false;
+    private boolean mReleased = false;
+    private Exception mPrepareError;
+    private PrepareCallback mPrepareCallback;
+
 
     public MoviePlayer(File sourceFile, Surface outputSurface)
             throws IOException {
-        // Pop the file open and pull out the video characteristics.
-        // TODO: consider leaving the extractor open.  Should be able to just seek back to
-        //       the start after each iteration of play.  Need to rearrange the API a bit --
-        //       currently play() is taking an all-in-one open+work+release approach.
+        this(sourceFile, outputSurface, new AndroidMediaBackend());
+    }
+
+    public MoviePlayer(File sourceFile, Surface outputSurface, MediaBackend backend)
+            throws IOException {
+        this(sourceFile, outputSurface, backend, null);
+    }
+
+    /**
+     * @param indexCache where the file's index is looked up and stored, or null to probe the
+     *                   file on every open
+     */
+    public MoviePlayer(File sourceFile, Surface outputSurface, MediaBackend backend, MediaIndexCache indexCache)
+            throws IOException {
+        this(sourceFile, outputSurface, backend, indexCache, null);
+    }
+
+    /**
+     * @param indexCache where the file's index is looked up and stored, or null to probe the
+     *                   file on every open
+     * @param codecPool  where decoders are borrowed from and handed back to, or null to
+     *                   create and release them with the player
+     */
+    public MoviePlayer(File sourceFile, Surface outputSurface, MediaBackend backend, MediaIndexCache indexCache,
+                       CodecPool codecPool)
+            throws IOException {
+        this(DataSource.fromFile(sourceFile), outputSurface, backend, indexCache, codecPool);
+    }
+
+    public MoviePlayer(DataSource source, Surface outputSurface)
+            throws IOException {
+        this(source, outputSurface, new AndroidMediaBackend(), null, null);
+    }
+
+    /**
+     * @param source     read by several demuxers at once; see {@link DataSource}
+     * @param indexCache where the source's index is looked up and stored, or null to probe
+     *                   it on every open
+     * @param codecPool  where decoders are borrowed from and handed back to, or null to
+     *                   create and release them with the player
+     */
+    public MoviePlayer(DataSource source, Surface outputSurface, MediaBackend backend, MediaIndexCache indexCache,
+                       CodecPool codecPool)
+            throws IOException {
+        this(source, backend, indexCache, codecPool);
         try {
-            Log.d(TAG, sourceFile.toString());
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(sourceFile.toString());
-            mVideoDuration = Long.valueOf(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
-            Log.d(TAG, "Duration: " + mVideoDuration);
-            retriever.release();
-
-            mVideoDecoder = new VideoDecoder(this, sourceFile);
-            mVideoDecoder.setOutputSurface(outputSurface);
-            mAudioDecoder = new AudioDecoder(this, sourceFile);
+            MediaIndex index = open(outputSurface);
             mVideoDecoder.prepare();
             mAudioDecoder.prepare();
+            onPrepared(index);
         } catch (Exception ex) {
             release();
             throw new IOException(ex.getMessage());
         }
     }
 
+    private MoviePlayer(DataSource source, MediaBackend backend, MediaIndexCache indexCache, CodecPool codecPool) {
+        if (backend == null) throw new NullPointerException("backend is null");
+        mPrepareStartUs = System.nanoTime() / 1000;
+        mBackend = backend;
+        mIndexCache = indexCache;
+        mCodecPool = codecPool;
+        mSource = source;
+    }
+
+    /**
+     * Like the constructor, but opens the source and prepares the video and audio tracks in
+     * parallel on a background executor instead of the calling thread. Until
+     * {@link PrepareCallback#onPrepared} is called, the returned player may only be released.
+     */
+    public static MoviePlayer prepareAsync(DataSource source, Surface outputSurface, MediaBackend backend,
+                                           MediaIndexCache indexCache, CodecPool codecPool,
+                                           PrepareCallback callback) {
+        return prepareAsync(source, outputSurface, backend, indexCache, codecPool, prepareExecutor(), callback);
+    }
+
+    /**
+     * @param executor runs the preparation; the two tracks are prepared in parallel when it
+     *                 has more than one thread
+     */
+    public static MoviePlayer prepareAsync(DataSource source, Surface outputSurface, MediaBackend backend,
+                                           MediaIndexCache indexCache, CodecPool codecPool, Executor executor,
+                                           PrepareCallback callback) {
+        MoviePlayer player = new MoviePlayer(source, backend, indexCache, codecPool);
+        player.startPreparing(outputSurface, executor, callback);
+        return player;
+    }
+
+    private static synchronized Executor prepareExecutor() {
+        if (sPrepareExecutor == null) {
+            sPrepareExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MoviePlayerPrepare");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sPrepareExecutor;
+    }
+
+    /**
+     * Opens the shared demuxer and creates the decoders.
+     *
+     * @return the cached index of the source, or null
+     */
+    private MediaIndex open(Surface outputSurface) throws IOException {
+        // Pop the file open and pull out the video characteristics.
+        Log.d(TAG, mSource.toString());
+        MediaIndex index = mIndexCache != null ? mIndexCache.get(mSource) : null;
+        mDemuxer = new SharedDemuxer(mBackend, mSource);
+        if (index != null) {
+            mVideoDuration = index.getDurationMs();
+        } else {
+            // the container's duration; only files without one need a metadata retriever
+            long durationUs = mDemuxer.getDurationUs();
+            mVideoDuration = durationUs > 0 ? durationUs / 1000 : mBackend.getDuration(mSource);
+        }
+        Log.d(TAG, "Duration: " + mVideoDuration + (index != null ? " (cached)" : ""));
+
+        mVideoDecoder = new VideoDecoder(this, mSource);
+        mVideoDecoder.setMediaIndex(index);
+        mVideoDecoder.setOutputSurface(outputSurface);
+        mAudioDecoder = new AudioDecoder(this, mSource);
+        mAudioDecoder.setMediaIndex(index);
+        return index;
+    }
+
+    private void onPrepared(MediaIndex index) {
+        mLoopDurationUs = Math.max(mVideoDecoder.getTrackDurationUs(), mAudioDecoder.getTrackDurationUs());
+        if (mLoopDurationUs <= 0)
+            mLoopDurationUs = mVideoDuration * 1000;
+        if (mIndexCache != null && index == null && mSource.getIdentity() != null)
+            storeIndex(mSource);
+        mPrepareLatencyUs = System.nanoTime() / 1000 - mPrepareStartUs;
+        Log.d(TAG, "prepared in " + mPrepareLatencyUs / 1000 + "ms");
+    }
+
+    private void startPreparing(final Surface outputSurface, final Executor executor, PrepareCallback callback) {
+        mPreparing = true;
+        mPrepareCallback = callback;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final MediaIndex index;
+                try {
+                    index = open(outputSurface);
+                } catch (Exception e) {
+                    finishPreparing(null, e);
+                    return;
+                }
+                final AtomicInteger pending = new AtomicInteger(2);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        prepareTrack(mAudioDecoder, index, pending);
+                    }
+                });
+                prepareTrack(mVideoDecoder, index, pending);
+            }
+        });
+    }
+
+    /**
+     * Prepares one decoder; whichever of the two finishes last finishes preparing the player.
+     */
+    private void prepareTrack(MediaDecoder decoder, MediaIndex index, AtomicInteger pending) {
+        try {
+            decoder.prepare();
+        } catch (Exception e) {
+            synchronized (mSync) {
+                if (mPrepareError == null)
+                    mPrepareError = e;
+            }
+        }
+        if (pending.decrementAndGet() == 0) {
+            Exception error;
+            synchronized (mSync) {
+                error = mPrepareError;
+            }
+            finishPreparing(index, error);
+        }
+    }
+
+    private void finishPreparing(MediaIndex index, Exception error) {
+        boolean released;
+        synchronized (mSync) {
+            mPreparing = false;
+            released = mReleaseWhenPrepared;
+            if (error == null && !released)
+                onPrepared(index);
+        }
+        if (error != null || released)
+            release();
+        if (released)
+            return;
+        final PrepareCallback callback = mPrepareCallback;
+        mPrepareCallback = null;
+        if (callback == null)
+            return;
+        final IOException failure = error == null ? null
+                : error instanceof IOException ? (IOException) error : new IOException(error.getMessage(), error);
+        Handler handler = new Handler(Looper.getMainLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (failure == null)
+                    callback.onPrepared(MoviePlayer.this);
+                else
+                    callback.onError(MoviePlayer.this, failure);
+            }
+        });
+    }
+
+    /**
+     * @return true once the player can play
+     */
+    public boolean isPrepared() {
+        return mPrepareLatencyUs >= 0;
+    }
+
+    /**
+     * @return time from constructing the player, or calling {@link #prepareAsync}, until it
+     * was prepared, in microseconds; -1 until then
+     */
+    public long getPrepareLatencyUs() {
+        return mPrepareLatencyUs;
+    }
+
+    /**
+     * @return time from constructing the player, or calling {@link #prepareAsync}, until its
+     * first frame was shown during playback, in microseconds, including any wait for
+     * {@link #play()}; -1 until then
+     */
+    public long getFirstFrameLatencyUs() {
+        if (!isPrepared())
+            return -1;
+        long renderedUs = mVideoDecoder.getFirstRenderSystemTimeUs();
+        return renderedUs >= 0 ? renderedUs - mPrepareStartUs : -1;
+    }
+
     /**
      * Asks the player to stop.  Returns without waiting for playback to halt.
      * <p>
@@ -177,10 +603,7 @@ public class MoviePlayer {
         synchronized (mSync) {
             if (isPaused()) {
                 try {
-                    mVideoDecoder.startPlaying();
-                    mAudioDecoder.startPlaying();
-                    mProgressHandler = new Handler(Looper.getMainLooper());
-                    mProgressHandler.post(mProgressRunnable);
+                    startDecoders();
                 } catch (IllegalStateException e) {
                     Log.e(TAG, "failed to play: " + e.getMessage());
                     Log.e(TAG, "video failed to play: " + mVideoDecoder.getState());
@@ -197,12 +620,26 @@ public class MoviePlayer {
         }
     }
 
+    private static void stopAfterFailure(MediaDecoder decoder) {
+        if (decoder.mDecoding)
+            decoder.requestStop();
+        else
+            decoder.setState(STATE_STOPPED);
+    }
+
     public void onStopped() {
         synchronized (mSync) {
+            if (mReleased)
+                return;
             if (mProgressHandler != null)
                 mProgressHandler.removeCallbacks(mProgressRunnable);
             mProgressHandler = null;
             Log.d(TAG, "on stopped");
+            if (mVideoDecoder.hasFailed() || mAudioDecoder.hasFailed()) {
+                // a failed codec stops the other track too; a decoding one comes back here
+                stopAfterFailure(mVideoDecoder);
+                stopAfterFailure(mAudioDecoder);
+            }
             if (mVideoDecoder.isStopped() && mAudioDecoder.isStopped()) {
                 if (mRequestedPlayRate != 0) {
                     mPlayRate = mRequestedPlayRate;
@@ -226,11 +663,8 @@ public class MoviePlayer {
                 handler.post(mOnReachedEndRunnable);
                 if (mIsLooping) {
                     try {
-                        mVideoDecoder.startPlaying();
-                        mAudioDecoder.startPlaying();
-                        mProgressHandler = new Handler(Looper.getMainLooper());
-                        mProgressHandler.post(mProgressRunnable);
-                    } catch (IOException e) {
+                        startDecoders();
+                    } catch (IOException | IllegalStateException e) {
                         e.printStackTrace();
                     }
                 }
@@ -242,16 +676,13 @@ public class MoviePlayer {
                 mVideoDecoder.getExtractor().seekTo(mVideoDecoder.getExtractor().getSampleTime(), SEEK_TO_CLOSEST_SYNC);
                 mAudioDecoder.getExtractor().seekTo(mVideoDecoder.getExtractor().getSampleTime(), SEEK_TO_CLOSEST_SYNC);
                 try {
-                    mVideoDecoder.startPlaying();
-                    mAudioDecoder.startPlaying();
-                    mProgressHandler = new Handler(Looper.getMainLooper());
-                    mProgressHandler.post(mProgressRunnable);
+                    startDecoders();
                     Handler handler = new Handler(Looper.getMainLooper());
                     handler.post(mOnChangeRateRunnable);
-                } catch (IOException e) {
+                } catch (IOException | IllegalStateException e) {
                     e.printStackTrace();
                 }
-            } else if (mVideoDecoder.isRequestSeek() && mAudioDecoder.isRequestSeek()) {
+            } else if (isSeekRequested()) {
                 try {
                     mVideoDecoder.startSeeking();
                     mAudioDecoder.startSeeking();
@@ -274,11 +705,8 @@ public class MoviePlayer {
                 handler.post(mOnEndSeekingRunnable);
                 if (mPlayWhenDoneSeek) {
                     try {
-                        mVideoDecoder.startPlaying();
-                        mAudioDecoder.startPlaying();
-                        mProgressHandler = new Handler(Looper.getMainLooper());
-                        mProgressHandler.post(mProgressRunnable);
-                    } catch (IOException e) {
+                        startDecoders();
+                    } catch (IOException | IllegalStateException e) {
                         e.printStackTrace();
                     }
                 }
@@ -287,21 +715,94 @@ public class MoviePlayer {
         }
     }
 
+    /**
+     * @return true when both decoders are ready to seek and at least one hasn't started yet;
+     * one may already be seeking if it was paused when the seek came in
+     */
+    private boolean isSeekRequested() {
+        return (mVideoDecoder.isRequestSeek() || mVideoDecoder.isSeeking())
+                && (mAudioDecoder.isRequestSeek() || mAudioDecoder.isSeeking())
+                && !isSeeking();
+    }
+
+    /**
+     * Called on a decoding thread when its track has gone on into the next loop without
+     * stopping.
+     */
+    void onLooped(MediaDecoder decoder) {
+        if (decoder != mVideoDecoder)
+            return;
+        Handler handler = new Handler(Looper.getMainLooper());
+        handler.post(mOnReachedEndRunnable);
+    }
+
+    /**
+     * Starts both decoders from the video's current position, with the clock running from
+     * there. Called with {@link #mSync} held.
+     */
+    private void startDecoders() throws IOException {
+        long positionUs = Math.max(mVideoDecoder.getPresentTimeStamp(), 0);
+        // playing backwards from the start begins at the end
+        if (isReverse() && positionUs == 0)
+            positionUs = mVideoDuration * 1000;
+        mClock.start(positionUs, mPlayRate);
+        mVideoDecoder.startPlaying();
+        mAudioDecoder.startPlaying();
+        mProgressHandler = new Handler(Looper.getMainLooper());
+        mProgressHandler.post(mProgressRunnable);
+    }
+
+    private void storeIndex(DataSource source) {
+        mIndexCache.put(source, new MediaIndex(mVideoDuration,
+                MediaIndex.readFormats(mVideoDecoder.getExtractor()),
+                mVideoDecoder.getKeyframeIndex().getTimesUs()));
+    }
+
     public void release() {
         synchronized (mSync) {
-            if (mVideoDecoder != null) {
-                mVideoDecoder.release();
-            }
-            // release everything we grabbed
-            if (mAudioDecoder != null) {
-                mAudioDecoder.release();
+            if (mPreparing) {
+                mReleaseWhenPrepared = true;
+                return;
             }
+            mReleased = true;
+        }
+        if (mPreviewCache != null)
+            mPreviewCache.stop();
+        // the decoding threads end in onStopped(), which takes mSync; wait for them without it
+        if (mVideoDecoder != null) {
+            mVideoDecoder.release();
+        }
+        // release everything we grabbed
+        if (mAudioDecoder != null) {
+            mAudioDecoder.release();
+        }
+        synchronized (mSync) {
+            if (mDemuxer != null)
+                mDemuxer.release();
+            if (mLoopDemuxer != null)
+                mLoopDemuxer.release();
         }
     }
 
+    /**
+     * Sets the play rate; 1.0 is normal speed. While playing, the new rate takes effect
+     * right away, without restarting the codecs, unless it switches trick play or the
+     * direction of play.
+     * <p>
+     * Negative rates play backwards without sound, drawing decoded frames on the output
+     * surface with a Canvas. Some devices can't hand a surface drawn on that way back to a
+     * codec, so going forward again may need a new surface from
+     * {@link #setOutputSurface(Surface)}.
+     */
     public void setRate(double rate) {
         synchronized (mSync) {
-            if (isPlaying()) {
+            if (isPlaying() && canChangeRateLive(rate)) {
+                mPlayRate = rate;
+                mClock.setRate(rate);
+                mAudioDecoder.changePlayRateLive(rate);
+                Handler handler = new Handler(Looper.getMainLooper());
+                handler.post(mOnChangeRateRunnable);
+            } else if (isPlaying()) {
                 mRequestedPlayRate = rate;
                 mVideoDecoder.changePlayRate();
                 mAudioDecoder.changePlayRate();
@@ -314,6 +815,14 @@ public class MoviePlayer {
         }
     }
 
+    /**
+     * @return true if the decoders play at rate the way they play at the current rate, so
+     * only the clock and the audio sink need to change
+     */
+    private boolean canChangeRateLive(double rate) {
+        return (rate < 0) == isReverse() && (rate > mTrickPlayRate) == isTrickPlay();
+    }
+
     public void startSeek() {
         synchronized (mSync) {
             mPlayWhenDoneSeek = isPlaying();
@@ -338,6 +847,7 @@ public class MoviePlayer {
     }
 
     public void seekTo(float progress) {
+        long presentationTime;
         synchronized (mSync) {
             Log.d(TAG, "video seeking state:" + mVideoDecoder.getState());
             Log.d(TAG, "audio seeking state:" + mAudioDecoder.getState());
@@ -345,11 +855,33 @@ public class MoviePlayer {
                 return;
             Log.d(TAG, "Progress: " + progress);
             mProgress = progress;
-            long presentationTime = (long) (((double) mVideoDuration) * progress) * 1000;
+            presentationTime = (long) (((double) mVideoDuration) * progress) * 1000;
             Log.d(TAG, "PresentationTime: " + presentationTime);
             mVideoDecoder.seekTo(presentationTime);
             mSync.notifyAll();
         }
+        ScrubPreviewListener listener = mPreviewListener != null ? mPreviewListener.get() : null;
+        if (mPreviewCache != null && listener != null) {
+            Bitmap preview = mPreviewCache.getPreview(presentationTime);
+            if (preview != null)
+                listener.onScrubPreview(this, preview, presentationTime);
+        }
+    }
+
+    /**
+     * Called by the video decoder once the frame a seek asked for is on the surface.
+     */
+    void onSeekFrameRendered(final long presentationTimeUs) {
+        if (mPreviewListener == null || mPreviewListener.get() == null)
+            return;
+        Handler handler = new Handler(Looper.getMainLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mPreviewListener != null && mPreviewListener.get() != null)
+                    mPreviewListener.get().onSeekFrameRendered(MoviePlayer.this, presentationTimeUs);
+            }
+        });
     }
 
     public void endSeek() {
@@ -367,27 +899,56 @@ public class MoviePlayer {
         return mVideoDecoder.getPresentTimeStamp();
     }
 
+    /**
+     * @return how far the last video frame shown during playback was from the audio being
+     * heard, in microseconds; positive when video is ahead
+     */
+    public long getAudioVideoOffsetUs() {
+        return mClock.getAudioVideoOffsetUs();
+    }
+
+    /**
+     * @return video frames shown during playback
+     */
+    public long getRenderedFrames() {
+        return mVideoDecoder.getRenderedFrames();
+    }
+
+    /**
+     * @return how long the last start of playback (play(), or a restart for a loop or a
+     * rate change) took to show its first frame, in microseconds; -1 until it has
+     */
+    public long getResumeLatencyUs() {
+        return mVideoDecoder.getResumeLatencyUs();
+    }
+
+    /**
+     * @return video frames decoded but not shown because they were late
+     */
+    public long getDroppedFrames() {
+        return mVideoDecoder.getDroppedFrames();
+    }
+
+    /**
+     * @return times video decoding skipped ahead to a sync sample to catch up
+     */
+    public long getSyncSkips() {
+        return mVideoDecoder.getSyncSkips();
+    }
+
+    PlaybackClock getClock() {
+        return mClock;
+    }
+
     Handler mProgressHandler;
 
     Runnable mProgressRunnable = new Runnable() {
         @Override
         public void run() {
             if (isPlaying() || isRequestingStateChange()) {
-                long time;
-                long videoPresentTime = mVideoDecoder.getExtractor().getSampleTime() / 1000;
-                long audioPresentTime = mAudioDecoder.getExtractor().getSampleTime() / 1000;
-                if (mAudioDecoder.getState() == STATE_NO_TRACK_FOUND) {
-                    time = videoPresentTime;
-                } else {
-                    if (Math.abs(videoPresentTime - audioPresentTime) > mVideoDuration / 2) {
-                        time = Math.max(videoPresentTime, audioPresentTime);
-                    } else {
-                        time = Math.min(videoPresentTime, audioPresentTime);
-                    }
-                }
-                mProgress = (float) ((double) (time) / (double) (mVideoDuration));
-                if (mProgress < 0)
-                    mProgress = 1.0f;
+                // looping gaplessly, the clock runs on past the duration
+                long time = Math.max(mClock.getPositionUs() - mVideoDecoder.getLoopOffsetUs(), 0) / 1000;
+                mProgress = Math.min((float) ((double) (time) / (double) (mVideoDuration)), 1.0f);
                 if (mProgressListener != null && mProgressListener.get() != null)
                     mProgressListener.get().onProgressChange(mProgress);
                 mProgressHandler = new Handler(Looper.getMainLooper());
@@ -402,6 +963,14 @@ public class MoviePlayer {
         void onProgressChange(float progress);
     }
 
+    VideoDecoder getVideoDecoder() {
+        return mVideoDecoder;
+    }
+
+    AudioDecoder getAudioDecoder() {
+        return mAudioDecoder;
+    }
+
     public int getVideoWidth() {
         return mVideoDecoder != null ? mVideoDecoder.getVideoWidth() : 0;
     }
@@ -455,6 +1024,33 @@ public class MoviePlayer {
         }
     };
 
+    public interface ScrubPreviewListener {
+        /**
+         * Called on the thread that called {@link #seekTo(float)} with the cached keyframe
+         * preview closest to the requested position.
+         */
+        void onScrubPreview(MoviePlayer moviePlayer, Bitmap preview, long presentationTimeUs);
+
+        /**
+         * Called on the main thread once the exact frame of a seek is shown; previews can be
+         * hidden.
+         */
+        void onSeekFrameRendered(MoviePlayer moviePlayer, long presentationTimeUs);
+    }
+
+    /**
+     * Called on the main thread when {@link #prepareAsync} is done. Not called for a player
+     * that was released while preparing.
+     */
+    public interface PrepareCallback {
+        void onPrepared(MoviePlayer moviePlayer);
+
+        /**
+         * The player has been released.
+         */
+        void onError(MoviePlayer moviePlayer, IOException e);
+    }
+
     public interface MoviePlayerListener {
         void onStopped(MoviePlayer moviePlayer);
 
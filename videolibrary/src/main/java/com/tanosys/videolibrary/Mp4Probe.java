@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Tells from the boxes of a partly written MP4 file how much of it playback needs: the moov
+ * box, the samples of the video track's first GOP and the other tracks' samples up to the
+ * end of that GOP. For a fragmented file it is the first media data box after the moov box.
+ */
+final class Mp4Probe {
+    /**
+     * Not enough of the file is there yet to tell.
+     */
+    static final long UNKNOWN = -1;
+    /**
+     * Playback needs the complete file: the file isn't MP4, or its moov box can't be read.
+     */
+    static final long WHOLE_FILE = Long.MAX_VALUE;
+
+    private static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+
+    private static final int MOOV = fourCc("moov");
+    private static final int MDAT = fourCc("mdat");
+    private static final int TRAK = fourCc("trak");
+    private static final int MDIA = fourCc("mdia");
+    private static final int MDHD = fourCc("mdhd");
+    private static final int HDLR = fourCc("hdlr");
+    private static final int MINF = fourCc("minf");
+    private static final int STBL = fourCc("stbl");
+    private static final int STTS = fourCc("stts");
+    private static final int STSS = fourCc("stss");
+    private static final int STSZ = fourCc("stsz");
+    private static final int STZ2 = fourCc("stz2");
+    private static final int STSC = fourCc("stsc");
+    private static final int STCO = fourCc("stco");
+    private static final int CO64 = fourCc("co64");
+    private static final int VIDE = fourCc("vide");
+
+    private Mp4Probe() {
+    }
+
+    /**
+     * @param available bytes at the start of the file that have been written
+     * @return bytes from the start of the file playback needs, {@link #UNKNOWN} or
+     * {@link #WHOLE_FILE}
+     */
+    static long playableLength(FileChannel channel, long available) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long position = 0;
+        boolean fragmented = false;
+        while (position + 8 <= available) {
+            header.clear();
+            header.limit((int) Math.min(16, available - position));
+            readFully(channel, header, position);
+            long size = header.getInt(0) & 0xffffffffL;
+            int type = header.getInt(4);
+            int headerSize = 8;
+            if (!isFourCc(type))
+                return WHOLE_FILE;
+            if (size == 1) {
+                if (header.limit() < 16)
+                    return UNKNOWN;
+                size = header.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                // the box runs to the end of the file
+                size = WHOLE_FILE - position;
+            }
+            if (size < headerSize)
+                return WHOLE_FILE;
+            long end = position + size;
+            if (type == MOOV) {
+                if (size > MAX_MOOV_SIZE)
+                    return WHOLE_FILE;
+                if (end > available)
+                    return UNKNOWN;
+                ByteBuffer moov = ByteBuffer.allocate((int) size - headerSize);
+                readFully(channel, moov, position + headerSize);
+                long samplesEnd;
+                try {
+                    samplesEnd = samplesEnd(moov);
+                } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                    return WHOLE_FILE;
+                }
+                if (samplesEnd >= 0)
+                    return Math.max(end, samplesEnd);
+                // no samples in the moov box; they come in fragments
+                fragmented = true;
+            } else if (fragmented && type == MDAT) {
+                return end;
+            }
+            position = end;
+        }
+        return UNKNOWN;
+    }
+
+    private static long samplesEnd(ByteBuffer moov) {
+        Track video = null;
+        Track[] tracks = new Track[0];
+        for (int trak = child(moov, 0, moov.limit(), TRAK); trak >= 0; trak = next(moov, trak, moov.limit(), TRAK)) {
+            Track track = Track.parse(moov, trak, boxEnd(moov, trak));
+            if (track == null || track.mSampleCount == 0)
+                continue;
+            Track[] grown = new Track[tracks.length + 1];
+            System.arraycopy(tracks, 0, grown, 0, tracks.length);
+            grown[tracks.length] = track;
+            tracks = grown;
+            if (video == null && track.mVideo)
+                video = track;
+        }
+        long end = -1;
+        double gopEndSeconds = 0;
+        if (video != null) {
+            int samples = video.firstGopSamples();
+            end = video.end(samples);
+            gopEndSeconds = samples < video.mSampleCount ? video.decodeTimeSeconds(samples) : Double.MAX_VALUE;
+        }
+        for (Track track : tracks) {
+            if (track != video)
+                end = Math.max(end, track.end(Math.max(track.samplesBefore(gopEndSeconds), 1)));
+        }
+        return end;
+    }
+
+    private static class Track {
+        boolean mVideo;
+        int mTimescale;
+        int[] mTimeCounts;
+        int[] mTimeDeltas;
+        // 1-based sample numbers; null when every sample is a sync sample
+        int[] mSyncSamples;
+        int mSampleCount;
+        int mSampleSize;
+        int[] mSampleSizes;
+        int[] mFirstChunks;
+        int[] mSamplesPerChunk;
+        long[] mChunkOffsets;
+
+        static Track parse(ByteBuffer b, int trak, int trakEnd) {
+            int mdia = child(b, trak, trakEnd, MDIA);
+            if (mdia < 0)
+                return null;
+            int mdiaEnd = boxEnd(b, mdia);
+            int mdhd = child(b, mdia, mdiaEnd, MDHD);
+            int hdlr = child(b, mdia, mdiaEnd, HDLR);
+            int minf = child(b, mdia, mdiaEnd, MINF);
+            int stbl = minf >= 0 ? child(b, minf, boxEnd(b, minf), STBL) : -1;
+            if (mdhd < 0 || hdlr < 0 || stbl < 0)
+                return null;
+            int stblEnd = boxEnd(b, stbl);
+            int stts = child(b, stbl, stblEnd, STTS);
+            int stss = child(b, stbl, stblEnd, STSS);
+            int stsz = child(b, stbl, stblEnd, STSZ);
+            int stz2 = child(b, stbl, stblEnd, STZ2);
+            int stsc = child(b, stbl, stblEnd, STSC);
+            int stco = child(b, stbl, stblEnd, STCO);
+            int co64 = child(b, stbl, stblEnd, CO64);
+            if (stts < 0 || (stsz < 0 && stz2 < 0) || stsc < 0 || (stco < 0 && co64 < 0))
+                return null;
+
+            Track track = new Track();
+            track.mVideo = b.getInt(hdlr + 8) == VIDE;
+            track.mTimescale = b.getInt(mdhd + (b.get(mdhd) == 1 ? 20 : 12));
+            if (track.mTimescale <= 0)
+                return null;
+
+            int count = entryCount(b, stts + 4, 8);
+            track.mTimeCounts = new int[count];
+            track.mTimeDeltas = new int[count];
+            for (int i = 0; i < count; i++) {
+                track.mTimeCounts[i] = b.getInt(stts + 8 + i * 8);
+                track.mTimeDeltas[i] = b.getInt(stts + 12 + i * 8);
+            }
+            if (stss >= 0) {
+                count = entryCount(b, stss + 4, 4);
+                track.mSyncSamples = new int[count];
+                for (int i = 0; i < count; i++) {
+                    track.mSyncSamples[i] = b.getInt(stss + 8 + i * 4);
+                }
+            }
+            if (stsz >= 0) {
+                track.mSampleSize = b.getInt(stsz + 4);
+                track.mSampleCount = b.getInt(stsz + 8);
+                if (track.mSampleSize == 0) {
+                    track.mSampleSizes = new int[entryCount(b, stsz + 8, 4)];
+                    for (int i = 0; i < track.mSampleSizes.length; i++) {
+                        track.mSampleSizes[i] = b.getInt(stsz + 12 + i * 4);
+                    }
+                }
+            } else {
+                int fieldBits = b.get(stz2 + 7) & 0xff;
+                if (fieldBits != 4 && fieldBits != 8 && fieldBits != 16)
+                    return null;
+                track.mSampleCount = entryCount(b, stz2 + 8, fieldBits / 8.0);
+                track.mSampleSizes = new int[track.mSampleCount];
+                for (int i = 0; i < track.mSampleCount; i++) {
+                    int at = stz2 + 12 + i * fieldBits / 8;
+                    if (fieldBits == 16)
+                        track.mSampleSizes[i] = b.getShort(at) & 0xffff;
+                    else if (fieldBits == 8)
+                        track.mSampleSizes[i] = b.get(at) & 0xff;
+                    else
+                        track.mSampleSizes[i] = (b.get(at) >> (i % 2 == 0 ? 4 : 0)) & 0xf;
+                }
+            }
+            count = entryCount(b, stsc + 4, 12);
+            track.mFirstChunks = new int[count];
+            track.mSamplesPerChunk = new int[count];
+            for (int i = 0; i < count; i++) {
+                track.mFirstChunks[i] = b.getInt(stsc + 8 + i * 12);
+                track.mSamplesPerChunk[i] = b.getInt(stsc + 12 + i * 12);
+            }
+            if (stco >= 0) {
+                count = entryCount(b, stco + 4, 4);
+                track.mChunkOffsets = new long[count];
+                for (int i = 0; i < count; i++) {
+                    track.mChunkOffsets[i] = b.getInt(stco + 8 + i * 4) & 0xffffffffL;
+                }
+            } else {
+                count = entryCount(b, co64 + 4, 8);
+                track.mChunkOffsets = new long[count];
+                for (int i = 0; i < count; i++) {
+                    track.mChunkOffsets[i] = b.getLong(co64 + 8 + i * 8);
+                }
+            }
+            return track;
+        }
+
+        int firstGopSamples() {
+            if (mSyncSamples == null)
+                return 1;
+            return mSyncSamples.length > 1 ? Math.min(mSyncSamples[1] - 1, mSampleCount) : mSampleCount;
+        }
+
+        /**
+         * @return the end of the furthest of the first {@code samples} samples in the file
+         */
+        long end(int samples) {
+            long end = -1;
+            int sample = 0;
+            for (int entry = 0; entry < mFirstChunks.length && sample < samples; entry++) {
+                int lastChunk = entry + 1 < mFirstChunks.length ? mFirstChunks[entry + 1] - 1 : mChunkOffsets.length;
+                for (int chunk = mFirstChunks[entry]; chunk <= lastChunk && sample < samples; chunk++) {
+                    if (chunk < 1 || chunk > mChunkOffsets.length)
+                        throw new IllegalArgumentException("no chunk " + chunk);
+                    long offset = mChunkOffsets[chunk - 1];
+                    for (int i = 0; i < mSamplesPerChunk[entry] && sample < samples; i++, sample++) {
+                        offset += mSampleSize != 0 ? mSampleSize : mSampleSizes[sample];
+                        end = Math.max(end, offset);
+                    }
+                }
+            }
+            return end;
+        }
+
+        double decodeTimeSeconds(int samples) {
+            long time = 0;
+            for (int i = 0; i < mTimeCounts.length && samples > 0; i++) {
+                int count = Math.min(mTimeCounts[i], samples);
+                time += (long) count * mTimeDeltas[i];
+                samples -= count;
+            }
+            return (double) time / mTimescale;
+        }
+
+        int samplesBefore(double seconds) {
+            double limit = seconds * mTimescale;
+            long time = 0;
+            int samples = 0;
+            for (int i = 0; i < mTimeCounts.length && samples < mSampleCount; i++) {
+                for (int j = 0; j < mTimeCounts[i] && samples < mSampleCount; j++) {
+                    if (time >= limit)
+                        return samples;
+                    time += mTimeDeltas[i];
+                    samples++;
+                }
+            }
+            return samples;
+        }
+    }
+
+    /**
+     * @return the content offset of the first child box of the given type, or -1
+     */
+    private static int child(ByteBuffer b, int start, int end, int type) {
+        int position = start;
+        while (position + 8 <= end) {
+            int size = b.getInt(position);
+            if (size < 8 || position + size > end)
+                return -1;
+            if (b.getInt(position + 4) == type)
+                return position + 8;
+            position += size;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the content offset of the next box of the given type after the one at
+     * {@code content}, or -1
+     */
+    private static int next(ByteBuffer b, int content, int end, int type) {
+        return child(b, boxEnd(b, content), end, type);
+    }
+
+    private static int boxEnd(ByteBuffer b, int content) {
+        return content - 8 + b.getInt(content - 8);
+    }
+
+    /**
+     * Reads a table's entry count, checking that the entries fit in the buffer.
+     */
+    private static int entryCount(ByteBuffer b, int at, double entrySize) {
+        int count = b.getInt(at);
+        if (count < 0 || at + 4 + Math.ceil(count * entrySize) > b.limit())
+            throw new IllegalArgumentException("bad entry count " + count);
+        return count;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new IOException("file ends at " + (position + buffer.position()));
+        }
+    }
+
+    private static boolean isFourCc(int type) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            int c = (type >> shift) & 0xff;
+            if (c < 0x20 || c > 0x7e)
+                return false;
+        }
+        return true;
+    }
+
+    private static int fourCc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+}
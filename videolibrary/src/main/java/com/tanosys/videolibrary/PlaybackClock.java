@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+/**
+ * Media time of what is being heard right now, shared by the decoders of a player.
+ * <p>
+ * While audio plays, the clock follows the audio sink's playback head, so video paced
+ * against it stays in sync however far the audio hardware drifts from the system clock.
+ * Without audio to follow (no audio track, before the first PCM buffer is queued, after
+ * the audio stream has ended) it runs from {@link System#nanoTime()} at the play rate,
+ * backwards when the rate is negative.
+ */
+class PlaybackClock {
+    // buffers written ahead of the playback head that the clock can place
+    private static final int CHECKPOINTS = 64;
+
+    private AudioSink mAudioSink;
+    private int mSampleRate;
+    private boolean mFollowingAudio = false;
+    // media time at mAnchorSystemTimeUs when not following audio
+    private long mAnchorTimeUs = 0;
+    private long mAnchorSystemTimeUs = 0;
+    private double mRate = 1.0;
+    private volatile long mAudioVideoOffsetUs = 0;
+
+    // ring of audio buffers written to the sink: the sink frame each starts at, its media
+    // time, and media time per sink frame relative to the sample rate
+    private final long[] mCheckpointFrames = new long[CHECKPOINTS];
+    private final long[] mCheckpointTimesUs = new long[CHECKPOINTS];
+    private final double[] mCheckpointRates = new double[CHECKPOINTS];
+    private int mCheckpointHead = 0;
+    private int mCheckpointCount = 0;
+
+    synchronized void setAudioSink(AudioSink audioSink, int sampleRate) {
+        mAudioSink = audioSink;
+        mSampleRate = sampleRate;
+        mFollowingAudio = false;
+    }
+
+    /**
+     * Starts the clock at timeUs. It follows the system clock until audio is queued.
+     */
+    synchronized void start(long timeUs, double rate) {
+        mAnchorTimeUs = timeUs;
+        mAnchorSystemTimeUs = System.nanoTime() / 1000;
+        mRate = rate;
+        mFollowingAudio = false;
+        mCheckpointCount = 0;
+    }
+
+    /**
+     * Changes the rate without moving the position. Audio already written keeps the rate
+     * it was written at.
+     */
+    synchronized void setRate(double rate) {
+        if (!mFollowingAudio) {
+            mAnchorTimeUs = getPositionUs();
+            mAnchorSystemTimeUs = System.nanoTime() / 1000;
+        }
+        mRate = rate;
+    }
+
+    /**
+     * Called before a PCM buffer is written to the audio sink; the clock follows the
+     * sink's playback head through the buffers it has been told about.
+     *
+     * @param presentationTimeUs media time of the buffer's first frame
+     * @param framesWritten      frames written to the sink before this buffer
+     * @param rate               media time the buffer covers per unit of playing time
+     */
+    synchronized void onAudioQueued(long presentationTimeUs, long framesWritten, double rate) {
+        if (mAudioSink == null || mSampleRate <= 0)
+            return;
+        int slot = (mCheckpointHead + mCheckpointCount) % CHECKPOINTS;
+        if (mCheckpointCount == CHECKPOINTS) {
+            mCheckpointHead = (mCheckpointHead + 1) % CHECKPOINTS;
+        } else {
+            mCheckpointCount++;
+        }
+        mCheckpointFrames[slot] = framesWritten;
+        mCheckpointTimesUs[slot] = presentationTimeUs;
+        mCheckpointRates[slot] = rate;
+        mFollowingAudio = true;
+    }
+
+    /**
+     * Called once the last audio buffer is queued; the clock carries on from the audio
+     * position on the system clock.
+     */
+    synchronized void onAudioEnded() {
+        if (!mFollowingAudio)
+            return;
+        mAnchorTimeUs = getPositionUs();
+        mAnchorSystemTimeUs = System.nanoTime() / 1000;
+        mFollowingAudio = false;
+        mCheckpointCount = 0;
+    }
+
+    synchronized long getPositionUs() {
+        if (mFollowingAudio) {
+            long head = mAudioSink.getPlaybackHeadPosition();
+            // the last buffer that started playing; frames still queued from before the
+            // first one hold the clock at its start
+            int slot = mCheckpointHead;
+            for (int i = mCheckpointCount - 1; i >= 0; i--) {
+                int s = (mCheckpointHead + i) % CHECKPOINTS;
+                if (mCheckpointFrames[s] <= head) {
+                    slot = s;
+                    break;
+                }
+            }
+            long played = Math.max(head - mCheckpointFrames[slot], 0);
+            return mCheckpointTimesUs[slot] + (long) (played * 1000000.0 * mCheckpointRates[slot] / mSampleRate);
+        }
+        return mAnchorTimeUs + (long) ((System.nanoTime() / 1000 - mAnchorSystemTimeUs) * mRate);
+    }
+
+    synchronized double getRate() {
+        return mRate;
+    }
+
+    /**
+     * Records how far a video frame released for rendering is from the clock.
+     */
+    synchronized void onVideoRendered(long presentationTimeUs) {
+        long offsetUs = presentationTimeUs - getPositionUs();
+        mAudioVideoOffsetUs = mRate < 0 ? -offsetUs : offsetUs;
+    }
+
+    /**
+     * @return offset of the last rendered video frame from the audio, positive when video
+     * is ahead in the direction of play
+     */
+    long getAudioVideoOffsetUs() {
+        return mAudioVideoOffsetUs;
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.graphics.Bitmap;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Plays a video track backwards for a {@link VideoDecoder}.
+ * <p>
+ * Frames can only be decoded forwards from a sync sample, so the track is cut into
+ * segments, each ending where the one after it starts and holding no more frames than
+ * fit in a frame store. A segment is decoded forwards from its sync sample, keeping
+ * copies of only the frames inside it, and then shown last frame first. Two
+ * {@link GopDecoder}s take turns: while one segment is shown, the other decoder is
+ * already working on the segment before it.
+ * <p>
+ * Frames are drawn on the output surface by a {@link FrameRenderer}, so both codecs decode
+ * into ByteBuffers; nothing is drawn when the backend doesn't render to a surface. The
+ * renderer lives on the video decoder's thread, from {@link #start} to {@link #release()},
+ * and gives the surface back for the next codec when released. Frames are
+ * read through their planes where the codec gives them as images, and otherwise only in
+ * the color formats {@link YuvConverter} can describe; in any other format the decoders
+ * fail rather than draw garbage, which ends reverse playback. Decoded
+ * frames wider than {@link #MAX_DRAW_WIDTH} are drawn at a fraction of their size to keep
+ * the color conversion within a frame interval.
+ */
+class ReversePlayback {
+    private static final String TAG = "ReversePlayback";
+    /** {@link #awaitFrame()} result once the first frame of the track has been shown */
+    static final long END_OF_STREAM = -1;
+    /** {@link #awaitFrame()} result when the next frame isn't decoded yet */
+    static final long NO_FRAME = Long.MIN_VALUE;
+    private static final int TIMEOUT_USEC = 10000;
+    private static final long DECODE_WAIT_MS = 10;
+    private static final int MAX_DRAW_WIDTH = 1280;
+
+    private final VideoDecoder mVideoDecoder;
+    // only used to plan segments, on the video decoder's thread
+    private final Demuxer mPlanner;
+    private final KeyframeIndex mKeyframes;
+    private final TrackFormat mFormat;
+    private final Surface mSurface;
+    private final int mMaxFrames;
+    private final GopDecoder[] mGopDecoders = new GopDecoder[2];
+    // one per GOP decoder, and the planner's
+    private final Demuxer[] mDemuxers = new Demuxer[3];
+    private final Codec mPrefetchCodec;
+
+    private long[] mSampleTimes = new long[64];
+    // end of the next segment to plan: the start of the last one planned
+    private long mNextEndUs;
+    private int mCurrent = 0;
+    // index in the current store of the next frame to show, -1 until the store is ready
+    private int mNextFrame = -1;
+    private long mLastShownUs = -1;
+    private boolean mStarted = false;
+
+    private FrameRenderer mRenderer;
+    private Bitmap mBitmap;
+    private int[] mPixels;
+    private int mDrawStep;
+
+    /**
+     * Opens the file three more times, apart from the video decoder's shared reader, and
+     * creates the prefetching codec; the other codec is the video decoder's, handed over in
+     * {@link #start}.
+     *
+     * @param bufferBytes memory for decoded frames, split between the two stores
+     */
+    ReversePlayback(VideoDecoder videoDecoder, MediaBackend backend, DataSource source, int trackIndex,
+                    KeyframeIndex keyframes, Surface surface, long bufferBytes) throws IOException {
+        mVideoDecoder = videoDecoder;
+        mKeyframes = keyframes;
+        mFormat = videoDecoder.getExtractor().getTrackFormat(trackIndex);
+        mSurface = surface;
+        long frameBytes = Math.max((long) mFormat.getWidth() * mFormat.getHeight() * 3 / 2, 1);
+        mMaxFrames = (int) Math.max(bufferBytes / 2 / frameBytes, 2);
+        Codec prefetchCodec = null;
+        try {
+            for (int i = 0; i < mDemuxers.length; i++) {
+                mDemuxers[i] = backend.createDemuxer(source);
+                mDemuxers[i].selectTrack(trackIndex);
+            }
+            prefetchCodec = backend.createDecoder(mFormat.getMime());
+            prefetchCodec.configure(mFormat, null);
+            prefetchCodec.start();
+        } catch (IOException e) {
+            if (prefetchCodec != null)
+                prefetchCodec.release();
+            releaseDemuxers();
+            throw e;
+        }
+        mPlanner = mDemuxers[2];
+        mPrefetchCodec = prefetchCodec;
+    }
+
+    boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Starts decoding the segments before positionUs, and connects to the output surface.
+     * Runs on the video decoder's thread, which then draws and releases.
+     *
+     * @param codec the video decoder's codec, started and configured without a surface; it
+     *              stays the video decoder's to stop
+     * @throws RuntimeException if the surface can't be drawn on
+     */
+    void start(Codec codec, long positionUs) {
+        if (mSurface != null)
+            mRenderer = new FrameRenderer(mSurface, mFormat.getRotation());
+        boolean drawn = mSurface != null;
+        mGopDecoders[0] = new GopDecoder(mDemuxers[0], codec, mMaxFrames, drawn);
+        mGopDecoders[1] = new GopDecoder(mDemuxers[1], mPrefetchCodec, mMaxFrames, drawn);
+        mLastShownUs = -1;
+        for (GopDecoder gopDecoder : mGopDecoders) {
+            gopDecoder.start();
+        }
+        resetTo(positionUs + 1);
+        mStarted = true;
+    }
+
+    /**
+     * Drops whatever is decoded or being decoded and carries on from the sync sample at or
+     * before positionUs, which needs nothing else decoded first.
+     */
+    void skipTo(long positionUs) {
+        resetTo(mKeyframes.floor(positionUs) + 1);
+    }
+
+    private void resetTo(long endUs) {
+        mNextEndUs = endUs;
+        mCurrent = 0;
+        mNextFrame = -1;
+        for (GopDecoder gopDecoder : mGopDecoders) {
+            submit(gopDecoder);
+        }
+    }
+
+    /**
+     * Plans the segment ending at {@link #mNextEndUs} and hands it to gopDecoder. Runs on
+     * the video decoder's thread, which owns the planning demuxer.
+     */
+    private void submit(GopDecoder gopDecoder) {
+        long firstUs = mKeyframes.size() > 0 ? mKeyframes.timeAt(0) : 0;
+        if (mNextEndUs <= firstUs) {
+            gopDecoder.clear();
+            return;
+        }
+        long syncUs = mKeyframes.floor(mNextEndUs - 1);
+        mPlanner.seekTo(syncUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        int count = 0;
+        for (long t = mPlanner.getSampleTime(); t >= 0 && t < mNextEndUs; t = mPlanner.getSampleTime()) {
+            if (count == mSampleTimes.length)
+                mSampleTimes = Arrays.copyOf(mSampleTimes, count * 2);
+            mSampleTimes[count++] = t;
+            if (!mPlanner.advance())
+                break;
+        }
+        if (count == 0) {
+            gopDecoder.clear();
+            return;
+        }
+        // samples are in decode order
+        Arrays.sort(mSampleTimes, 0, count);
+        long startUs = count > mMaxFrames ? mSampleTimes[count - mMaxFrames] : syncUs;
+        gopDecoder.decode(syncUs, startUs, mNextEndUs);
+        mNextEndUs = startUs;
+    }
+
+    /**
+     * Waits a little for the next frame to be decoded.
+     *
+     * @return its presentation time, {@link #NO_FRAME} if it isn't ready yet or
+     * {@link #END_OF_STREAM}
+     */
+    long awaitFrame() {
+        while (mNextFrame < 0) {
+            GopDecoder gopDecoder = mGopDecoders[mCurrent];
+            if (!gopDecoder.hasSegment())
+                return END_OF_STREAM;
+            if (!gopDecoder.awaitDecoded(DECODE_WAIT_MS))
+                return NO_FRAME;
+            mNextFrame = gopDecoder.getFrameCount() - 1;
+            if (mNextFrame < 0)
+                nextSegment();
+        }
+        return mGopDecoders[mCurrent].getTimeUs(mNextFrame);
+    }
+
+    /**
+     * Draws the frame last returned by {@link #awaitFrame()} and moves on to the one before.
+     */
+    void renderFrame() {
+        GopDecoder gopDecoder = mGopDecoders[mCurrent];
+        if (mRenderer != null)
+            draw(gopDecoder.getFrame(mNextFrame), gopDecoder.getLayout(mNextFrame));
+        skipFrame();
+    }
+
+    /**
+     * Moves on from the frame last returned by {@link #awaitFrame()} without drawing it.
+     */
+    void skipFrame() {
+        mLastShownUs = mGopDecoders[mCurrent].getTimeUs(mNextFrame);
+        if (--mNextFrame < 0)
+            nextSegment();
+    }
+
+    /**
+     * @return start of the segment the next frame belongs to
+     */
+    long getSegmentStartUs() {
+        return mGopDecoders[mCurrent].getStartUs();
+    }
+
+    /**
+     * @return presentation time of the last frame shown or skipped, -1 if there was none
+     */
+    long getLastShownUs() {
+        return mLastShownUs;
+    }
+
+    private void nextSegment() {
+        mNextFrame = -1;
+        submit(mGopDecoders[mCurrent]);
+        mCurrent ^= 1;
+    }
+
+    private void draw(ByteBuffer frame, YuvConverter.Layout layout) {
+        int step = (layout.getWidth() + MAX_DRAW_WIDTH - 1) / MAX_DRAW_WIDTH;
+        int width = layout.getWidth() / step;
+        int height = layout.getHeight() / step;
+        if (mBitmap == null || mBitmap.getWidth() != width || mBitmap.getHeight() != height) {
+            if (mBitmap != null)
+                mBitmap.recycle();
+            mDrawStep = step;
+            mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mPixels = new int[width * height];
+        }
+        YuvConverter.toArgb(frame, layout, mDrawStep, mPixels);
+        mBitmap.setPixels(mPixels, 0, width, 0, 0, width, height);
+        if (!mRenderer.draw(mBitmap))
+            Log.w(TAG, "can't draw on the output surface");
+    }
+
+    /**
+     * Stops both decoding threads and releases what {@link ReversePlayback} opened. The
+     * video decoder's codec is left flushed or mid-segment for the decoder to stop. Once
+     * started, this has to run on the video decoder's thread.
+     */
+    void release() {
+        if (mRenderer != null) {
+            mRenderer.release();
+            mRenderer = null;
+        }
+        for (GopDecoder gopDecoder : mGopDecoders) {
+            if (gopDecoder != null)
+                gopDecoder.stop();
+        }
+        mPrefetchCodec.release();
+        releaseDemuxers();
+        if (mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+        }
+    }
+
+    private void releaseDemuxers() {
+        for (int i = 0; i < mDemuxers.length; i++) {
+            if (mDemuxers[i] != null) {
+                mDemuxers[i].release();
+                mDemuxers[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Decodes one segment at a time on its own thread into a bounded store of frame copies.
+     */
+    static class GopDecoder implements Runnable {
+        private final Demuxer mDemuxer;
+        private final Codec mCodec;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        private final ByteBuffer[] mFrames;
+        private final long[] mTimesUs;
+        // how each frame is laid out, when frames are drawn
+        private final YuvConverter.Layout[] mLayouts;
+        private final boolean mDrawn;
+        private Thread mThread;
+        private volatile boolean mStopped = false;
+        private TrackFormat mOutputFormat;
+
+        // guarded by this
+        private boolean mHasSegment = false;
+        // also read unlocked by the decoding loop, to give up on a superseded segment
+        private volatile boolean mRequested = false;
+        private boolean mDecoded = false;
+        private long mSyncUs;
+        private long mStartUs;
+        private long mEndUs;
+        private int mFrameCount = 0;
+        private RuntimeException mError;
+
+        /**
+         * @param drawn whether the frames are drawn, and need their layout known
+         */
+        GopDecoder(Demuxer demuxer, Codec codec, int maxFrames, boolean drawn) {
+            mDemuxer = demuxer;
+            mCodec = codec;
+            mFrames = new ByteBuffer[maxFrames];
+            mTimesUs = new long[maxFrames];
+            mLayouts = new YuvConverter.Layout[drawn ? maxFrames : 0];
+            mDrawn = drawn;
+        }
+
+        void start() {
+            mThread = new Thread(this, "ReverseGopDecoder");
+            mThread.start();
+        }
+
+        void stop() {
+            synchronized (this) {
+                mStopped = true;
+                notifyAll();
+            }
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Replaces the store's contents with the frames in [startUs, endUs), decoded from
+         * the sync sample at syncUs.
+         */
+        synchronized void decode(long syncUs, long startUs, long endUs) {
+            mSyncUs = syncUs;
+            mStartUs = startUs;
+            mEndUs = endUs;
+            mHasSegment = true;
+            mRequested = true;
+            mDecoded = false;
+            mFrameCount = 0;
+            notifyAll();
+        }
+
+        /**
+         * Marks the decoder as having nothing left to decode.
+         */
+        synchronized void clear() {
+            mHasSegment = false;
+            mRequested = false;
+            mDecoded = false;
+            mFrameCount = 0;
+        }
+
+        synchronized boolean hasSegment() {
+            return mHasSegment;
+        }
+
+        /**
+         * @return true once the segment is decoded; false if it wasn't done within timeoutMs
+         */
+        synchronized boolean awaitDecoded(long timeoutMs) {
+            if (!mDecoded && mError == null) {
+                try {
+                    wait(timeoutMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (mError != null)
+                throw new RuntimeException("reverse decoding failed", mError);
+            return mDecoded;
+        }
+
+        synchronized long getStartUs() {
+            return mStartUs;
+        }
+
+        synchronized int getFrameCount() {
+            return mFrameCount;
+        }
+
+        synchronized long getTimeUs(int index) {
+            return mTimesUs[index];
+        }
+
+        synchronized ByteBuffer getFrame(int index) {
+            return mFrames[index];
+        }
+
+        synchronized YuvConverter.Layout getLayout(int index) {
+            return mLayouts[index];
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                long syncUs;
+                long startUs;
+                long endUs;
+                synchronized (this) {
+                    while (!mRequested && !mStopped) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (mStopped)
+                        return;
+                    mRequested = false;
+                    syncUs = mSyncUs;
+                    startUs = mStartUs;
+                    endUs = mEndUs;
+                }
+                try {
+                    decodeSegment(syncUs, startUs, endUs);
+                } catch (RuntimeException e) {
+                    synchronized (this) {
+                        mError = e;
+                        notifyAll();
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void decodeSegment(long syncUs, long startUs, long endUs) {
+            mCodec.flush();
+            mDemuxer.seekTo(syncUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            int count = 0;
+            boolean inputDone = false;
+            boolean outputDone = false;
+            while (!outputDone) {
+                if (mStopped || mRequested)
+                    return;
+                if (!inputDone) {
+                    int index = mCodec.dequeueInputBuffer(TIMEOUT_USEC);
+                    if (index >= 0) {
+                        long timeUs = mDemuxer.getSampleTime();
+                        int size = timeUs >= 0 && timeUs < endUs ? mDemuxer.readSampleData(mCodec.getInputBuffer(index), 0) : -1;
+                        if (size < 0) {
+                            mCodec.queueInputBuffer(index, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            mCodec.queueInputBuffer(index, 0, size, timeUs, 0);
+                            mDemuxer.advance();
+                        }
+                    }
+                }
+                int status = mCodec.dequeueOutputBuffer(mInfo, TIMEOUT_USEC);
+                if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    mOutputFormat = mCodec.getOutputFormat();
+                } else if (status >= 0) {
+                    long timeUs = mInfo.presentationTimeUs;
+                    // decoders output in presentation order, so the store stays sorted
+                    if (mInfo.size > 0 && timeUs >= startUs && timeUs < endUs && count < mFrames.length) {
+                        store(count++, status, timeUs);
+                    }
+                    mCodec.releaseOutputBuffer(status, false);
+                    outputDone = (mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                }
+            }
+            if (Tracer.ENABLED) Tracer.trace(Tracer.REVERSE_SEGMENT_DECODED, Tracer.TRACK_VIDEO, startUs, count);
+            synchronized (this) {
+                // a new request in the meantime makes this segment stale
+                if (mRequested)
+                    return;
+                mFrameCount = count;
+                mDecoded = true;
+                notifyAll();
+            }
+        }
+
+        private void store(int index, int status, long timeUs) {
+            Image image = mDrawn ? mCodec.getOutputImage(status) : null;
+            if (image != null) {
+                try {
+                    if (!YuvConverter.copy(image, frame(index, YuvConverter.size(image)), mLayouts[index]))
+                        throw new UnsupportedOperationException("can't draw frames of image format 0x"
+                                + Integer.toHexString(image.getFormat()));
+                } finally {
+                    image.close();
+                }
+            } else {
+                ByteBuffer output = mCodec.getOutputBuffer(status);
+                ByteBuffer frame = frame(index, mInfo.size);
+                output.limit(mInfo.offset + mInfo.size);
+                output.position(mInfo.offset);
+                frame.clear();
+                frame.put(output);
+                output.clear();
+                if (mDrawn) {
+                    TrackFormat format = mOutputFormat != null ? mOutputFormat : mCodec.getOutputFormat();
+                    if (!YuvConverter.describe(format, mLayouts[index]))
+                        throw new UnsupportedOperationException("can't draw frames of color format 0x"
+                                + Integer.toHexString(format.getColorFormat()));
+                }
+            }
+            mTimesUs[index] = timeUs;
+        }
+
+        private ByteBuffer frame(int index, int size) {
+            ByteBuffer frame = mFrames[index];
+            if (frame == null || frame.capacity() < size) {
+                frame = ByteBuffer.allocateDirect(size);
+                mFrames[index] = frame;
+            }
+            if (mDrawn && mLayouts[index] == null)
+                mLayouts[index] = new YuvConverter.Layout();
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compressed samples read ahead for one track, handed from a reader thread to the
+ * decoding thread without locking.
+ * <p>
+ * Only the producer moves the tail and only the consumer moves the head. Sample data is
+ * copied into a direct buffer that is reused as a circular arena, so steady state reading
+ * doesn't allocate; while samples don't fit, a larger arena replaces it, up to the byte
+ * limit. {@link #clear()} must not run concurrently with {@link #offer}.
+ */
+final class SampleRing {
+    private static final int INITIAL_ARENA_SIZE = 256 * 1024;
+
+    private final int mMask;
+    private final int mMaxBytes;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final long[] mTimesUs;
+    private final int[] mFlags;
+    // the consumer's view of the arena each sample is in
+    private final ByteBuffer[] mData;
+
+    private volatile int mHead = 0;
+    private volatile int mTail = 0;
+    private volatile long mBytesIn = 0;
+    private volatile long mBytesOut = 0;
+
+    // producer only
+    private ByteBuffer mArena;
+    private ByteBuffer mArenaView;
+    private int mArenaFirst;
+    private int mWritePos;
+
+    /**
+     * @param capacity maximum number of samples, a power of two
+     * @param maxBytes maximum number of queued bytes; a single larger sample is still
+     *                 taken once the ring is empty
+     */
+    SampleRing(int capacity, int maxBytes) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        mMask = capacity - 1;
+        mMaxBytes = maxBytes;
+        mOffsets = new int[capacity];
+        mSizes = new int[capacity];
+        mTimesUs = new long[capacity];
+        mFlags = new int[capacity];
+        mData = new ByteBuffer[capacity];
+    }
+
+    int size() {
+        return mTail - mHead;
+    }
+
+    boolean isEmpty() {
+        return mTail == mHead;
+    }
+
+    long queuedBytes() {
+        return mBytesIn - mBytesOut;
+    }
+
+    /**
+     * @return time between the first and the last sample queued
+     */
+    long durationUs() {
+        int head = mHead;
+        int tail = mTail;
+        if (tail == head)
+            return 0;
+        return Math.max(0, mTimesUs[(tail - 1) & mMask] - mTimesUs[head & mMask]);
+    }
+
+    /**
+     * Copies the remaining bytes of src in as the newest sample. Producer only.
+     *
+     * @return false if the ring has no room for it
+     */
+    boolean offer(ByteBuffer src, long timeUs, int flags) {
+        int tail = mTail;
+        int size = src.remaining();
+        boolean empty = tail == mHead;
+        if (!empty && (tail - mHead > mMask || queuedBytes() + size > mMaxBytes))
+            return false;
+        int offset = reserve(size, tail);
+        if (offset < 0)
+            return false;
+        mArena.limit(offset + size);
+        mArena.position(offset);
+        mArena.put(src);
+        int slot = tail & mMask;
+        mOffsets[slot] = offset;
+        mSizes[slot] = size;
+        mTimesUs[slot] = timeUs;
+        mFlags[slot] = flags;
+        mData[slot] = mArenaView;
+        mWritePos = offset + size;
+        mBytesIn += size;
+        mTail = tail + 1;
+        return true;
+    }
+
+    /**
+     * @return where in mArena a sample of the given size goes, or -1 if it doesn't fit
+     */
+    private int reserve(int size, int tail) {
+        int capacity = 0;
+        boolean arenaEmpty = true;
+        if (mArena != null) {
+            capacity = mArena.capacity();
+            int head = mHead;
+            // samples before mArenaFirst are in an arena that has been replaced
+            if (mArenaFirst - head < 0)
+                mArenaFirst = head;
+            int first = mArenaFirst;
+            arenaEmpty = first == tail;
+            if (arenaEmpty) {
+                mWritePos = 0;
+                if (size <= capacity)
+                    return 0;
+            } else {
+                int used = mOffsets[first & mMask];
+                if (mWritePos > used) {
+                    if (capacity - mWritePos >= size)
+                        return mWritePos;
+                    if (used >= size)
+                        return 0;
+                } else if (mWritePos < used && used - mWritePos >= size) {
+                    return mWritePos;
+                }
+            }
+        }
+        if (capacity >= mMaxBytes && !(arenaEmpty && tail == mHead))
+            return -1;
+        int grown = Math.max(Math.min(Math.max(capacity * 2, INITIAL_ARENA_SIZE), mMaxBytes), size);
+        mArena = ByteBuffer.allocateDirect(grown);
+        mArenaView = mArena.duplicate();
+        mArenaFirst = tail;
+        mWritePos = 0;
+        return 0;
+    }
+
+    /**
+     * Consumer only, like the other peek methods; the ring must not be empty.
+     */
+    long peekTimeUs() {
+        return mTimesUs[mHead & mMask];
+    }
+
+    int peekFlags() {
+        return mFlags[mHead & mMask];
+    }
+
+    /**
+     * Copies the oldest sample into dst at offset and sets dst's position and limit around it.
+     *
+     * @return the sample size
+     */
+    int peekData(ByteBuffer dst, int offset) {
+        int slot = mHead & mMask;
+        int size = mSizes[slot];
+        ByteBuffer data = mData[slot];
+        data.limit(mOffsets[slot] + size);
+        data.position(mOffsets[slot]);
+        dst.clear();
+        dst.position(offset);
+        dst.put(data);
+        dst.limit(offset + size);
+        dst.position(offset);
+        return size;
+    }
+
+    /**
+     * Drops the oldest sample. Consumer only.
+     */
+    void advance() {
+        int head = mHead;
+        int slot = head & mMask;
+        mData[slot] = null;
+        mBytesOut += mSizes[slot];
+        mHead = head + 1;
+    }
+
+    void clear() {
+        for (int head = mHead, tail = mTail; head != tail; head++) {
+            mData[head & mMask] = null;
+        }
+        mBytesOut = mBytesIn;
+        mHead = mTail;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.media.MediaMetadataRetriever;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Downscaled frames at the keyframes of one file, shown while the seek bar is dragged and
+ * the exact frame is still decoding.
+ * <p>
+ * Frames are grabbed on a background thread once the cache is handed to
+ * {@link MoviePlayer#setScrubPreviewCache(ScrubPreviewCache)}, spread evenly over the file
+ * first and then filled in between, so a partly filled cache still covers the whole seek
+ * bar. Memory is accounted in bytes of bitmap data; filling stops when the limit is
+ * reached. Register the cache with {@code Context.registerComponentCallbacks()} so that it
+ * shrinks when the system is low on memory.
+ * <p>
+ * Frames are read with {@link MediaMetadataRetriever}, so previews are only available with
+ * {@link AndroidMediaBackend}.
+ */
+public class ScrubPreviewCache implements ComponentCallbacks2 {
+    private static final String TAG = "ScrubPreviewCache";
+    public static final int DEFAULT_MAX_WIDTH = 320;
+
+    private final int mMaxWidth;
+    private final LruCache<Long, Bitmap> mFrames;
+
+    private DataSource mSource;
+    private KeyframeIndex mKeyframes;
+    private Thread mFillThread;
+
+    /**
+     * Uses an eighth of the heap and frames up to {@link #DEFAULT_MAX_WIDTH} pixels wide.
+     */
+    public ScrubPreviewCache() {
+        this((int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE), DEFAULT_MAX_WIDTH);
+    }
+
+    /**
+     * @param maxBytes bitmap memory the previews may take up
+     * @param maxWidth width frames are scaled down to
+     */
+    public ScrubPreviewCache(int maxBytes, int maxWidth) {
+        if (maxWidth <= 0) throw new IllegalArgumentException("maxWidth must be positive: " + maxWidth);
+        mMaxWidth = maxWidth;
+        mFrames = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long timeUs, Bitmap frame) {
+                return frame.getByteCount();
+            }
+        };
+    }
+
+    public int getSizeBytes() {
+        return mFrames.size();
+    }
+
+    public int getMaxBytes() {
+        return mFrames.maxSize();
+    }
+
+    /**
+     * @return the frame of the keyframe at or before {@code timeUs}, or null when it isn't
+     * cached (yet)
+     */
+    public Bitmap getPreview(long timeUs) {
+        KeyframeIndex keyframes;
+        synchronized (this) {
+            keyframes = mKeyframes;
+        }
+        if (keyframes == null || keyframes.size() == 0)
+            return null;
+        return mFrames.get(keyframes.floor(timeUs));
+    }
+
+    /**
+     * Starts grabbing the frames of a source that aren't cached yet; the frames of any other
+     * source are dropped.
+     */
+    synchronized void fill(final DataSource source, final KeyframeIndex keyframes) {
+        stop();
+        if (!source.equals(mSource))
+            mFrames.evictAll();
+        mSource = source;
+        mKeyframes = keyframes;
+        mFillThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+                try {
+                    source.applyTo(retriever);
+                    fill(retriever, keyframes);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "failed to grab previews of " + source, e);
+                } finally {
+                    retriever.release();
+                }
+            }
+        }, "ScrubPreviewFiller");
+        mFillThread.start();
+    }
+
+    private void fill(MediaMetadataRetriever retriever, KeyframeIndex keyframes) {
+        int count = keyframes.size();
+        int stride = Integer.highestOneBit(Math.max(count, 1));
+        // stride, stride/2, ... : every pass halves the gaps left by the previous ones
+        for (boolean first = true; stride >= 1; stride /= 2, first = false) {
+            for (int i = first ? 0 : stride; i < count; i += first ? stride : stride * 2) {
+                if (Thread.currentThread().isInterrupted())
+                    return;
+                long timeUs = keyframes.timeAt(i);
+                if (mFrames.get(timeUs) != null)
+                    continue;
+                Bitmap frame = retriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+                if (frame == null)
+                    continue;
+                frame = scale(frame);
+                if (mFrames.size() + frame.getByteCount() > mFrames.maxSize())
+                    return;
+                // stop() interrupts under the same lock, before a new source evicts the frames
+                synchronized (this) {
+                    if (Thread.currentThread().isInterrupted())
+                        return;
+                    mFrames.put(timeUs, frame);
+                }
+            }
+        }
+    }
+
+    private Bitmap scale(Bitmap frame) {
+        if (frame.getWidth() <= mMaxWidth)
+            return frame;
+        int height = Math.max(1, (int) ((long) frame.getHeight() * mMaxWidth / frame.getWidth()));
+        Bitmap scaled = Bitmap.createScaledBitmap(frame, mMaxWidth, height, true);
+        if (scaled != frame)
+            frame.recycle();
+        return scaled;
+    }
+
+    synchronized void stop() {
+        if (mFillThread != null) {
+            mFillThread.interrupt();
+            mFillThread = null;
+        }
+    }
+
+    /**
+     * Drops every frame. Frames handed out before aren't recycled; they may still be on
+     * screen.
+     */
+    public void clear() {
+        mFrames.evictAll();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            stop();
+            clear();
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+            stop();
+            mFrames.trimToSize(mFrames.maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        stop();
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
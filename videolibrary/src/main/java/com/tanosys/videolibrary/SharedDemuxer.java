@@ -0,0 +1,666 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.media.MediaExtractor;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Reads a file once for all of its tracks.
+ * <p>
+ * One {@link Demuxer} selects every track the player uses, and a reader thread hands its
+ * samples, in file order, to a {@link SampleRing} per track, bounded by samples, bytes and
+ * time. Each decoder reads its track through a {@link Track}, which looks like a demuxer
+ * with only that track selected; while samples are queued, reading one only copies it out
+ * of memory, so a slow read from storage doesn't hold up the codec.
+ * <p>
+ * Tracks are positioned together. Seeking a track moves the shared reader, and every
+ * track that isn't being read at the time moves with it; the player always puts audio
+ * where the video is before it starts again anyway. A track being read by its decoder is
+ * left alone: a short forward seek of another track only drops that track's samples up
+ * to the first sync sample at or after the target, and any other seek gives the seeking
+ * track a demuxer of its own until the tracks are positioned together again. A track
+ * whose queue is full while another one waits for samples, such as muted audio during
+ * trick play, is split off the same way, so the reader never stalls.
+ */
+final class SharedDemuxer {
+    private static final String TAG = "SharedDemuxer";
+    // per track; a reading track may go past the sample and time limits while another
+    // track waits for samples
+    private static final int MAX_QUEUED_SAMPLES = 96;
+    private static final long MAX_QUEUED_DURATION_US = 3000000;
+    private static final int MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+    private static final int OVERRUN_FACTOR = 4;
+    private static final int RING_CAPACITY = 512;
+    // a decoder waiting for samples is woken once this many are queued, or the reader waits
+    private static final int WAKE_BATCH = 8;
+    // forward seeks this close to where a track is drop samples instead of seeking
+    private static final long SKIP_WINDOW_US = 5000000;
+    private static final int INITIAL_READ_SIZE = 256 * 1024;
+
+    private final MediaBackend mBackend;
+    private final DataSource mSource;
+    private final Demuxer mDemuxer;
+    private final TrackFormat[] mFormats;
+    private final boolean[] mSelected;
+    private final Object mLock = new Object();
+    private final ArrayList<Track> mTracks = new ArrayList<>();
+
+    private Thread mReader;
+    // what ended the reader, if it failed; the shared demuxer is released with it
+    private RuntimeException mReadError;
+    private boolean mReleased = false;
+    private boolean mAtEnd = false;
+    private boolean mSeekPending = false;
+    // set while the reader waits for room; decoders only wake it then, and once their
+    // queue is down to half
+    private volatile boolean mReaderWaiting = false;
+    private long mSeekUs;
+    private int mSeekMode;
+    // bumped by every seek, so that a sample read before it is dropped
+    private int mGeneration = 0;
+
+    SharedDemuxer(MediaBackend backend, DataSource source) throws IOException {
+        mBackend = backend;
+        mSource = source;
+        mDemuxer = backend.createDemuxer(source);
+        try {
+            mFormats = new TrackFormat[mDemuxer.getTrackCount()];
+            for (int i = 0; i < mFormats.length; i++) {
+                mFormats[i] = mDemuxer.getTrackFormat(i);
+            }
+        } catch (RuntimeException e) {
+            mDemuxer.release();
+            throw e;
+        }
+        mSelected = new boolean[mFormats.length];
+    }
+
+    /**
+     * @return a reader with no track selected yet
+     */
+    Track newTrack() {
+        synchronized (mLock) {
+            if (mReleased) throw new IllegalStateException("demuxer is released");
+            Track track = new Track();
+            mTracks.add(track);
+            return track;
+        }
+    }
+
+    /**
+     * @return the longest track's duration, or -1 if the container doesn't say
+     */
+    long getDurationUs() {
+        long durationUs = -1;
+        for (TrackFormat format : mFormats) {
+            durationUs = Math.max(durationUs, format.getDurationUs());
+        }
+        return durationUs;
+    }
+
+    /**
+     * Lists the sync samples of a track. Before anything is read this walks the shared
+     * demuxer, which is then moved back to the start; later it needs a demuxer of its own.
+     */
+    KeyframeIndex buildKeyframeIndex(int trackIndex) throws IOException {
+        synchronized (mLock) {
+            boolean othersSelected = false;
+            for (int i = 0; i < mSelected.length; i++) {
+                othersSelected |= mSelected[i] && i != trackIndex;
+            }
+            if (mReader == null && !othersSelected && !mReleased) {
+                if (!mSelected[trackIndex]) {
+                    mDemuxer.selectTrack(trackIndex);
+                    mSelected[trackIndex] = true;
+                }
+                KeyframeIndex index = KeyframeIndex.build(mDemuxer);
+                requestSeek(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                return index;
+            }
+        }
+        Demuxer demuxer = openTrack(trackIndex);
+        try {
+            return KeyframeIndex.build(demuxer);
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    private Demuxer openTrack(int trackIndex) throws IOException {
+        Demuxer demuxer = mBackend.createDemuxer(mSource);
+        try {
+            demuxer.selectTrack(trackIndex);
+        } catch (RuntimeException e) {
+            demuxer.release();
+            throw e;
+        }
+        return demuxer;
+    }
+
+    void release() {
+        synchronized (mLock) {
+            if (mReleased)
+                return;
+            mReleased = true;
+            for (Track track : mTracks) {
+                track.releasePrivate();
+            }
+            mTracks.clear();
+            mLock.notifyAll();
+            // the reader owns the demuxer once it runs
+            if (mReader != null)
+                return;
+        }
+        mDemuxer.release();
+    }
+
+    /**
+     * @return false if another track is being read from the shared position
+     */
+    private boolean canMoveTogether(Track seeking) {
+        for (Track track : mTracks) {
+            if (track != seeking && track.mShared && track.mReading && !track.isDrained())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Moves the shared position, and every track not being read along with it.
+     */
+    private void seekTogether(Track seeking, long timeUs, int mode) {
+        for (Track track : mTracks) {
+            if (track == seeking || !track.mReading || (track.mShared && track.isDrained()))
+                track.rejoin(timeUs, mode);
+        }
+        requestSeek(timeUs, mode);
+    }
+
+    private void requestSeek(long timeUs, int mode) {
+        mSeekPending = true;
+        mSeekUs = timeUs;
+        mSeekMode = mode;
+        mGeneration++;
+        mAtEnd = false;
+        mLock.notifyAll();
+    }
+
+    private void startReader() {
+        if (mReader != null || mReleased)
+            return;
+        mReader = new Thread(mReadLoop, "SharedDemuxer");
+        mReader.start();
+    }
+
+    private Track sharedTrack(int trackIndex) {
+        for (Track track : mTracks) {
+            if (track.mShared && track.mIndex == trackIndex)
+                return track;
+        }
+        return null;
+    }
+
+    private boolean hasRoom() {
+        for (Track track : mTracks) {
+            if (track.mShared && track.mIndex >= 0 && !track.isFull(1))
+                return true;
+        }
+        return false;
+    }
+
+    private Track starvingTrack(Track except) {
+        for (Track track : mTracks) {
+            if (track != except && track.mShared && track.mWaiting)
+                return track;
+        }
+        return null;
+    }
+
+    private final Runnable mReadLoop = new Runnable() {
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_READ_SIZE);
+            try {
+                while (true) {
+                    int generation;
+                    synchronized (mLock) {
+                        while (!mReleased && !mSeekPending && (mAtEnd || !hasRoom())) {
+                            if (!mAtEnd && !mReaderWaiting) {
+                                // look again once decoders know to wake the reader
+                                mReaderWaiting = true;
+                                continue;
+                            }
+                            // a decoder waiting for a batch takes what there is
+                            mLock.notifyAll();
+                            mLock.wait();
+                        }
+                        mReaderWaiting = false;
+                        if (mReleased)
+                            return;
+                        if (mSeekPending) {
+                            // under the lock: nothing else touches the demuxer while the reader runs
+                            mSeekPending = false;
+                            mDemuxer.seekTo(mSeekUs, mSeekMode);
+                            continue;
+                        }
+                        generation = mGeneration;
+                    }
+                    long timeUs = mDemuxer.getSampleTime();
+                    if (timeUs < 0) {
+                        synchronized (mLock) {
+                            if (generation == mGeneration)
+                                onEndOfStream();
+                        }
+                        continue;
+                    }
+                    int trackIndex = mDemuxer.getSampleTrackIndex();
+                    int size = -1;
+                    synchronized (mLock) {
+                        if (generation == mGeneration && sharedTrack(trackIndex) == null)
+                            size = 0;
+                    }
+                    if (size < 0) {
+                        while (true) {
+                            try {
+                                size = mDemuxer.readSampleData(buffer, 0);
+                                break;
+                            } catch (IllegalArgumentException | BufferOverflowException e) {
+                                // larger than any sample so far
+                                buffer = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                            }
+                        }
+                    }
+                    int flags = mDemuxer.getSampleFlags();
+                    mDemuxer.advance();
+                    if (size > 0) {
+                        synchronized (mLock) {
+                            if (generation == mGeneration)
+                                deliver(trackIndex, buffer, size, timeUs, flags);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "reader interrupted");
+            } catch (RuntimeException e) {
+                Log.e(TAG, "reader failed", e);
+                synchronized (mLock) {
+                    mReadError = e;
+                    onEndOfStream();
+                }
+            } finally {
+                mDemuxer.release();
+            }
+        }
+    };
+
+    private void onEndOfStream() {
+        mAtEnd = true;
+        for (Track track : mTracks) {
+            if (track.mShared) {
+                track.mEnded = true;
+                track.mSkipToUs = -1;
+            }
+        }
+        mLock.notifyAll();
+    }
+
+    private void deliver(int trackIndex, ByteBuffer buffer, int size, long timeUs, int flags)
+            throws InterruptedException {
+        int generation = mGeneration;
+        try {
+            while (true) {
+                Track track = sharedTrack(trackIndex);
+                if (mReleased || generation != mGeneration || track == null)
+                    return;
+                if (track.mSkipToUs >= 0) {
+                    if ((flags & MediaExtractor.SAMPLE_FLAG_SYNC) == 0 || timeUs < track.mSkipToUs)
+                        return;
+                    track.mSkipToUs = -1;
+                }
+                if (track.offer(buffer, size, timeUs, flags, 1))
+                    return;
+                if (starvingTrack(track) != null) {
+                    // whoever waits for a later sample would wait forever
+                    if (track.mReading && track.offer(buffer, size, timeUs, flags, OVERRUN_FACTOR))
+                        return;
+                    Log.d(TAG, "track " + trackIndex + " fell behind; reading it on its own");
+                    track.split();
+                    return;
+                }
+                if (!mReaderWaiting) {
+                    mReaderWaiting = true;
+                    continue;
+                }
+                mLock.notifyAll();
+                mLock.wait();
+            }
+        } finally {
+            mReaderWaiting = false;
+        }
+    }
+
+    private void wakeReader() {
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * One track of the shared demuxer.
+     */
+    final class Track implements Demuxer {
+        private int mIndex = -1;
+        // filled by the reader thread and emptied by the decoder; the only part of a track
+        // read without holding mLock
+        private final SampleRing mRing = new SampleRing(RING_CAPACITY, MAX_QUEUED_BYTES);
+        // false while split off onto mPrivate
+        private boolean mShared = true;
+        private boolean mReading = false;
+        private boolean mEnded = false;
+        private boolean mWaiting = false;
+        private long mSkipToUs = -1;
+        private long mLastQueuedUs = -1;
+        // the last seek, where the track is when nothing has been queued since
+        private long mSeekUs = 0;
+        private int mSeekMode = MediaExtractor.SEEK_TO_PREVIOUS_SYNC;
+
+        private Demuxer mPrivate;
+        private boolean mPrivatePositioned = false;
+        // where mPrivate has to go: a seek, and the sample to step past after it, if any
+        private long mResumeSeekUs;
+        private int mResumeSeekMode;
+        private long mResumeAfterUs = -1;
+
+        private Track() {
+        }
+
+        /**
+         * Tells the demuxer whether the track's decoder is reading from it. Seeks of other
+         * tracks move a track along only while it isn't.
+         */
+        void setReading(boolean reading) {
+            synchronized (mLock) {
+                mReading = reading;
+            }
+        }
+
+        @Override
+        public int getTrackCount() {
+            return mFormats.length;
+        }
+
+        @Override
+        public TrackFormat getTrackFormat(int index) {
+            return mFormats[index];
+        }
+
+        @Override
+        public void selectTrack(int index) {
+            synchronized (mLock) {
+                if (mReader != null && !mSelected[index])
+                    throw new IllegalStateException("tracks must be selected before reading");
+                if (!mSelected[index]) {
+                    mDemuxer.selectTrack(index);
+                    mSelected[index] = true;
+                }
+                mIndex = index;
+            }
+        }
+
+        @Override
+        public void seekTo(long timeUs, int mode) {
+            synchronized (mLock) {
+                if (canMoveTogether(this)) {
+                    seekTogether(this, timeUs, mode);
+                } else if (!mShared || !skipTo(timeUs)) {
+                    detach(timeUs, mode, -1);
+                }
+            }
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer, int offset) {
+            if (!mRing.isEmpty())
+                return mRing.peekData(buffer, offset);
+            synchronized (mLock) {
+                if (!awaitSample())
+                    return mShared ? -1 : privateDemuxer().readSampleData(buffer, offset);
+                return mRing.peekData(buffer, offset);
+            }
+        }
+
+        @Override
+        public long getSampleTime() {
+            if (!mRing.isEmpty())
+                return mRing.peekTimeUs();
+            synchronized (mLock) {
+                if (!awaitSample())
+                    return mShared ? -1 : privateDemuxer().getSampleTime();
+                return mRing.peekTimeUs();
+            }
+        }
+
+        @Override
+        public int getSampleFlags() {
+            if (!mRing.isEmpty())
+                return mRing.peekFlags();
+            synchronized (mLock) {
+                if (!awaitSample())
+                    return mShared ? 0 : privateDemuxer().getSampleFlags();
+                return mRing.peekFlags();
+            }
+        }
+
+        @Override
+        public int getSampleTrackIndex() {
+            return getSampleTime() >= 0 ? mIndex : -1;
+        }
+
+        @Override
+        public boolean advance() {
+            if (mRing.isEmpty()) {
+                synchronized (mLock) {
+                    if (!awaitSample())
+                        return !mShared && privateDemuxer().advance();
+                }
+            }
+            mRing.advance();
+            if (mReaderWaiting && isLow())
+                wakeReader();
+            return true;
+        }
+
+        @Override
+        public void release() {
+            synchronized (mLock) {
+                mTracks.remove(this);
+                clearQueue();
+                releasePrivate();
+                mLock.notifyAll();
+            }
+        }
+
+        /**
+         * Waits for the reader to queue a sample.
+         *
+         * @return false at the end of the shared stream, or when split off and the samples
+         * queued before have been read
+         * @throws IllegalStateException if the reader failed
+         */
+        private boolean awaitSample() {
+            while (mRing.isEmpty()) {
+                if (mShared && mReadError != null)
+                    throw new IllegalStateException("failed to read " + mSource, mReadError);
+                if (!mShared || mEnded || mReleased)
+                    return false;
+                startReader();
+                mWaiting = true;
+                mLock.notifyAll();
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } finally {
+                    mWaiting = false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isDrained() {
+            return mEnded && mRing.isEmpty();
+        }
+
+        private boolean isFull(int factor) {
+            return mRing.size() >= MAX_QUEUED_SAMPLES * factor
+                    || mRing.durationUs() >= MAX_QUEUED_DURATION_US * factor
+                    || mRing.queuedBytes() >= MAX_QUEUED_BYTES;
+        }
+
+        private boolean isLow() {
+            return mRing.size() <= MAX_QUEUED_SAMPLES / 2
+                    && mRing.durationUs() <= MAX_QUEUED_DURATION_US / 2
+                    && mRing.queuedBytes() <= MAX_QUEUED_BYTES / 2;
+        }
+
+        /**
+         * Queues a sample read by the reader thread, within the limits times factor.
+         *
+         * @return false if the track has no room for it
+         */
+        private boolean offer(ByteBuffer buffer, int size, long timeUs, int flags, int factor) {
+            if (isFull(factor))
+                return false;
+            buffer.limit(size);
+            buffer.position(0);
+            if (!mRing.offer(buffer, timeUs, flags))
+                return false;
+            mLastQueuedUs = timeUs;
+            if (mWaiting && mRing.size() >= WAKE_BATCH)
+                mLock.notifyAll();
+            return true;
+        }
+
+        private void clearQueue() {
+            mRing.clear();
+        }
+
+        /**
+         * Drops samples up to the first sync sample at or after timeUs, if that is close
+         * ahead of where the track is.
+         */
+        private boolean skipTo(long timeUs) {
+            long positionUs = !mRing.isEmpty() ? mRing.peekTimeUs() : mLastQueuedUs;
+            if (isDrained() || positionUs < 0 || timeUs <= positionUs || timeUs - positionUs > SKIP_WINDOW_US)
+                return false;
+            while (!mRing.isEmpty()) {
+                if ((mRing.peekFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0 && mRing.peekTimeUs() >= timeUs)
+                    return true;
+                mRing.advance();
+            }
+            if (!mEnded)
+                mSkipToUs = timeUs;
+            mLock.notifyAll();
+            return true;
+        }
+
+        private void rejoin(long timeUs, int mode) {
+            clearQueue();
+            mShared = true;
+            mEnded = false;
+            mSkipToUs = -1;
+            mLastQueuedUs = -1;
+            mSeekUs = timeUs;
+            mSeekMode = mode;
+        }
+
+        /**
+         * Splits the track off the shared reader where it is; the samples already queued are
+         * read first.
+         */
+        private void split() {
+            if (mSkipToUs >= 0) {
+                detach(mSkipToUs, MediaExtractor.SEEK_TO_NEXT_SYNC, -1);
+            } else if (mLastQueuedUs >= 0) {
+                mShared = false;
+                resumeAt(mLastQueuedUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC, mLastQueuedUs);
+            } else {
+                detach(mSeekUs, mSeekMode, -1);
+            }
+        }
+
+        private void detach(long timeUs, int mode, long afterUs) {
+            clearQueue();
+            mShared = false;
+            mEnded = false;
+            mSkipToUs = -1;
+            resumeAt(timeUs, mode, afterUs);
+            mLock.notifyAll();
+        }
+
+        private void resumeAt(long timeUs, int mode, long afterUs) {
+            mResumeSeekUs = timeUs;
+            mResumeSeekMode = mode;
+            mResumeAfterUs = afterUs;
+            mPrivatePositioned = false;
+        }
+
+        /**
+         * @return the track's own demuxer, opened on first use and moved to where the
+         * track left the shared reader
+         */
+        private Demuxer privateDemuxer() {
+            if (mPrivate == null) {
+                try {
+                    mPrivate = openTrack(mIndex);
+                } catch (IOException e) {
+                    throw new IllegalStateException("failed to reopen " + mSource, e);
+                }
+            }
+            if (!mPrivatePositioned) {
+                mPrivate.seekTo(mResumeSeekUs, mResumeSeekMode);
+                if (mResumeAfterUs >= 0) {
+                    // sample times are unique within a track, in whatever order they come
+                    long timeUs;
+                    while ((timeUs = mPrivate.getSampleTime()) >= 0 && timeUs != mResumeAfterUs) {
+                        mPrivate.advance();
+                    }
+                    mPrivate.advance();
+                }
+                mPrivatePositioned = true;
+            }
+            return mPrivate;
+        }
+
+        private void releasePrivate() {
+            if (mPrivate != null) {
+                mPrivate.release();
+                mPrivate = null;
+            }
+        }
+    }
+}
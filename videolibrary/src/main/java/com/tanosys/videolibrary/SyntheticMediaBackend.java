@@ -0,0 +1,1001 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.media.AudioTrack;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Deterministic {@link MediaBackend} which doesn't touch the platform media classes.
+ * <p>
+ * The demuxer produces fake packets on a fixed frame grid with a configurable GOP structure,
+ * and the decoder emits one output per input after a configurable decode latency. It lets
+ * the player's scheduling be benchmarked on a plain JVM.
+ * <p>
+ * Configure the backend before handing it to a {@link MoviePlayer}; the sample tables are
+ * built on the first demuxer or decoder created.
+ */
+public class SyntheticMediaBackend implements MediaBackend {
+    public static final String VIDEO_MIME = "video/avc";
+    public static final String AUDIO_MIME = "audio/mp4a-latm";
+
+    private long mDurationUs = 10000000;
+    private int mFrameRate = 30;
+    private int[] mGopPattern = {30};
+    private int mWidth = 1920;
+    private int mHeight = 1080;
+    private int mKeyFrameSize = 64 * 1024;
+    private int mDeltaFrameSize = 8 * 1024;
+    private long mVideoDecodeLatencyUs = 4000;
+    private long mKeyFrameDecodeLatencyUs = 8000;
+    private long mCodecConfigureLatencyUs = 0;
+    private long mCodecCreateLatencyUs = 0;
+    private int mMaxCodecInstances = 0;
+    private int mCodecInstances = 0;
+    private long mReadStallUs = 0;
+    private int mReadStallInterval = 0;
+
+    private boolean mHasAudio = true;
+    private int mSampleRate = 48000;
+    private int mChannelCount = 2;
+    private int mAudioFramesPerPacket = 1024;
+    private int mAudioPacketSize = 512;
+    private long mAudioDecodeLatencyUs = 500;
+
+    private int mBufferCount = 4;
+
+    private Track mVideoTrack;
+    private Track mAudioTrack;
+
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    public void setDurationUs(long durationUs) {
+        this.mDurationUs = durationUs;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    public void setFrameRate(int frameRate) {
+        this.mFrameRate = frameRate;
+    }
+
+    public int[] getGopPattern() {
+        return mGopPattern;
+    }
+
+    /**
+     * Sets the GOP lengths in frames. The pattern repeats until the end of the stream,
+     * so {@code {30}} gives a fixed GOP and {@code {12, 60, 24}} a variable one.
+     */
+    public void setGopPattern(int... gopPattern) {
+        if (gopPattern.length == 0) throw new IllegalArgumentException("empty gop pattern");
+        for (int gop : gopPattern) {
+            if (gop <= 0) throw new IllegalArgumentException("gop length must be positive: " + gop);
+        }
+        this.mGopPattern = gopPattern;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public void setWidth(int width) {
+        this.mWidth = width;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public void setHeight(int height) {
+        this.mHeight = height;
+    }
+
+    public int getKeyFrameSize() {
+        return mKeyFrameSize;
+    }
+
+    public void setKeyFrameSize(int keyFrameSize) {
+        this.mKeyFrameSize = keyFrameSize;
+    }
+
+    public int getDeltaFrameSize() {
+        return mDeltaFrameSize;
+    }
+
+    public void setDeltaFrameSize(int deltaFrameSize) {
+        this.mDeltaFrameSize = deltaFrameSize;
+    }
+
+    public long getVideoDecodeLatencyUs() {
+        return mVideoDecodeLatencyUs;
+    }
+
+    public void setVideoDecodeLatencyUs(long videoDecodeLatencyUs) {
+        this.mVideoDecodeLatencyUs = videoDecodeLatencyUs;
+    }
+
+    public long getKeyFrameDecodeLatencyUs() {
+        return mKeyFrameDecodeLatencyUs;
+    }
+
+    public void setKeyFrameDecodeLatencyUs(long keyFrameDecodeLatencyUs) {
+        this.mKeyFrameDecodeLatencyUs = keyFrameDecodeLatencyUs;
+    }
+
+    public long getCodecConfigureLatencyUs() {
+        return mCodecConfigureLatencyUs;
+    }
+
+    /**
+     * Time {@link Codec#configure} takes, the way setting up a hardware decoder does.
+     */
+    public void setCodecConfigureLatencyUs(long codecConfigureLatencyUs) {
+        this.mCodecConfigureLatencyUs = codecConfigureLatencyUs;
+    }
+
+    public long getCodecCreateLatencyUs() {
+        return mCodecCreateLatencyUs;
+    }
+
+    /**
+     * Time {@link #createDecoder} takes, the way allocating a hardware codec instance does.
+     */
+    public void setCodecCreateLatencyUs(long codecCreateLatencyUs) {
+        this.mCodecCreateLatencyUs = codecCreateLatencyUs;
+    }
+
+    public int getMaxCodecInstances() {
+        return mMaxCodecInstances;
+    }
+
+    /**
+     * Number of decoders which may be alive at once before {@link #createDecoder} fails
+     * like a device out of codec instances does; 0 for no limit.
+     */
+    public void setMaxCodecInstances(int maxCodecInstances) {
+        this.mMaxCodecInstances = maxCodecInstances;
+    }
+
+    public synchronized int getCodecInstances() {
+        return mCodecInstances;
+    }
+
+    public long getReadStallUs() {
+        return mReadStallUs;
+    }
+
+    public int getReadStallInterval() {
+        return mReadStallInterval;
+    }
+
+    /**
+     * Makes every interval-th {@link Demuxer#readSampleData} of a demuxer block for stallUs,
+     * the way reading from a slow SD card or FUSE mount does; an interval of 0 for none.
+     */
+    public void setReadStall(long stallUs, int interval) {
+        this.mReadStallUs = stallUs;
+        this.mReadStallInterval = interval;
+    }
+
+    public boolean hasAudio() {
+        return mHasAudio;
+    }
+
+    public void setHasAudio(boolean hasAudio) {
+        this.mHasAudio = hasAudio;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public void setSampleRate(int sampleRate) {
+        this.mSampleRate = sampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public void setChannelCount(int channelCount) {
+        this.mChannelCount = channelCount;
+    }
+
+    public int getAudioFramesPerPacket() {
+        return mAudioFramesPerPacket;
+    }
+
+    public void setAudioFramesPerPacket(int audioFramesPerPacket) {
+        this.mAudioFramesPerPacket = audioFramesPerPacket;
+    }
+
+    public int getAudioPacketSize() {
+        return mAudioPacketSize;
+    }
+
+    public void setAudioPacketSize(int audioPacketSize) {
+        this.mAudioPacketSize = audioPacketSize;
+    }
+
+    public long getAudioDecodeLatencyUs() {
+        return mAudioDecodeLatencyUs;
+    }
+
+    public void setAudioDecodeLatencyUs(long audioDecodeLatencyUs) {
+        this.mAudioDecodeLatencyUs = audioDecodeLatencyUs;
+    }
+
+    public int getBufferCount() {
+        return mBufferCount;
+    }
+
+    public void setBufferCount(int bufferCount) {
+        this.mBufferCount = bufferCount;
+    }
+
+    /**
+     * @return presentation times of every sync sample in the video track, in ascending order
+     */
+    public long[] getKeyFrameTimesUs() {
+        Track video = getVideoTrack();
+        long[] times = new long[video.syncIndices.length];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = video.timesUs[video.syncIndices[i]];
+        }
+        return times;
+    }
+
+    @Override
+    public Demuxer createDemuxer(DataSource source) {
+        return new SyntheticDemuxer(this);
+    }
+
+    @Override
+    public Codec createDecoder(String mime) throws IOException {
+        Track track;
+        long latencyUs, keyFrameLatencyUs;
+        if (VIDEO_MIME.equals(mime)) {
+            track = getVideoTrack();
+            latencyUs = mVideoDecodeLatencyUs;
+            keyFrameLatencyUs = mKeyFrameDecodeLatencyUs;
+        } else if (AUDIO_MIME.equals(mime) && mHasAudio) {
+            track = getAudioTrack();
+            latencyUs = keyFrameLatencyUs = mAudioDecodeLatencyUs;
+        } else {
+            throw new IllegalArgumentException("no synthetic decoder for " + mime);
+        }
+        if (mCodecCreateLatencyUs > 0) {
+            try {
+                Thread.sleep(mCodecCreateLatencyUs / 1000, (int) (mCodecCreateLatencyUs % 1000) * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (mMaxCodecInstances > 0 && mCodecInstances >= mMaxCodecInstances)
+                throw new IOException("out of codec instances (" + mMaxCodecInstances + ")");
+            mCodecInstances++;
+        }
+        return new SyntheticCodec(this, track, latencyUs, keyFrameLatencyUs, mCodecConfigureLatencyUs, mBufferCount);
+    }
+
+    private synchronized void onCodecReleased() {
+        mCodecInstances--;
+    }
+
+    @Override
+    public AudioSink createAudioSink(TrackFormat format) {
+        return new SyntheticAudioSink(format.getSampleRate(), format.getChannelCount());
+    }
+
+    @Override
+    public long getDuration(DataSource source) {
+        return mDurationUs / 1000;
+    }
+
+    @Override
+    public boolean rendersToSurface() {
+        return false;
+    }
+
+    synchronized Track getVideoTrack() {
+        if (mVideoTrack == null) {
+            TrackFormat format = new TrackFormat(VIDEO_MIME);
+            format.setWidth(mWidth);
+            format.setHeight(mHeight);
+            format.setMaxInputSize(Math.max(mKeyFrameSize, mDeltaFrameSize));
+            format.setDurationUs(mDurationUs);
+            int count = (int) (mDurationUs * mFrameRate / 1000000L);
+            long[] times = new long[count];
+            int[] sizes = new int[count];
+            boolean[] sync = new boolean[count];
+            int gop = 0;
+            int nextKeyFrame = 0;
+            for (int i = 0; i < count; i++) {
+                times[i] = i * 1000000L / mFrameRate;
+                sync[i] = i == nextKeyFrame;
+                if (sync[i]) {
+                    nextKeyFrame += mGopPattern[gop++ % mGopPattern.length];
+                }
+                sizes[i] = sync[i] ? mKeyFrameSize : mDeltaFrameSize;
+            }
+            // decoded frames are I420 when no surface is attached
+            mVideoTrack = new Track(format, times, sizes, sync, mWidth * mHeight * 3 / 2);
+        }
+        return mVideoTrack;
+    }
+
+    synchronized Track getAudioTrack() {
+        if (mAudioTrack == null && mHasAudio) {
+            TrackFormat format = new TrackFormat(AUDIO_MIME);
+            format.setSampleRate(mSampleRate);
+            format.setChannelCount(mChannelCount);
+            format.setMaxInputSize(mAudioPacketSize);
+            format.setDurationUs(mDurationUs);
+            int count = (int) ((mDurationUs * mSampleRate / 1000000L + mAudioFramesPerPacket - 1) / mAudioFramesPerPacket);
+            long[] times = new long[count];
+            int[] sizes = new int[count];
+            boolean[] sync = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = (long) i * mAudioFramesPerPacket * 1000000L / mSampleRate;
+                sizes[i] = mAudioPacketSize;
+                sync[i] = true;
+            }
+            mAudioTrack = new Track(format, times, sizes, sync, mAudioFramesPerPacket * mChannelCount * 2);
+        }
+        return mAudioTrack;
+    }
+
+    static class Track {
+        final TrackFormat format;
+        final long[] timesUs;
+        final int[] sizes;
+        final boolean[] sync;
+        final int[] syncIndices;
+        final int outputSize;
+
+        Track(TrackFormat format, long[] timesUs, int[] sizes, boolean[] sync, int outputSize) {
+            this.format = format;
+            this.timesUs = timesUs;
+            this.sizes = sizes;
+            this.sync = sync;
+            this.outputSize = outputSize;
+            int syncCount = 0;
+            for (boolean s : sync) {
+                if (s) syncCount++;
+            }
+            syncIndices = new int[syncCount];
+            for (int i = 0, j = 0; i < sync.length; i++) {
+                if (sync[i]) syncIndices[j++] = i;
+            }
+        }
+
+        int maxSampleSize() {
+            int max = 0;
+            for (int size : sizes) {
+                max = Math.max(max, size);
+            }
+            return max;
+        }
+
+        /**
+         * @return index of the last sample at or before {@code timeUs}, or -1
+         */
+        int floorSample(long timeUs) {
+            int i = Arrays.binarySearch(timesUs, timeUs);
+            return i >= 0 ? i : -i - 2;
+        }
+
+        boolean isSyncTime(long timeUs) {
+            int i = Arrays.binarySearch(timesUs, timeUs);
+            return i >= 0 && sync[i];
+        }
+
+        int seek(long timeUs, int mode) {
+            if (timesUs.length == 0) return 0;
+            int floor = Math.max(floorSample(timeUs), 0);
+            // position among sync samples: the last sync at or before floor
+            int s = Arrays.binarySearch(syncIndices, floor);
+            int previous = s >= 0 ? s : Math.max(-s - 2, 0);
+            int next = timesUs[syncIndices[previous]] >= timeUs ? previous : previous + 1;
+            switch (mode) {
+                case MediaExtractor.SEEK_TO_NEXT_SYNC:
+                    return next < syncIndices.length ? syncIndices[next] : timesUs.length;
+                case MediaExtractor.SEEK_TO_CLOSEST_SYNC:
+                    if (next >= syncIndices.length)
+                        return syncIndices[previous];
+                    return timeUs - timesUs[syncIndices[previous]] <= timesUs[syncIndices[next]] - timeUs
+                            ? syncIndices[previous] : syncIndices[next];
+                default:
+                    return syncIndices[previous];
+            }
+        }
+    }
+
+    static class SyntheticDemuxer implements Demuxer {
+        private final Track[] mTracks;
+        private final boolean[] mSelected;
+        private final int[] mCursor;
+        private final byte[] mPattern;
+        private final long mReadStallUs;
+        private final int mReadStallInterval;
+        private int mReads = 0;
+        private boolean mReleased = false;
+
+        SyntheticDemuxer(SyntheticMediaBackend backend) {
+            mReadStallUs = backend.mReadStallUs;
+            mReadStallInterval = backend.mReadStallInterval;
+            Track audio = backend.getAudioTrack();
+            mTracks = audio != null ? new Track[]{backend.getVideoTrack(), audio} : new Track[]{backend.getVideoTrack()};
+            mSelected = new boolean[mTracks.length];
+            mCursor = new int[mTracks.length];
+            int max = 0;
+            for (Track track : mTracks) {
+                max = Math.max(max, track.maxSampleSize());
+            }
+            mPattern = new byte[max];
+            for (int i = 0; i < max; i++) {
+                mPattern[i] = (byte) i;
+            }
+        }
+
+        @Override
+        public int getTrackCount() {
+            return mTracks.length;
+        }
+
+        @Override
+        public TrackFormat getTrackFormat(int index) {
+            return mTracks[index].format;
+        }
+
+        @Override
+        public void selectTrack(int index) {
+            mSelected[index] = true;
+        }
+
+        @Override
+        public void seekTo(long timeUs, int mode) {
+            for (int i = 0; i < mTracks.length; i++) {
+                if (mSelected[i])
+                    mCursor[i] = mTracks[i].seek(timeUs, mode);
+            }
+        }
+
+        private int currentTrack() {
+            if (mReleased) throw new IllegalStateException("demuxer is released");
+            int current = -1;
+            long time = Long.MAX_VALUE;
+            for (int i = 0; i < mTracks.length; i++) {
+                if (mSelected[i] && mCursor[i] < mTracks[i].timesUs.length
+                        && mTracks[i].timesUs[mCursor[i]] < time) {
+                    current = i;
+                    time = mTracks[i].timesUs[mCursor[i]];
+                }
+            }
+            return current;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer, int offset) {
+            int track = currentTrack();
+            if (track < 0) return -1;
+            if (mReadStallInterval > 0 && ++mReads % mReadStallInterval == 0) {
+                try {
+                    Thread.sleep(mReadStallUs / 1000, (int) (mReadStallUs % 1000) * 1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            int size = mTracks[track].sizes[mCursor[track]];
+            buffer.clear();
+            buffer.position(offset);
+            buffer.put(mPattern, 0, size);
+            buffer.limit(offset + size);
+            buffer.position(offset);
+            return size;
+        }
+
+        @Override
+        public long getSampleTime() {
+            int track = currentTrack();
+            return track < 0 ? -1 : mTracks[track].timesUs[mCursor[track]];
+        }
+
+        @Override
+        public int getSampleFlags() {
+            int track = currentTrack();
+            return track >= 0 && mTracks[track].sync[mCursor[track]] ? MediaExtractor.SAMPLE_FLAG_SYNC : 0;
+        }
+
+        @Override
+        public int getSampleTrackIndex() {
+            return currentTrack();
+        }
+
+        @Override
+        public boolean advance() {
+            // like MediaExtractor, stepping past the last sample still succeeds and the
+            // end of stream is reported by the next readSampleData()
+            int track = currentTrack();
+            if (track < 0) return false;
+            mCursor[track]++;
+            return true;
+        }
+
+        @Override
+        public void release() {
+            mReleased = true;
+        }
+    }
+
+    /**
+     * Single decode unit: every queued input becomes one output once the previous output
+     * and its own decode latency have elapsed. Queues are index rings so steady state
+     * decoding doesn't allocate.
+     */
+    static class SyntheticCodec implements Codec {
+        private final SyntheticMediaBackend mBackend;
+        private final Track mTrack;
+        private final long mLatencyNs;
+        private final long mKeyFrameLatencyNs;
+        private final long mConfigureLatencyUs;
+        private final int mBufferCount;
+        private final Object mLock = new Object();
+
+        private final ByteBuffer[] mInputBuffers;
+        private final ByteBuffer[] mOutputBuffers;
+        private final boolean[] mInputFree;
+        private final boolean[] mOutputFree;
+
+        // pending decodes in queue order
+        private final int[] mPendingInput;
+        private final long[] mPendingTimeUs;
+        private final int[] mPendingFlags;
+        private final long[] mPendingReadyAtNs;
+        private int mPendingHead = 0;
+        private int mPendingCount = 0;
+        private long mLastReadyAtNs = 0;
+
+        private boolean mConfigured = false;
+        private boolean mStarted = false;
+        private boolean mFormatReported = false;
+        private boolean mByteBufferOutput = true;
+        private boolean mReleased = false;
+
+        private Callback mCallback;
+        // bumped on start and stop so that a dispatcher from an earlier run exits
+        private int mGeneration = 0;
+
+        SyntheticCodec(SyntheticMediaBackend backend, Track track, long latencyUs, long keyFrameLatencyUs,
+                       long configureLatencyUs, int bufferCount) {
+            mBackend = backend;
+            mTrack = track;
+            mLatencyNs = latencyUs * 1000;
+            mKeyFrameLatencyNs = keyFrameLatencyUs * 1000;
+            mConfigureLatencyUs = configureLatencyUs;
+            mBufferCount = bufferCount;
+            mInputBuffers = new ByteBuffer[bufferCount];
+            mOutputBuffers = new ByteBuffer[bufferCount];
+            mInputFree = new boolean[bufferCount];
+            mOutputFree = new boolean[bufferCount];
+            mPendingInput = new int[bufferCount];
+            mPendingTimeUs = new long[bufferCount];
+            mPendingFlags = new int[bufferCount];
+            mPendingReadyAtNs = new long[bufferCount];
+            int inputSize = track.maxSampleSize();
+            for (int i = 0; i < bufferCount; i++) {
+                mInputBuffers[i] = ByteBuffer.allocateDirect(inputSize);
+            }
+        }
+
+        @Override
+        public boolean isCallbackSupported() {
+            return true;
+        }
+
+        @Override
+        public void setCallback(Callback callback) {
+            synchronized (mLock) {
+                if (mConfigured) throw new IllegalStateException("setCallback called after configure");
+                mCallback = callback;
+            }
+        }
+
+        @Override
+        public void configure(TrackFormat format, Surface surface) {
+            if (mConfigureLatencyUs > 0) {
+                try {
+                    Thread.sleep(mConfigureLatencyUs / 1000, (int) (mConfigureLatencyUs % 1000) * 1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (mLock) {
+                if (mStarted) throw new IllegalStateException("configure called while started");
+                mByteBufferOutput = surface == null;
+                if (mOutputBuffers[0] == null) {
+                    for (int i = 0; i < mBufferCount; i++) {
+                        mOutputBuffers[i] = ByteBuffer.allocateDirect(mTrack.outputSize);
+                    }
+                }
+                mConfigured = true;
+            }
+        }
+
+        @Override
+        public void start() {
+            synchronized (mLock) {
+                if (!mConfigured) throw new IllegalStateException("start called before configure");
+                mStarted = true;
+                mFormatReported = false;
+                mGeneration++;
+                resetQueues();
+                if (mCallback != null) {
+                    final int generation = mGeneration;
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            dispatch(generation);
+                        }
+                    }, "SyntheticCodecCallback").start();
+                }
+            }
+        }
+
+        /**
+         * Hands buffers to the callback for as long as the codec stays in the run it was
+         * started with. Callbacks are made holding the codec's lock, so none of them can
+         * arrive after a flush or stop has returned.
+         */
+        private void dispatch(int generation) {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            while (true) {
+                try {
+                    synchronized (mLock) {
+                        int index;
+                        while ((index = dequeueInput(0, generation)) >= 0) {
+                            mCallback.onInputBufferAvailable(index);
+                        }
+                        index = dequeueOutput(info, 10000, generation);
+                        if (index >= 0) {
+                            mCallback.onOutputBufferAvailable(index, info);
+                        } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                            mCallback.onOutputFormatChanged(mTrack.format);
+                        }
+                    }
+                } catch (IllegalStateException e) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void stop() {
+            synchronized (mLock) {
+                mStarted = false;
+                mConfigured = false;
+                mGeneration++;
+                resetQueues();
+                mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void flush() {
+            synchronized (mLock) {
+                checkStarted();
+                // like MediaCodec, an asynchronous codec stays quiet until start() is called again
+                if (mCallback != null)
+                    mGeneration++;
+                resetQueues();
+                mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void release() {
+            stop();
+            synchronized (mLock) {
+                if (mReleased) return;
+                mReleased = true;
+            }
+            mBackend.onCodecReleased();
+        }
+
+        private void resetQueues() {
+            Arrays.fill(mInputFree, true);
+            Arrays.fill(mOutputFree, true);
+            mPendingHead = 0;
+            mPendingCount = 0;
+            mLastReadyAtNs = 0;
+        }
+
+        private void checkStarted() {
+            checkStarted(-1);
+        }
+
+        private void checkStarted(int generation) {
+            if (!mStarted || generation >= 0 && generation != mGeneration)
+                throw new IllegalStateException("codec is not started");
+        }
+
+        @Override
+        public int dequeueInputBuffer(long timeoutUs) {
+            return dequeueInput(timeoutUs, -1);
+        }
+
+        private int dequeueInput(long timeoutUs, int generation) {
+            synchronized (mLock) {
+                checkStarted(generation);
+                long deadline = System.nanoTime() + timeoutUs * 1000;
+                while (true) {
+                    for (int i = 0; i < mBufferCount; i++) {
+                        if (mInputFree[i]) {
+                            mInputFree[i] = false;
+                            mInputBuffers[i].clear();
+                            return i;
+                        }
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (timeoutUs == 0 || remaining <= 0 || !waitNanos(remaining))
+                        return MediaCodec.INFO_TRY_AGAIN_LATER;
+                    checkStarted(generation);
+                }
+            }
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return mInputBuffers[index];
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+            synchronized (mLock) {
+                checkStarted();
+                if (mInputFree[index]) throw new IllegalStateException("input buffer " + index + " is not dequeued");
+                long now = System.nanoTime();
+                long latency;
+                if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 || size == 0) {
+                    latency = 0;
+                } else if (mTrack.isSyncTime(presentationTimeUs)) {
+                    latency = mKeyFrameLatencyNs;
+                } else {
+                    latency = mLatencyNs;
+                }
+                long readyAt = Math.max(now, mLastReadyAtNs) + latency;
+                mLastReadyAtNs = readyAt;
+                int slot = (mPendingHead + mPendingCount) % mBufferCount;
+                mPendingInput[slot] = index;
+                mPendingTimeUs[slot] = presentationTimeUs;
+                mPendingFlags[slot] = flags;
+                mPendingReadyAtNs[slot] = size == 0 && (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0 ? -1 : readyAt;
+                mPendingCount++;
+                mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+            return dequeueOutput(info, timeoutUs, -1);
+        }
+
+        private int dequeueOutput(MediaCodec.BufferInfo info, long timeoutUs, int generation) {
+            synchronized (mLock) {
+                checkStarted(generation);
+                if (!mFormatReported) {
+                    mFormatReported = true;
+                    return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+                }
+                long deadline = System.nanoTime() + timeoutUs * 1000;
+                while (true) {
+                    // empty non-EOS inputs produce no output
+                    while (mPendingCount > 0 && mPendingReadyAtNs[mPendingHead] < 0) {
+                        mInputFree[mPendingInput[mPendingHead]] = true;
+                        mPendingHead = (mPendingHead + 1) % mBufferCount;
+                        mPendingCount--;
+                        mLock.notifyAll();
+                    }
+                    long now = System.nanoTime();
+                    int output = freeOutput();
+                    if (mPendingCount > 0 && output >= 0 && mPendingReadyAtNs[mPendingHead] <= now) {
+                        int slot = mPendingHead;
+                        mPendingHead = (mPendingHead + 1) % mBufferCount;
+                        mPendingCount--;
+                        mInputFree[mPendingInput[slot]] = true;
+                        mOutputFree[output] = false;
+                        int flags = mPendingFlags[slot] & MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                        boolean eos = flags != 0;
+                        if (!eos && mTrack.format.isVideo() && mTrack.isSyncTime(mPendingTimeUs[slot]))
+                            flags |= MediaCodec.BUFFER_FLAG_KEY_FRAME;
+                        int size = eos || !mByteBufferOutput && mTrack.format.isVideo() ? 0 : mTrack.outputSize;
+                        info.offset = 0;
+                        info.size = size;
+                        info.presentationTimeUs = eos ? 0 : mPendingTimeUs[slot];
+                        info.flags = flags;
+                        mOutputBuffers[output].clear();
+                        mOutputBuffers[output].limit(size);
+                        mLock.notifyAll();
+                        return output;
+                    }
+                    long remaining = deadline - now;
+                    if (timeoutUs == 0 || remaining <= 0)
+                        return MediaCodec.INFO_TRY_AGAIN_LATER;
+                    if (mPendingCount > 0 && output >= 0)
+                        remaining = Math.min(remaining, mPendingReadyAtNs[mPendingHead] - now);
+                    if (!waitNanos(remaining))
+                        return MediaCodec.INFO_TRY_AGAIN_LATER;
+                    checkStarted(generation);
+                }
+            }
+        }
+
+        private int freeOutput() {
+            for (int i = 0; i < mBufferCount; i++) {
+                if (mOutputFree[i]) return i;
+            }
+            return -1;
+        }
+
+        /**
+         * @return false when the waiting thread was interrupted; the interrupt is kept so
+         * that the decode loop sees it, the same way it would around a real codec.
+         */
+        private boolean waitNanos(long nanos) {
+            try {
+                mLock.wait(nanos / 1000000, (int) (nanos % 1000000));
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return mOutputBuffers[index];
+        }
+
+        @Override
+        public Image getOutputImage(int index) {
+            return null;
+        }
+
+        @Override
+        public TrackFormat getOutputFormat() {
+            return mTrack.format;
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index, boolean render) {
+            synchronized (mLock) {
+                checkStarted();
+                if (mOutputFree[index]) throw new IllegalStateException("output buffer " + index + " is not dequeued");
+                mOutputFree[index] = true;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Discards whatever is written to it, counting the frames. While playing it consumes
+     * them in real time at the sample rate like an AudioTrack: the head stalls when it runs
+     * out of data, and writes block while {@link #BUFFER_US} worth of frames is queued.
+     */
+    static class SyntheticAudioSink implements AudioSink {
+        static final long BUFFER_US = 100000;
+
+        private final int mFrameSize;
+        private final long mBufferFrames;
+        private volatile long mFramesWritten = 0;
+        private boolean mReleased = false;
+        private boolean mPlaying = false;
+        private final int mSampleRate;
+        // head position at mHeadSystemTimeNs; the head moves on from there while playing
+        private long mHeadFrames = 0;
+        private long mHeadSystemTimeNs = 0;
+
+        SyntheticAudioSink(int sampleRate, int channelCount) {
+            mFrameSize = 2 * Math.max(channelCount, 1);
+            mSampleRate = sampleRate;
+            mBufferFrames = Math.max(sampleRate * BUFFER_US / 1000000, 1);
+        }
+
+        long getFramesWritten() {
+            return mFramesWritten;
+        }
+
+        @Override
+        public synchronized void play() {
+            rebaseHead();
+            mPlaying = true;
+        }
+
+        @Override
+        public synchronized void pause() {
+            rebaseHead();
+            mPlaying = false;
+        }
+
+        @Override
+        public synchronized void stop() {
+            pause();
+        }
+
+        @Override
+        public synchronized void flush() {
+            mHeadFrames = mFramesWritten;
+            mHeadSystemTimeNs = System.nanoTime();
+        }
+
+        @Override
+        public synchronized void release() {
+            mReleased = true;
+            mPlaying = false;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer buffer, int size) {
+            if (mReleased) return AudioTrack.ERROR_INVALID_OPERATION;
+            // an underrun leaves the head where the data ran out
+            rebaseHead();
+            long queued;
+            while (mPlaying && !mReleased && (queued = mFramesWritten - getPlaybackHeadPosition()) >= mBufferFrames) {
+                long waitNs = (long) ((queued - mBufferFrames + 1) * 1000000000.0 / mSampleRate);
+                try {
+                    wait(Math.max(waitNs / 1000000, 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            buffer.position(buffer.position() + size);
+            mFramesWritten += size / mFrameSize;
+            return size;
+        }
+
+        @Override
+        public synchronized long getPlaybackHeadPosition() {
+            if (!mPlaying)
+                return mHeadFrames;
+            long played = (long) ((System.nanoTime() - mHeadSystemTimeNs) * (double) mSampleRate / 1000000000);
+            return Math.min(mHeadFrames + played, mFramesWritten);
+        }
+
+        private void rebaseHead() {
+            mHeadFrames = getPlaybackHeadPosition();
+            mHeadSystemTimeNs = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Changes the tempo of 16 bit PCM without changing its pitch, by WSOLA (waveform
+ * similarity overlap-add).
+ * <p>
+ * Input is cut into {@link #SEQUENCE_MS} sequences that overlap by {@link #OVERLAP_MS}.
+ * Sequences are taken from the input at intervals scaled by the rate, each from wherever
+ * within {@link #SEEK_MS} its start best matches the end of the previous one, and
+ * cross-faded together. All buffers are primitive arrays that only grow, so steady state
+ * processing doesn't allocate.
+ */
+final class TimeStretcher {
+    static final int SEQUENCE_MS = 40;
+    static final int OVERLAP_MS = 8;
+    static final int SEEK_MS = 15;
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mSequenceFrames;
+    private final int mOverlapFrames;
+    private final int mSeekFrames;
+
+    private volatile double mRate = 1.0;
+    // true once a sequence has been stretched since the last flush; until then rate 1.0 is
+    // passed through untouched
+    private boolean mActive = false;
+
+    // interleaved samples; the first mInputFrames frames of mInput are pending
+    private short[] mInput;
+    private int mInputFrames = 0;
+    private long mInputTimeUs = 0;
+    // the last overlap of the previous sequence, faded into the next one
+    private final short[] mOverlap;
+    private boolean mHasOverlap = false;
+    private double mSkipFraction = 0;
+
+    private short[] mOutput;
+    private int mOutputFrames = 0;
+    private long mOutputTimeUs = 0;
+    private double mOutputRate = 1.0;
+
+    TimeStretcher(int sampleRate, int channelCount) {
+        mSampleRate = sampleRate;
+        mChannels = Math.max(channelCount, 1);
+        mSequenceFrames = sampleRate * SEQUENCE_MS / 1000;
+        mOverlapFrames = sampleRate * OVERLAP_MS / 1000;
+        mSeekFrames = sampleRate * SEEK_MS / 1000;
+        mOverlap = new short[mOverlapFrames * mChannels];
+        mInput = new short[(mSeekFrames + mSequenceFrames) * 2 * mChannels];
+        mOutput = new short[mSequenceFrames * 2 * mChannels];
+    }
+
+    /**
+     * May be called from any thread; takes effect from the next sequence.
+     */
+    void setRate(double rate) {
+        mRate = rate;
+    }
+
+    double getRate() {
+        return mRate;
+    }
+
+    /**
+     * @return true if input has to go through {@link #put}; false while the rate is 1.0 and
+     * nothing has been stretched since the last {@link #flush}
+     */
+    boolean isActive() {
+        return mActive || mRate != 1.0;
+    }
+
+    /**
+     * Appends frames to the input and stretches as many sequences as it can.
+     *
+     * @param pcm                native order 16 bit PCM from its position; the position is
+     *                           moved past what was read
+     * @param presentationTimeUs media time of the first frame
+     */
+    void put(ByteBuffer pcm, int size, long presentationTimeUs) {
+        int frames = size / (2 * mChannels);
+        if (mInputFrames == 0)
+            mInputTimeUs = presentationTimeUs;
+        ensureInput(mInputFrames + frames);
+        pcm.order(ByteOrder.nativeOrder());
+        int offset = mInputFrames * mChannels;
+        int position = pcm.position();
+        for (int i = 0, n = frames * mChannels; i < n; i++) {
+            mInput[offset + i] = pcm.getShort(position + 2 * i);
+        }
+        pcm.position(position + frames * 2 * mChannels);
+        mInputFrames += frames;
+        process();
+    }
+
+    /**
+     * Same as {@link #put(ByteBuffer, int, long)} for interleaved samples in an array.
+     */
+    void put(short[] samples, int frames, long presentationTimeUs) {
+        if (mInputFrames == 0)
+            mInputTimeUs = presentationTimeUs;
+        ensureInput(mInputFrames + frames);
+        System.arraycopy(samples, 0, mInput, mInputFrames * mChannels, frames * mChannels);
+        mInputFrames += frames;
+        process();
+    }
+
+    /**
+     * @return frames of stretched output waiting in {@link #drain}
+     */
+    int getOutputFrames() {
+        return mOutputFrames;
+    }
+
+    /**
+     * @return media time of the first output frame waiting
+     */
+    long getOutputTimeUs() {
+        return mOutputTimeUs;
+    }
+
+    /**
+     * @return rate the waiting output was stretched at
+     */
+    double getOutputRate() {
+        return mOutputRate;
+    }
+
+    /**
+     * Moves all waiting output into out, from its position, as native order 16 bit PCM.
+     *
+     * @return frames moved; out has to have room for {@link #getOutputFrames()}
+     */
+    int drain(ByteBuffer out) {
+        int frames = mOutputFrames;
+        out.order(ByteOrder.nativeOrder());
+        int position = out.position();
+        for (int i = 0, n = frames * mChannels; i < n; i++) {
+            out.putShort(position + 2 * i, mOutput[i]);
+        }
+        out.position(position + frames * 2 * mChannels);
+        mOutputFrames = 0;
+        return frames;
+    }
+
+    /**
+     * Same as {@link #drain(ByteBuffer)} into an array of interleaved samples.
+     */
+    int drain(short[] out) {
+        int frames = mOutputFrames;
+        System.arraycopy(mOutput, 0, out, 0, frames * mChannels);
+        mOutputFrames = 0;
+        return frames;
+    }
+
+    /**
+     * Drops everything buffered; call when the input jumps.
+     */
+    void flush() {
+        mInputFrames = 0;
+        mOutputFrames = 0;
+        mHasOverlap = false;
+        mSkipFraction = 0;
+        mActive = false;
+    }
+
+    private void process() {
+        if (!mActive && mRate == 1.0) {
+            // nothing stretched yet: pass the input straight through
+            appendOutput(mInput, 0, mInputFrames, mInputTimeUs, 1.0);
+            mInputFrames = 0;
+            return;
+        }
+        mActive = true;
+        while (true) {
+            double rate = mRate;
+            int stride = mSequenceFrames - mOverlapFrames;
+            double skip = rate * stride + mSkipFraction;
+            int needed = Math.max(mSeekFrames + mSequenceFrames, (int) skip);
+            if (mInputFrames < needed)
+                return;
+            int offset = mHasOverlap ? bestOffset() : 0;
+            // output advances the media time by exactly what is consumed below; the offset
+            // only shifts which samples fill it
+            if (mHasOverlap) {
+                crossFade(offset);
+                appendOutput(mInput, offset + mOverlapFrames, stride - mOverlapFrames, mInputTimeUs, rate);
+            } else {
+                appendOutput(mInput, offset, stride, mInputTimeUs, rate);
+            }
+            System.arraycopy(mInput, (offset + stride) * mChannels, mOverlap, 0, mOverlapFrames * mChannels);
+            mHasOverlap = true;
+            int consumed = (int) skip;
+            mSkipFraction = skip - consumed;
+            consumeInput(consumed);
+        }
+    }
+
+    /**
+     * @return offset within the seek window whose start is most like the saved overlap
+     */
+    private int bestOffset() {
+        int samples = mOverlapFrames * mChannels;
+        double best = -Double.MAX_VALUE;
+        int bestOffset = 0;
+        for (int offset = 0; offset < mSeekFrames; offset++) {
+            int base = offset * mChannels;
+            long correlation = 0;
+            long energy = 0;
+            for (int i = 0; i < samples; i++) {
+                int s = mInput[base + i];
+                correlation += s * mOverlap[i];
+                energy += s * s;
+            }
+            double score = correlation / Math.sqrt(energy + 1);
+            if (score > best) {
+                best = score;
+                bestOffset = offset;
+            }
+        }
+        return bestOffset;
+    }
+
+    /**
+     * Appends the saved overlap faded out over the input at offset faded in.
+     */
+    private void crossFade(int offset) {
+        ensureOutput(mOutputFrames + mOverlapFrames);
+        if (mOutputFrames == 0)
+            mOutputTimeUs = mInputTimeUs;
+        int out = mOutputFrames * mChannels;
+        int in = offset * mChannels;
+        for (int frame = 0; frame < mOverlapFrames; frame++) {
+            int fadeIn = frame;
+            int fadeOut = mOverlapFrames - frame;
+            for (int c = 0; c < mChannels; c++) {
+                int i = frame * mChannels + c;
+                mOutput[out + i] = (short) ((mOverlap[i] * fadeOut + mInput[in + i] * fadeIn) / mOverlapFrames);
+            }
+        }
+        mOutputFrames += mOverlapFrames;
+        mOutputRate = mRate;
+    }
+
+    private void appendOutput(short[] source, int fromFrame, int frames, long timeUs, double rate) {
+        ensureOutput(mOutputFrames + frames);
+        if (mOutputFrames == 0)
+            mOutputTimeUs = timeUs;
+        System.arraycopy(source, fromFrame * mChannels, mOutput, mOutputFrames * mChannels, frames * mChannels);
+        mOutputFrames += frames;
+        mOutputRate = rate;
+    }
+
+    private void consumeInput(int frames) {
+        mInputFrames -= frames;
+        System.arraycopy(mInput, frames * mChannels, mInput, 0, mInputFrames * mChannels);
+        mInputTimeUs += frames * 1000000L / mSampleRate;
+    }
+
+    private void ensureInput(int frames) {
+        if (frames * mChannels > mInput.length) {
+            short[] input = new short[Math.max(frames * mChannels, mInput.length * 2)];
+            System.arraycopy(mInput, 0, input, 0, mInputFrames * mChannels);
+            mInput = input;
+        }
+    }
+
+    private void ensureOutput(int frames) {
+        if (frames * mChannels > mOutput.length) {
+            short[] output = new short[Math.max(frames * mChannels, mOutput.length * 2)];
+            System.arraycopy(mOutput, 0, output, 0, mOutputFrames * mChannels);
+            mOutput = output;
+        }
+    }
+}
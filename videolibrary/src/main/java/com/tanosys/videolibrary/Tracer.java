@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Binary event trace for the decode loops.
+ * <p>
+ * Call sites are written as {@code if (Tracer.ENABLED) Tracer.trace(...)}; with
+ * {@link #ENABLED} false the compiler drops them, so release builds pay nothing. When
+ * enabled, every event is four longs in a fixed ring: claiming a slot is one atomic
+ * increment and nothing is allocated, so tracing doesn't disturb the timing it records.
+ * The newest {@link #CAPACITY} events can be written out with {@link #dump(Appendable)}.
+ */
+public final class Tracer {
+    /**
+     * Flip to true and rebuild to record events.
+     */
+    public static final boolean ENABLED = false;
+
+    public static final int TRACK_NONE = 0;
+    public static final int TRACK_VIDEO = 1;
+    public static final int TRACK_AUDIO = 2;
+
+    /** a: presentation time, b: sample size */
+    public static final int INPUT_QUEUED = 1;
+    /** a: input buffer index */
+    public static final int INPUT_EOS = 2;
+    /** a: seek target */
+    public static final int INPUT_EMPTY_WHILE_SEEKING = 3;
+    /** a: presentation time, b: flags */
+    public static final int OUTPUT_BUFFER = 4;
+    public static final int OUTPUT_FORMAT_CHANGED = 5;
+    public static final int OUTPUT_BUFFERS_CHANGED = 6;
+    public static final int OUTPUT_EOS = 7;
+    /** a: presentation time, b: distance to the seek target */
+    public static final int SEEK_FRAME = 8;
+    /** a: presentation time, b: seek target */
+    public static final int SEEK_RENDERED = 9;
+    /** a: new seek target, b: distance from the previous target */
+    public static final int SEEK_REQUESTED = 10;
+    /** a: presentation time, b: offset from the playback clock, positive when early */
+    public static final int VIDEO_RENDERED = 11;
+    /** a: presentation time, b: lateness in microseconds of real time */
+    public static final int FRAME_DROPPED = 12;
+    /** a: next sample before the skip, b: sync sample skipped to */
+    public static final int SKIPPED_TO_SYNC = 13;
+    /** a: start of the segment decoded for reverse playback, b: frames kept */
+    public static final int REVERSE_SEGMENT_DECODED = 14;
+    /** a: offset added to sample times from now on */
+    public static final int LOOPED = 15;
+
+    private static final String[] EVENT_NAMES = {
+            "?", "input-queued", "input-eos", "input-empty-while-seeking", "output-buffer",
+            "output-format-changed", "output-buffers-changed", "output-eos", "seek-frame",
+            "seek-rendered", "seek-requested", "video-rendered", "frame-dropped", "skipped-to-sync",
+            "reverse-segment-decoded", "looped"
+    };
+    private static final String[] TRACK_NAMES = {"-", "video", "audio"};
+
+    public static final int CAPACITY = 4096;
+    private static final int SLOT_SIZE = 4;
+
+    private static final AtomicLong sNextSequence = new AtomicLong();
+    // sequence number each slot holds, -1 while it's being written
+    private static final AtomicLongArray sSequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray sSlots = new AtomicLongArray(CAPACITY * SLOT_SIZE);
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sSequences.set(i, -1);
+        }
+    }
+
+    private Tracer() {
+    }
+
+    public static void trace(int event, int track, long a, long b) {
+        long sequence = sNextSequence.getAndIncrement();
+        int slot = (int) (sequence & (CAPACITY - 1));
+        int base = slot * SLOT_SIZE;
+        sSequences.lazySet(slot, -1);
+        sSlots.lazySet(base, System.nanoTime());
+        sSlots.lazySet(base + 1, ((long) event << 32) | track);
+        sSlots.lazySet(base + 2, a);
+        sSlots.lazySet(base + 3, b);
+        sSequences.lazySet(slot, sequence);
+    }
+
+    /**
+     * Writes the recorded events oldest first, one per line:
+     * {@code sequence timeNs track event a b}. Slots overwritten while dumping are skipped.
+     */
+    public static void dump(Appendable out) throws IOException {
+        long end = sNextSequence.get();
+        long start = Math.max(0, end - CAPACITY);
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence & (CAPACITY - 1));
+            int base = slot * SLOT_SIZE;
+            if (sSequences.get(slot) != sequence)
+                continue;
+            long timeNs = sSlots.get(base);
+            long header = sSlots.get(base + 1);
+            long a = sSlots.get(base + 2);
+            long b = sSlots.get(base + 3);
+            if (sSequences.get(slot) != sequence)
+                continue;
+            int event = (int) (header >>> 32);
+            int track = (int) header;
+            out.append(Long.toString(sequence)).append(' ')
+                    .append(Long.toString(timeNs)).append(' ')
+                    .append(track < TRACK_NAMES.length ? TRACK_NAMES[track] : Integer.toString(track)).append(' ')
+                    .append(event < EVENT_NAMES.length ? EVENT_NAMES[event] : Integer.toString(event)).append(' ')
+                    .append(Long.toString(a)).append(' ')
+                    .append(Long.toString(b)).append('\n');
+        }
+    }
+
+    public static void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            sSequences.set(i, -1);
+        }
+        sNextSequence.set(0);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.media.MediaFormat;
+
+/**
+ * Track description shared by every {@link MediaBackend}.
+ * <p>
+ * Holds the values the decoders need as plain fields so that backends which don't
+ * run on a device never have to touch {@link MediaFormat}.
+ */
+public class TrackFormat {
+    private final String mMime;
+    private int mWidth;
+    private int mHeight;
+    private int mRotation;
+    private int mSampleRate;
+    private int mChannelCount;
+    private int mMaxInputSize;
+    private long mDurationUs = -1;
+    private int mColorFormat;
+    private int mStride;
+    private int mSliceHeight;
+    private int mCropLeft;
+    private int mCropTop;
+    private int mCropRight = -1;
+    private int mCropBottom = -1;
+
+    private MediaFormat mPlatformFormat;
+
+    public TrackFormat(String mime) {
+        if (mime == null) throw new NullPointerException("mime is null");
+        mMime = mime;
+    }
+
+    public static TrackFormat fromMediaFormat(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        TrackFormat trackFormat = new TrackFormat(mime != null ? mime : "");
+        trackFormat.mPlatformFormat = format;
+        if (format.containsKey(MediaFormat.KEY_WIDTH))
+            trackFormat.mWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+        if (format.containsKey(MediaFormat.KEY_HEIGHT))
+            trackFormat.mHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+        if (format.containsKey(MediaFormat.KEY_ROTATION))
+            trackFormat.mRotation = format.getInteger(MediaFormat.KEY_ROTATION);
+        if (format.containsKey(MediaFormat.KEY_SAMPLE_RATE))
+            trackFormat.mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        if (format.containsKey(MediaFormat.KEY_CHANNEL_COUNT))
+            trackFormat.mChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE))
+            trackFormat.mMaxInputSize = format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+        if (format.containsKey(MediaFormat.KEY_DURATION))
+            trackFormat.mDurationUs = format.getLong(MediaFormat.KEY_DURATION);
+        if (format.containsKey(MediaFormat.KEY_COLOR_FORMAT))
+            trackFormat.mColorFormat = format.getInteger(MediaFormat.KEY_COLOR_FORMAT);
+        // output formats of ByteBuffer decoders; the keys are public from API 23 but set earlier
+        if (format.containsKey("stride"))
+            trackFormat.mStride = format.getInteger("stride");
+        if (format.containsKey("slice-height"))
+            trackFormat.mSliceHeight = format.getInteger("slice-height");
+        // the visible part of a padded frame; public keys from API 33
+        if (format.containsKey("crop-right") && format.containsKey("crop-bottom")) {
+            trackFormat.mCropLeft = format.containsKey("crop-left") ? format.getInteger("crop-left") : 0;
+            trackFormat.mCropTop = format.containsKey("crop-top") ? format.getInteger("crop-top") : 0;
+            trackFormat.mCropRight = format.getInteger("crop-right");
+            trackFormat.mCropBottom = format.getInteger("crop-bottom");
+        }
+        return trackFormat;
+    }
+
+    /**
+     * @return the {@link MediaFormat} this track was read from, or null when the track
+     * was produced by a backend that doesn't use the platform classes.
+     */
+    public MediaFormat getPlatformFormat() {
+        return mPlatformFormat;
+    }
+
+    public String getMime() {
+        return mMime;
+    }
+
+    public boolean isVideo() {
+        return mMime.startsWith("video/");
+    }
+
+    public boolean isAudio() {
+        return mMime.startsWith("audio/");
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public void setWidth(int width) {
+        this.mWidth = width;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public void setHeight(int height) {
+        this.mHeight = height;
+    }
+
+    public int getRotation() {
+        return mRotation;
+    }
+
+    public void setRotation(int rotation) {
+        this.mRotation = rotation;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public void setSampleRate(int sampleRate) {
+        this.mSampleRate = sampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public void setChannelCount(int channelCount) {
+        this.mChannelCount = channelCount;
+    }
+
+    public int getMaxInputSize() {
+        return mMaxInputSize;
+    }
+
+    public void setMaxInputSize(int maxInputSize) {
+        this.mMaxInputSize = maxInputSize;
+    }
+
+    /**
+     * @return track duration in microseconds, or -1 when the container doesn't report it
+     */
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    public void setDurationUs(long durationUs) {
+        this.mDurationUs = durationUs;
+    }
+
+    /**
+     * @return color format of decoded ByteBuffer frames, a MediaCodecInfo.CodecCapabilities
+     * constant, or 0 when not reported
+     */
+    public int getColorFormat() {
+        return mColorFormat;
+    }
+
+    public void setColorFormat(int colorFormat) {
+        this.mColorFormat = colorFormat;
+    }
+
+    /**
+     * @return bytes between rows of the luma plane of a decoded frame, or 0 when it is the
+     * width
+     */
+    public int getStride() {
+        return mStride;
+    }
+
+    public void setStride(int stride) {
+        this.mStride = stride;
+    }
+
+    /**
+     * @return rows of the luma plane before the chroma plane starts, or 0 when it is the
+     * height
+     */
+    public int getSliceHeight() {
+        return mSliceHeight;
+    }
+
+    public void setSliceHeight(int sliceHeight) {
+        this.mSliceHeight = sliceHeight;
+    }
+
+    /**
+     * @return first visible column of a decoded frame
+     */
+    public int getCropLeft() {
+        return mCropLeft;
+    }
+
+    /**
+     * @return first visible row of a decoded frame
+     */
+    public int getCropTop() {
+        return mCropTop;
+    }
+
+    /**
+     * @return last visible column of a decoded frame, or -1 when the whole width is visible
+     */
+    public int getCropRight() {
+        return mCropRight;
+    }
+
+    /**
+     * @return last visible row of a decoded frame, or -1 when the whole height is visible
+     */
+    public int getCropBottom() {
+        return mCropBottom;
+    }
+
+    /**
+     * Sets the visible part of a decoded frame; right and bottom are inclusive, as in the
+     * MediaFormat crop keys.
+     */
+    public void setCrop(int left, int top, int right, int bottom) {
+        this.mCropLeft = left;
+        this.mCropTop = top;
+        this.mCropRight = right;
+        this.mCropBottom = bottom;
+    }
+
+    @Override
+    public String toString() {
+        return "TrackFormat{" + mMime
+                + (isVideo() ? ", " + mWidth + "x" + mHeight + ", rotation=" + mRotation : "")
+                + (isAudio() ? ", " + mSampleRate + "Hz, channels=" + mChannelCount : "")
+                + ", durationUs=" + mDurationUs + "}";
+    }
+}
@@ -21,11 +21,9 @@ package com.tanosys.videolibrary;
 
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
-import android.media.MediaFormat;
 import android.util.Log;
 import android.view.Surface;
 
-import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 
@@ -37,6 +35,12 @@ public class VideoDecoder extends MediaDecoder {
     protected static final int SEEK_DIRECTION_FORWARD = 1;
     protected static final int SEEK_DIRECTION_BACKWARD = 2;
     protected static final long CLOSE_ENOUGH_TIME = 100000;
+    // frames later than this are decoded but not shown
+    protected static final long LATE_FRAME_THRESHOLD_US = 20000;
+    // but one is shown at least this often, however late
+    protected static final long MAX_RENDER_INTERVAL_US = 100000;
+    // late frames in a row whose lateness grew before decoding skips to the next sync sample
+    protected static final int GROWING_LATE_FRAMES_BEFORE_SKIP = 3;
     private static final String TAG = "VideoDecoder";
 
     private int mVideoWidth;
@@ -47,9 +51,63 @@ public class VideoDecoder extends MediaDecoder {
     }
 
     private int mSeekDirection = 0;
-    private long mLastSyncFrameTime = -1;
-    private long mMaximumDifference = 0;
-    private boolean mShouldRetreatToIFrame = false;
+    // presentation time of the last frame the codec produced while seeking, -1 after a reseek
+    private long mLastSeekOutputTime = -1;
+    private KeyframeIndex mKeyframes;
+
+    private volatile long mRenderedFrames = 0;
+    private volatile long mDroppedFrames = 0;
+    private volatile long mSyncSkips = 0;
+    private long mLastRenderSystemTimeUs = 0;
+    // when playback last started, until the first frame after that is shown
+    private long mStartSystemTimeUs = 0;
+    private volatile long mResumeLatencyUs = -1;
+    private volatile long mFirstRenderSystemTimeUs = -1;
+    private long mLastLatenessUs = 0;
+    private int mGrowingLateFrames = 0;
+    // true while playing at a trick play rate: only sync samples are decoded
+    private boolean mTrickPlay = false;
+    // true while playing backwards: the codec decodes into ByteBuffers for mReversePlayback
+    private boolean mReverse = false;
+    // whether the codec was created for playing backwards, which never uses callbacks
+    private boolean mCodecForReverse = false;
+    private ReversePlayback mReversePlayback;
+
+    /**
+     * @return frames shown during playback
+     */
+    public long getRenderedFrames() {
+        return mRenderedFrames;
+    }
+
+    /**
+     * @return frames decoded during playback but not shown because they were late
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return times decoding fell so far behind that it skipped ahead to a sync sample
+     */
+    public long getSyncSkips() {
+        return mSyncSkips;
+    }
+
+    /**
+     * @return time from the last start of playback to its first frame shown, or -1 before
+     * that frame
+     */
+    public long getResumeLatencyUs() {
+        return mResumeLatencyUs;
+    }
+
+    /**
+     * @return System.nanoTime() / 1000 when the first frame was shown, or -1 before that
+     */
+    long getFirstRenderSystemTimeUs() {
+        return mFirstRenderSystemTimeUs;
+    }
 
     public int getVideoWidth() {
         return mVideoWidth;
@@ -78,64 +136,51 @@ public class VideoDecoder extends MediaDecoder {
 
     private WeakReference<Surface> mOutputSurface;
 
-    public VideoDecoder(MoviePlayer player, File sourceFile) throws IOException {
-        super(player, sourceFile);
+    KeyframeIndex getKeyframeIndex() {
+        return mKeyframes;
+    }
+
+    public VideoDecoder(MoviePlayer player, DataSource source) throws IOException {
+        super(player, source);
         this.TRACK_TYPE = "video";
+        this.mTraceTrack = Tracer.TRACK_VIDEO;
     }
 
     @Override
     protected void prepare() throws IOException {
-        if (mState < STATE_PREPARED) {
-            if (mOutputSurface.get() == null) {
+        if (getState() < STATE_PREPARED) {
+            if ((mOutputSurface == null || mOutputSurface.get() == null) && mWeakPlayer.get().getBackend().rendersToSurface()) {
                 IOException e = new IOException("Surface can't be null");
                 throw e;
             }
 
             Log.d(TAG, "Video size is " + mVideoWidth + "x" + mVideoHeight);
-            if (mState == STATE_UNINITIALIZED) {
+            if (getState() == STATE_UNINITIALIZED) {
                 mTrackIndex = selectTrack();
                 if (mTrackIndex < 0) {
                     throw new RuntimeException("No video track found in " + mTrackIndex);
                 }
                 mExtractor.selectTrack(mTrackIndex);
 
+                mKeyframes = mMediaIndex != null ? mMediaIndex.getKeyframeIndex()
+                        : mWeakPlayer.get().getDemuxer().buildKeyframeIndex(mTrackIndex);
+                Log.d(TAG, mKeyframes.size() + " sync samples");
                 mExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-                long now = mExtractor.getSampleTime();
-                long next = now + 1;
-                while (mMaximumDifference == 0) {
-                    mExtractor.seekTo(next, MediaExtractor.SEEK_TO_NEXT_SYNC);
-                    mMaximumDifference = mExtractor.getSampleTime() - now;
-                    Log.d(TAG, "iframe interval is: " + mMaximumDifference);
-                    next += 100;
-                    if (next > 10000) {
-                        mMaximumDifference = 1000000;
-                        break;
-                    }
-                }
-                mExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-            }
-            mState = STATE_INITIALIZED;
-            MediaFormat format = mExtractor.getTrackFormat(mTrackIndex);
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            mMediaCodec = MediaCodec.createDecoderByType(mime);
-//            mMediaCodec.setCallback(mCallback);
-            int rotation;
-            try {
-                rotation = format.getInteger(MediaFormat.KEY_ROTATION);
-            } catch (NullPointerException e) {
-                rotation = 0;
             }
+            setState(STATE_INITIALIZED);
+            TrackFormat format = mExtractor.getTrackFormat(mTrackIndex);
+            mMediaCodec = createCodec(format);
+            mCodecForReverse = mWeakPlayer.get().isReverse();
+            int rotation = format.getRotation();
 
-            mVideoWidth = format.getInteger(MediaFormat.KEY_WIDTH);
-            mVideoHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
             if ((rotation % 180) == 0) {
-                mVideoWidth = format.getInteger(MediaFormat.KEY_WIDTH);
-                mVideoHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+                mVideoWidth = format.getWidth();
+                mVideoHeight = format.getHeight();
             } else {
-                mVideoWidth = format.getInteger(MediaFormat.KEY_HEIGHT);
-                mVideoHeight = format.getInteger(MediaFormat.KEY_WIDTH);
+                mVideoWidth = format.getHeight();
+                mVideoHeight = format.getWidth();
             }
-            mMediaCodec.configure(format, mOutputSurface.get(), null, 0);
+            mMediaCodec.configure(format, getCodecSurface());
             setState(STATE_PREPARED);
         }
         super.prepare();
@@ -144,35 +189,36 @@ public class VideoDecoder extends MediaDecoder {
     @Override
     protected void output(int outputBufIndex, MediaCodec.BufferInfo bufferInfo) {
         if (mMediaCodec == null) return;
-//        Log.d(TAG, "Presentation: " + mBufferInfo.presentationTimeUs);
-//        Log.d(TAG, "Now: " + System.nanoTime());
-        if (mState != STATE_SEEKING)
-            mStartTime = adjustPresentationTime(mStartTime, (long) ((double) bufferInfo.presentationTimeUs / mWeakPlayer.get().getPlayRate()));
-        if (mState != STATE_SEEKING) {
+        if (getState() != STATE_SEEKING) {
+            waitForClock(bufferInfo.presentationTimeUs);
+            PlaybackClock clock = mWeakPlayer.get().getClock();
+            if (mWeakPlayer.get().isDroppingLateFrames() && dropIfLate(outputBufIndex, bufferInfo.presentationTimeUs, clock))
+                return;
+            clock.onVideoRendered(bufferInfo.presentationTimeUs);
+            if (Tracer.ENABLED)
+                Tracer.trace(Tracer.VIDEO_RENDERED, mTraceTrack, bufferInfo.presentationTimeUs, clock.getAudioVideoOffsetUs());
             mMediaCodec.releaseOutputBuffer(outputBufIndex, true);
+            onFrameRendered();
         } else {
             boolean isSyncFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
             long presentationTimeDiff = mSeekTargetTime - bufferInfo.presentationTimeUs;
-            Log.d(TAG, "time diff: " + presentationTimeDiff);
+            if (Tracer.ENABLED)
+                Tracer.trace(Tracer.SEEK_FRAME, mTraceTrack, bufferInfo.presentationTimeUs, presentationTimeDiff);
             boolean isCloseEnoughToTargetTime = (Math.abs(presentationTimeDiff) < CLOSE_ENOUGH_TIME);
+            mLastSeekOutputTime = bufferInfo.presentationTimeUs;
             if (isSyncFrame) {
                 synchronized (mDecoderSync) {
-                    mLastSyncFrameTime = bufferInfo.presentationTimeUs;
                     mDecoderSync.notify();
                 }
             }
             if (isCloseEnoughToTargetTime) {
                 mMediaCodec.releaseOutputBuffer(outputBufIndex, true);
-                if (mSeekDirection == SEEK_DIRECTION_BACKWARD)
-                    Log.d(TAG, "backward render at: " + bufferInfo.presentationTimeUs + " target at: " + mSeekTargetTime);
+                mWeakPlayer.get().onSeekFrameRendered(bufferInfo.presentationTimeUs);
+                if (Tracer.ENABLED)
+                    Tracer.trace(Tracer.SEEK_RENDERED, mTraceTrack, bufferInfo.presentationTimeUs, mSeekTargetTime);
                 synchronized (mDecoderSync) {
-                    if (isSyncFrame) {
-                        mLastSyncFrameTime = bufferInfo.presentationTimeUs;
-                    }
-                    if (isCloseEnoughToTargetTime) {
-                        Log.d(TAG, "close enough to direction " + mSeekDirection);
-                        mIsSeeking = false;
-                    }
+                    // a target that came in meanwhile keeps the seek going
+                    mIsSeeking = mPendingSeekTime.get() != NO_PENDING_SEEK;
                     mDecoderSync.notify();
                 }
             } else {
@@ -181,76 +227,361 @@ public class VideoDecoder extends MediaDecoder {
         }
     }
 
+    /**
+     * Releases the frame without rendering it if it is already too late to show, and skips
+     * decoding ahead to the next sync sample when lateness keeps growing.
+     *
+     * @return true if the frame was dropped
+     */
+    private boolean dropIfLate(int outputBufIndex, long presentationTimeUs, PlaybackClock clock) {
+        long positionUs = clock.getPositionUs();
+        long latenessUs = (long) ((positionUs - presentationTimeUs) / clock.getRate());
+        if (latenessUs <= LATE_FRAME_THRESHOLD_US) {
+            mGrowingLateFrames = 0;
+            mLastLatenessUs = 0;
+            return false;
+        }
+        mGrowingLateFrames = latenessUs > mLastLatenessUs ? mGrowingLateFrames + 1 : 0;
+        mLastLatenessUs = latenessUs;
+        if (mGrowingLateFrames >= GROWING_LATE_FRAMES_BEFORE_SKIP
+                && skipToSyncSample(outputBufIndex, positionUs - mLoopOffsetUs)) {
+            if (Tracer.ENABLED) Tracer.trace(Tracer.FRAME_DROPPED, mTraceTrack, presentationTimeUs, latenessUs);
+            mDroppedFrames++;
+            return true;
+        }
+        // keep the picture moving even when every frame is late
+        if (System.nanoTime() / 1000 - mLastRenderSystemTimeUs >= MAX_RENDER_INTERVAL_US)
+            return false;
+        if (Tracer.ENABLED) Tracer.trace(Tracer.FRAME_DROPPED, mTraceTrack, presentationTimeUs, latenessUs);
+        mMediaCodec.releaseOutputBuffer(outputBufIndex, false);
+        mDroppedFrames++;
+        return true;
+    }
+
+    /**
+     * Drops the frame and everything queued to the codec and continues from the first sync
+     * sample at or after positionUs, if that is ahead of where decoding is.
+     *
+     * @return false, with the frame kept, if there is no such sync sample
+     */
+    private boolean skipToSyncSample(int outputBufIndex, long positionUs) {
+        long nextSampleUs = mExtractor.getSampleTime();
+        long keyFrameUs = mKeyframes.ceiling(positionUs);
+        if (nextSampleUs < 0 || keyFrameUs <= nextSampleUs)
+            return false;
+        if (Tracer.ENABLED) Tracer.trace(Tracer.SKIPPED_TO_SYNC, mTraceTrack, nextSampleUs, keyFrameUs);
+        mMediaCodec.releaseOutputBuffer(outputBufIndex, false);
+        flushCodec();
+        mExtractor.seekTo(keyFrameUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        mSyncSkips++;
+        mGrowingLateFrames = 0;
+        mLastLatenessUs = 0;
+        return true;
+    }
+
+    /**
+     * In trick play, jumps to the next sync sample the clock hasn't passed yet instead of
+     * stepping to the next sample.
+     */
+    @Override
+    protected boolean advanceExtractor(long presentationTimeUs) {
+        if (!mTrickPlay || getState() != STATE_PLAYING)
+            return super.advanceExtractor(presentationTimeUs);
+        long fromUs = Math.max(presentationTimeUs + 1, mWeakPlayer.get().getClock().getPositionUs());
+        long keyFrameUs = mKeyframes.ceiling(fromUs);
+        if (keyFrameUs >= 0) {
+            mExtractor.seekTo(keyFrameUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            return true;
+        }
+        // no sync sample left: run the extractor off the end so the next read signals EOS
+        while (mExtractor.getSampleTime() >= 0 && mExtractor.advance()) {
+        }
+        return true;
+    }
+
+    @Override
+    void startPlaying() throws IOException, IllegalStateException {
+        mStartSystemTimeUs = System.nanoTime() / 1000;
+        mResumeLatencyUs = -1;
+        // show the first frame whatever its timing
+        mLastRenderSystemTimeUs = 0;
+        mGrowingLateFrames = 0;
+        mLastLatenessUs = 0;
+        MoviePlayer player = mWeakPlayer.get();
+        mTrickPlay = player.isTrickPlay();
+        boolean reverse = player.isReverse();
+        if (mMediaCodec != null && mCodecForReverse != reverse)
+            releaseCodec();
+        mReverse = reverse;
+        if (mReverse) {
+            Surface surface = player.getBackend().rendersToSurface() ? getSurface() : null;
+            mReversePlayback = new ReversePlayback(this, player.getBackend(), mSource, mTrackIndex,
+                    mKeyframes, surface, player.getReverseBufferSize());
+        }
+        boolean started = false;
+        try {
+            super.startPlaying();
+            started = true;
+        } finally {
+            if (!started && mReversePlayback != null) {
+                mReversePlayback.release();
+                mReversePlayback = null;
+            }
+        }
+    }
+
+    @Override
+    protected void step() {
+        if (mReversePlayback != null) {
+            stepReverse();
+        } else {
+            super.step();
+        }
+    }
+
+    /**
+     * Shows the next frame back, once the clock gets to it, or drops it if it is late.
+     */
+    private void stepReverse() {
+        PlaybackClock clock = mWeakPlayer.get().getClock();
+        long presentationTimeUs;
+        try {
+            if (!mReversePlayback.isStarted())
+                mReversePlayback.start(mMediaCodec, clock.getPositionUs());
+            presentationTimeUs = mReversePlayback.awaitFrame();
+        } catch (RuntimeException e) {
+            // includes a surface EGL can't draw on and frames in a layout that can't be drawn
+            fail(e);
+            return;
+        }
+        if (presentationTimeUs == ReversePlayback.END_OF_STREAM) {
+            mOutputDone = true;
+            return;
+        }
+        if (presentationTimeUs == ReversePlayback.NO_FRAME)
+            return;
+        waitForClock(presentationTimeUs);
+        if (getState() != STATE_PLAYING)
+            return;
+        if (mWeakPlayer.get().isDroppingLateFrames() && skipIfLateReverse(presentationTimeUs, clock))
+            return;
+        clock.onVideoRendered(presentationTimeUs);
+        if (Tracer.ENABLED)
+            Tracer.trace(Tracer.VIDEO_RENDERED, mTraceTrack, presentationTimeUs, clock.getAudioVideoOffsetUs());
+        mReversePlayback.renderFrame();
+        onFrameRendered();
+    }
+
+    private void onFrameRendered() {
+        mRenderedFrames++;
+        mLastRenderSystemTimeUs = System.nanoTime() / 1000;
+        if (mFirstRenderSystemTimeUs < 0)
+            mFirstRenderSystemTimeUs = mLastRenderSystemTimeUs;
+        if (mStartSystemTimeUs != 0) {
+            mResumeLatencyUs = mLastRenderSystemTimeUs - mStartSystemTimeUs;
+            mStartSystemTimeUs = 0;
+        }
+    }
+
+    /**
+     * The reverse counterpart of {@link #dropIfLate}: skips the frame if it is too late to
+     * show, and skips back to a sync sample when the clock has already passed every frame
+     * decoded so far.
+     *
+     * @return true if the frame was skipped
+     */
+    private boolean skipIfLateReverse(long presentationTimeUs, PlaybackClock clock) {
+        long latenessUs = (long) (-untilClockReaches(clock, presentationTimeUs) / Math.abs(clock.getRate()));
+        if (latenessUs <= LATE_FRAME_THRESHOLD_US)
+            return false;
+        // keep the picture moving even when every frame is late
+        if (System.nanoTime() / 1000 - mLastRenderSystemTimeUs >= MAX_RENDER_INTERVAL_US)
+            return false;
+        long positionUs = clock.getPositionUs();
+        if (positionUs < mReversePlayback.getSegmentStartUs()) {
+            if (Tracer.ENABLED) Tracer.trace(Tracer.SKIPPED_TO_SYNC, mTraceTrack, presentationTimeUs, positionUs);
+            mReversePlayback.skipTo(positionUs);
+            mSyncSkips++;
+        } else {
+            if (Tracer.ENABLED) Tracer.trace(Tracer.FRAME_DROPPED, mTraceTrack, presentationTimeUs, latenessUs);
+            mReversePlayback.skipFrame();
+        }
+        mDroppedFrames++;
+        return true;
+    }
+
+    /**
+     * Stops reverse playback and leaves the extractor at the last frame it reached, so
+     * pausing and resuming carry on from there.
+     */
+    @Override
+    protected void onDecodeLoopEnd() {
+        if (mReversePlayback == null)
+            return;
+        mReversePlayback.release();
+        long lastShownUs = mReversePlayback.getLastShownUs();
+        // released under us when the player is
+        if (lastShownUs >= 0 && mExtractor != null)
+            mExtractor.seekTo(lastShownUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        mReversePlayback = null;
+    }
+
+    // playing backwards, ReversePlayback reads the file with demuxers of its own
+    @Override
+    protected boolean readsDemuxer() {
+        return !mReverse;
+    }
+
+    // playing backwards the codec is driven by ReversePlayback, which stops with the loop
+    @Override
+    protected boolean keepsCodecWarm() {
+        return super.keepsCodecWarm() && !mReverse;
+    }
+
     @Override
     protected int getFrameAvailable() {
         return MSG_FRAME_AVAILABLE;
     }
 
     protected void configure() {
-        MediaFormat format = mExtractor.getTrackFormat(mTrackIndex);
-        mMediaCodec.configure(format, mOutputSurface.get(), null, 0);
+        TrackFormat format = mExtractor.getTrackFormat(mTrackIndex);
+        mMediaCodec.configure(format, getCodecSurface());
+    }
+
+    private Surface getSurface() {
+        return mOutputSurface != null ? mOutputSurface.get() : null;
+    }
+
+    // playing backwards, frames are drawn from ByteBuffers instead
+    private Surface getCodecSurface() {
+        return mReverse ? null : getSurface();
     }
 
     @Override
     public void startSeeking() throws IOException {
         super.startSeeking();
-        Log.d(TAG, "start seeking state is: " + mState);
-        if (mState == STATE_SEEKING)
+        Log.d(TAG, "start seeking state is: " + getState());
+        if (getState() == STATE_SEEKING)
             return;
+        mReverse = false;
         prepare();
-        setState(STATE_SEEKING);
+        if (!setState(STATE_SEEKING))
+            return;
         mInputDone = mOutputDone = false;
         mSeekDirection = SEEK_DIRECTION_FORWARD;
-        mMediaCodec.start();
+        mPendingSeekTime.set(NO_PENDING_SEEK);
+        mLastSeekOutputTime = -1;
+        startCodec();
         mSeekTargetTime = mExtractor.getSampleTime();
         mExtractor.seekTo(mSeekTargetTime, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        setReading(mExtractor, true);
         mIsSeeking = true;
-        new Thread(mSeekRunnable, getClass().getSimpleName()).start();
+        startDecodingThread(mSeekRunnable);
     }
 
 
+    /**
+     * Requests a frame while seeking. Never blocks and never drops a request: the seeking
+     * thread picks up the latest target as soon as its current decode step is done, and
+     * targets overwritten before that are skipped.
+     */
     public void seekTo(long presentationTime) {
+        if (Tracer.ENABLED)
+            Tracer.trace(Tracer.SEEK_REQUESTED, mTraceTrack, presentationTime, presentationTime - mSeekTargetTime);
+        mPendingSeekTime.set(presentationTime);
         synchronized (mDecoderSync) {
-            if (mIsSeeking)
-                return;
-            Log.d(TAG, "seek diff:" + (presentationTime - mSeekTargetTime));
-            mInputDone = mOutputDone = false;
-            mSeekDirection = presentationTime >= mSeekTargetTime ? SEEK_DIRECTION_FORWARD : SEEK_DIRECTION_BACKWARD;
-            if ((mSeekDirection == SEEK_DIRECTION_BACKWARD) || mSeekDirection == SEEK_DIRECTION_FORWARD && Math.abs(presentationTime - mLastSyncFrameTime) > mMaximumDifference) {
-                mExtractor.seekTo(presentationTime, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
-                mLastSyncFrameTime = mExtractor.getSampleTime();
-            }
-            mSeekTargetTime = presentationTime;
             mIsSeeking = true;
             mDecoderSync.notifyAll();
         }
+        mEvents.wake();
+    }
+
+    /**
+     * Switches to the latest requested target, if there is one. Runs on the seeking thread,
+     * so the extractor and codec are only ever touched from there.
+     */
+    private void applyPendingSeek() {
+        long presentationTime = mPendingSeekTime.getAndSet(NO_PENDING_SEEK);
+        if (presentationTime == NO_PENDING_SEEK)
+            return;
+        mSeekDirection = presentationTime >= mSeekTargetTime ? SEEK_DIRECTION_FORWARD : SEEK_DIRECTION_BACKWARD;
+        // Keep decoding when the target is still ahead in the GOP being decoded. If it has
+        // been passed, or a later sync sample gets there sooner, whatever the codec holds is
+        // wasted work: drop it and restart at the target's sync sample.
+        long keyFrameUs = mKeyframes.floor(presentationTime);
+        long nextSampleUs = mExtractor.getSampleTime();
+        if (presentationTime < mLastSeekOutputTime || nextSampleUs < 0 || keyFrameUs > nextSampleUs) {
+            flushCodec();
+            mExtractor.seekTo(keyFrameUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            mLastSeekOutputTime = -1;
+        }
+        mInputDone = mOutputDone = false;
+        synchronized (mDecoderSync) {
+            mSeekTargetTime = presentationTime;
+            mIsSeeking = true;
+        }
     }
 
     public void endSeeking() {
+        transition(STATE_SEEKING, STATE_REQUEST_STOP);
+    }
+
+    /**
+     * Parks the seeking thread until a new target arrives or seeking ends, so holding the
+     * seek bar still costs no CPU.
+     *
+     * @return false if the thread was interrupted
+     */
+    private boolean awaitSeekTarget() {
         synchronized (mDecoderSync) {
-            mState = STATE_REQUEST_STOP;
+            mDecoderSync.notifyAll();
+            while (!mIsSeeking && getState() == STATE_SEEKING) {
+                try {
+                    mDecoderSync.wait();
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "wait interrupted");
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
         }
+        return true;
+    }
+
+    @Override
+    protected boolean canQueueInput() {
+        return super.canQueueInput() && (getState() != STATE_SEEKING || mIsSeeking);
     }
 
     private Runnable mSeekRunnable = new Runnable() {
         @Override
         public void run() {
-            while (mState == STATE_SEEKING) {
+            MoviePlayer player = mWeakPlayer.get();
+            while (getState() == STATE_SEEKING && !mCodecFailed && !Thread.currentThread().isInterrupted()) {
+                applyPendingSeek();
                 if (!mIsSeeking) {
-                    synchronized (mDecoderSync) {
-                        mDecoderSync.notify();
-                    }
+                    if (!awaitSeekTarget())
+                        break;
                     continue;
                 }
-                handleInput();
-                handleOutput();
+                step();
             }
-            mMediaCodec.stop();
-            setState(STATE_END_SEEK);
-            synchronized (mWeakPlayer.get().getSync()) {
-                mWeakPlayer.get().onStopped();
-                mWeakPlayer.get().getSync().notify();
+            setReading(mExtractor, false);
+            synchronized (mDecoderSync) {
+                if (Thread.currentThread().isInterrupted() || mCodecFailed)
+                    releaseCodec();
+                else
+                    mMediaCodec.stop();
+                mDecoding = false;
+                mDecoderSync.notifyAll();
             }
+            if (Thread.currentThread().isInterrupted())
+                return;
+            // a seek asked for since endSeeking() leaves the state at STATE_REQUEST_SEEK
+            if (!mCodecFailed)
+                transition(STATE_REQUEST_STOP, STATE_END_SEEK);
+            if (player != null)
+                player.onStopped();
         }
     };
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.MediaCodecInfo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts decoded YUV 4:2:0 frames to ARGB pixels.
+ * <p>
+ * A frame is read through a {@link Layout} saying where each plane starts and how its
+ * rows and pixels are spaced. On API 21 the layout comes from the planes of the codec's
+ * output {@link Image}, which describes any YUV 4:2:0 output the codec has. Otherwise it is
+ * worked out from the output format, which is only possible for the planar and
+ * semi-planar color formats; vendor formats such as tiled ones can't be described, and
+ * their frames aren't converted.
+ */
+final class YuvConverter {
+    private static final int Y = 0;
+    private static final int U = 1;
+    private static final int V = 2;
+
+    private YuvConverter() {
+    }
+
+    /**
+     * Where the Y, U and V planes of a frame are in its bytes. Offsets point at the first
+     * visible pixel, so the frame's crop is already applied.
+     */
+    static final class Layout {
+        private int mWidth;
+        private int mHeight;
+        private final int[] mOffsets = new int[3];
+        private final int[] mRowStrides = new int[3];
+        private final int[] mPixelStrides = new int[3];
+
+        /**
+         * @return visible width in pixels
+         */
+        int getWidth() {
+            return mWidth;
+        }
+
+        /**
+         * @return visible height in pixels
+         */
+        int getHeight() {
+            return mHeight;
+        }
+
+        private void setPlane(int plane, int offset, int rowStride, int pixelStride) {
+            mOffsets[plane] = offset;
+            mRowStrides[plane] = rowStride;
+            mPixelStrides[plane] = pixelStride;
+        }
+
+        private void crop(int left, int top, int width, int height) {
+            mWidth = width;
+            mHeight = height;
+            mOffsets[Y] += top * mRowStrides[Y] + left * mPixelStrides[Y];
+            for (int plane = U; plane <= V; plane++) {
+                mOffsets[plane] += top / 2 * mRowStrides[plane] + left / 2 * mPixelStrides[plane];
+            }
+        }
+    }
+
+    /**
+     * @return bytes {@link #copy} needs for the planes of image
+     */
+    static int size(Image image) {
+        int size = 0;
+        for (Image.Plane plane : image.getPlanes()) {
+            size += plane.getBuffer().remaining();
+        }
+        return size;
+    }
+
+    /**
+     * Copies the planes of image one after the other into frame, from its start, and
+     * describes them in layout.
+     *
+     * @return false if image isn't YUV 4:2:0
+     */
+    static boolean copy(Image image, ByteBuffer frame, Layout layout) {
+        if (image.getFormat() != ImageFormat.YUV_420_888)
+            return false;
+        Image.Plane[] planes = image.getPlanes();
+        frame.clear();
+        for (int plane = Y; plane <= V; plane++) {
+            layout.setPlane(plane, frame.position(), planes[plane].getRowStride(), planes[plane].getPixelStride());
+            frame.put(planes[plane].getBuffer());
+        }
+        Rect crop = image.getCropRect();
+        layout.crop(crop.left, crop.top, crop.width(), crop.height());
+        return true;
+    }
+
+    /**
+     * Describes a ByteBuffer frame from the decoder's output format.
+     *
+     * @return false if the color format's layout isn't known
+     */
+    static boolean describe(TrackFormat format, Layout layout) {
+        boolean semiPlanar;
+        switch (format.getColorFormat()) {
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar:
+                semiPlanar = false;
+                break;
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar:
+                semiPlanar = true;
+                break;
+            default:
+                // flexible output only has a known layout as an Image
+                return false;
+        }
+        int width = format.getWidth();
+        int height = format.getHeight();
+        int stride = format.getStride() > 0 ? format.getStride() : width;
+        int sliceHeight = format.getSliceHeight() > 0 ? format.getSliceHeight() : height;
+        int chromaOffset = stride * sliceHeight;
+        layout.setPlane(Y, 0, stride, 1);
+        if (semiPlanar) {
+            layout.setPlane(U, chromaOffset, stride, 2);
+            layout.setPlane(V, chromaOffset + 1, stride, 2);
+        } else {
+            int chromaStride = (stride + 1) / 2;
+            // planar V follows a quarter-size U plane
+            layout.setPlane(U, chromaOffset, chromaStride, 1);
+            layout.setPlane(V, chromaOffset + chromaStride * ((sliceHeight + 1) / 2), chromaStride, 1);
+        }
+        int right = format.getCropRight() >= 0 ? format.getCropRight() : width - 1;
+        int bottom = format.getCropBottom() >= 0 ? format.getCropBottom() : height - 1;
+        layout.crop(format.getCropLeft(), format.getCropTop(),
+                right - format.getCropLeft() + 1, bottom - format.getCropTop() + 1);
+        return true;
+    }
+
+    /**
+     * Converts every step-th pixel of every step-th row, so the output is
+     * (width / step) x (height / step) pixels of the layout's visible size.
+     */
+    static void toArgb(ByteBuffer frame, Layout layout, int step, int[] argb) {
+        int outWidth = layout.mWidth / step;
+        int outHeight = layout.mHeight / step;
+        int yPixelStride = layout.mPixelStrides[Y];
+        int uPixelStride = layout.mPixelStrides[U];
+        int vPixelStride = layout.mPixelStrides[V];
+        for (int y = 0; y < outHeight; y++) {
+            int sy = y * step;
+            int lumaRow = layout.mOffsets[Y] + sy * layout.mRowStrides[Y];
+            int uRow = layout.mOffsets[U] + (sy / 2) * layout.mRowStrides[U];
+            int vRow = layout.mOffsets[V] + (sy / 2) * layout.mRowStrides[V];
+            int out = y * outWidth;
+            for (int x = 0; x < outWidth; x++) {
+                int sx = x * step;
+                int u = frame.get(uRow + (sx / 2) * uPixelStride) & 0xff;
+                int v = frame.get(vRow + (sx / 2) * vPixelStride) & 0xff;
+                argb[out + x] = toArgb(frame.get(lumaRow + sx * yPixelStride) & 0xff, u, v);
+            }
+        }
+    }
+
+    // BT.601 video range, 8 bit fixed point
+    private static int toArgb(int y, int u, int v) {
+        int c = 298 * (y - 16);
+        int d = u - 128;
+        int e = v - 128;
+        int r = clamp((c + 409 * e + 128) >> 8);
+        int g = clamp((c - 100 * d - 208 * e + 128) >> 8);
+        int b = clamp((c + 516 * d + 128) >> 8);
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+}
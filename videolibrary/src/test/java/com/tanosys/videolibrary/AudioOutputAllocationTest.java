@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link AudioDecoder#output} doesn't allocate per decoded PCM buffer once
+ * warmed up.
+ * <p>
+ * The buffers go through the synthetic audio codec into the sink while the thread's
+ * allocation counter is read around the batch. The two counter reads allocate a few dozen
+ * bytes themselves, which stays below one byte per buffer; anything more means the output
+ * path allocates.
+ */
+public class AudioOutputAllocationTest {
+    private static final int WARMUP_FRAMES = 20000;
+    private static final int FRAMES = 4096;
+    private static final long TIMEOUT_USEC = 1000000;
+    // a play rate at which nothing waits for the clock
+    private static final double UNPACED_RATE = 1000000.0;
+
+    private final com.sun.management.ThreadMXBean mThreads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    private MoviePlayer mPlayer;
+    private AudioDecoder mDecoder;
+    private Codec mCodec;
+    private int mPacketSize;
+    private long mPacketDurationUs;
+    private long mTimeUs = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        SyntheticMediaBackend backend = new SyntheticMediaBackend();
+        backend.setDurationUs(60000000);
+        backend.setAudioDecodeLatencyUs(0);
+        mPacketSize = backend.getAudioPacketSize();
+        mPacketDurationUs = backend.getAudioFramesPerPacket() * 1000000L / backend.getSampleRate();
+        mPlayer = new MoviePlayer(new File("synthetic.mp4"), null, backend);
+        mPlayer.mPlayRate = UNPACED_RATE;
+        mDecoder = mPlayer.getAudioDecoder();
+        mCodec = mDecoder.mMediaCodec;
+        mCodec.start();
+    }
+
+    @After
+    public void tearDown() {
+        mPlayer.release();
+    }
+
+    @Test
+    public void outputDoesNotAllocatePerBuffer() {
+        assertTrue("thread allocation counter not supported", mThreads.isThreadAllocatedMemorySupported());
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+        output(WARMUP_FRAMES);
+        long threadId = Thread.currentThread().getId();
+        long before = mThreads.getThreadAllocatedBytes(threadId);
+        output(FRAMES);
+        long allocatedBytes = mThreads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("audio output allocated " + allocatedBytes + " bytes over " + FRAMES + " buffers",
+                allocatedBytes < FRAMES);
+    }
+
+    private void output(int frames) {
+        for (int i = 0; i < frames; i++) {
+            int input = mCodec.dequeueInputBuffer(TIMEOUT_USEC);
+            mCodec.queueInputBuffer(input, 0, mPacketSize, mTimeUs, 0);
+            mTimeUs += mPacketDurationUs;
+            int output;
+            do {
+                output = mCodec.dequeueOutputBuffer(mInfo, TIMEOUT_USEC);
+            } while (output < 0);
+            mDecoder.output(output, mInfo);
+        }
+    }
+}
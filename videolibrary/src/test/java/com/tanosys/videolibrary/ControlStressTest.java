@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Calls play/pause, seeking and rate changes on one player from three threads at once, as
+ * a UI thread, a seek bar and a remote control might, while the decoders run and loop.
+ * Once the calls stop, the player has to come to rest and play again.
+ */
+public class ControlStressTest {
+    private static final int ROUNDS = 3;
+    private static final long CALLS_MS = 2000;
+    private static final long SETTLE_TIMEOUT_MS = 3000;
+
+    private MoviePlayer mPlayer;
+
+    @Before
+    public void setUp() throws IOException {
+        SyntheticMediaBackend backend = new SyntheticMediaBackend();
+        // short enough for fast play to loop while the calls come in
+        backend.setDurationUs(5000000);
+        mPlayer = new MoviePlayer(new File("synthetic.mp4"), null, backend);
+        mPlayer.setTrickPlayRate(4.0);
+    }
+
+    @After
+    public void tearDown() {
+        mPlayer.stop();
+        mPlayer.release();
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentControlsLeaveThePlayerAtRest() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            mPlayer.play();
+            callConcurrently(new Caller() {
+                @Override
+                void call(Random random) throws InterruptedException {
+                    if (random.nextBoolean())
+                        mPlayer.play();
+                    else
+                        mPlayer.pause();
+                    Thread.sleep(0, random.nextInt(500000));
+                }
+            }, new Caller() {
+                @Override
+                void call(Random random) throws InterruptedException {
+                    mPlayer.startSeek();
+                    for (int i = 0; i < 3; i++) {
+                        mPlayer.seekTo(random.nextFloat());
+                        Thread.sleep(0, random.nextInt(500000));
+                    }
+                    mPlayer.endSeek();
+                }
+            }, new Caller() {
+                private boolean mFast;
+
+                @Override
+                void call(Random random) throws InterruptedException {
+                    mFast = !mFast;
+                    mPlayer.setRate(mFast ? 8.0 : 1.0);
+                    Thread.sleep(0, random.nextInt(500000));
+                }
+            });
+            awaitRest("round " + round);
+            long frames = mPlayer.getRenderedFrames();
+            mPlayer.setRate(1.0);
+            mPlayer.play();
+            awaitFrameAfter(frames, "round " + round);
+            awaitRest("round " + round + " after playing again");
+        }
+    }
+
+    private abstract static class Caller extends Thread {
+        final AtomicReference<Throwable> mFailure = new AtomicReference<>();
+        volatile long mDeadline;
+
+        abstract void call(Random random) throws InterruptedException;
+
+        @Override
+        public void run() {
+            Random random = new Random();
+            try {
+                while (System.currentTimeMillis() < mDeadline) {
+                    call(random);
+                }
+            } catch (Throwable t) {
+                mFailure.set(t);
+            }
+        }
+    }
+
+    private static void callConcurrently(Caller... callers) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CALLS_MS;
+        for (Caller caller : callers) {
+            caller.mDeadline = deadline;
+            caller.start();
+        }
+        for (Caller caller : callers) {
+            caller.join();
+        }
+        for (Caller caller : callers) {
+            if (caller.mFailure.get() != null)
+                throw new AssertionError("a control call failed", caller.mFailure.get());
+        }
+    }
+
+    /**
+     * Ends any seek and pauses until both decoders are paused with their threads gone.
+     */
+    private void awaitRest(String when) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MS;
+        while (!mPlayer.isPaused() || isAlive(mPlayer.getVideoDecoder()) || isAlive(mPlayer.getAudioDecoder())) {
+            if (System.currentTimeMillis() > deadline)
+                fail("player stuck, " + when + ": " + describe());
+            if (mPlayer.isSeeking())
+                mPlayer.endSeek();
+            mPlayer.pause();
+            Thread.sleep(5);
+        }
+    }
+
+    private void awaitFrameAfter(long frames, String when) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MS;
+        while (mPlayer.getRenderedFrames() == frames) {
+            if (System.currentTimeMillis() > deadline)
+                fail("no frame after playing again, " + when + ": " + describe());
+            Thread.sleep(1);
+        }
+    }
+
+    private String describe() {
+        return "video in state " + mPlayer.getVideoDecoder().getState()
+                + ", audio in state " + mPlayer.getAudioDecoder().getState();
+    }
+
+    private static boolean isAlive(MediaDecoder decoder) {
+        Thread thread = decoder.getDecodingThread() != null ? decoder.getDecodingThread().get() : null;
+        return thread != null && thread.isAlive();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2017. taichiro kimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ *
+ */
+
+package com.tanosys.videolibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Switches a playing player from reverse to forward playback and from reverse into a seek.
+ * Each switch hands the video decoder's surface back from reverse playback to a codec, so
+ * frames have to keep coming and neither decoder may fail.
+ * <p>
+ * The synthetic backend doesn't render to a surface, so this covers the decoders' side of
+ * the switch; that the surface is free for the codec again needs a device.
+ */
+public class ReverseSwitchTest {
+    private static final long SETTLE_TIMEOUT_MS = 3000;
+
+    private MoviePlayer mPlayer;
+
+    @Before
+    public void setUp() throws IOException {
+        SyntheticMediaBackend backend = new SyntheticMediaBackend();
+        backend.setDurationUs(10000000);
+        mPlayer = new MoviePlayer(new File("synthetic.mp4"), null, backend);
+    }
+
+    @After
+    public void tearDown() {
+        mPlayer.stop();
+        mPlayer.release();
+    }
+
+    @Test(timeout = 30000)
+    public void playsForwardAndSeeksAfterReverse() throws Exception {
+        mPlayer.play();
+        // far enough in to have something to play back to
+        awaitFrames(30, "playing forwards");
+
+        mPlayer.setRate(-1.0);
+        awaitFrames(5, "playing backwards");
+        mPlayer.setRate(1.0);
+        awaitFrames(5, "playing forwards after reverse");
+
+        mPlayer.setRate(-1.0);
+        awaitFrames(5, "playing backwards again");
+        mPlayer.startSeek();
+        awaitSeeking();
+        mPlayer.seekTo(0.3f);
+        mPlayer.endSeek();
+        awaitFrames(5, "playing on after seeking from reverse");
+
+        assertFalse("video decoder failed", mPlayer.getVideoDecoder().hasFailed());
+        assertFalse("audio decoder failed", mPlayer.getAudioDecoder().hasFailed());
+        awaitRest();
+    }
+
+    private void awaitFrames(int count, String when) throws InterruptedException {
+        long frames = mPlayer.getRenderedFrames() + count;
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MS;
+        while (mPlayer.getRenderedFrames() < frames) {
+            if (System.currentTimeMillis() > deadline)
+                fail("no frames " + when + ": " + describe());
+            Thread.sleep(1);
+        }
+    }
+
+    // a playing player only starts seeking once the decoders have stopped
+    private void awaitSeeking() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MS;
+        while (!mPlayer.isSeeking()) {
+            if (System.currentTimeMillis() > deadline)
+                fail("not seeking: " + describe());
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Pauses until both decoders are paused with their threads gone.
+     */
+    private void awaitRest() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MS;
+        while (!mPlayer.isPaused() || isAlive(mPlayer.getVideoDecoder()) || isAlive(mPlayer.getAudioDecoder())) {
+            if (System.currentTimeMillis() > deadline)
+                fail("player stuck: " + describe());
+            mPlayer.pause();
+            Thread.sleep(5);
+        }
+    }
+
+    private String describe() {
+        return "video in state " + mPlayer.getVideoDecoder().getState()
+                + ", audio in state " + mPlayer.getAudioDecoder().getState();
+    }
+
+    private static boolean isAlive(MediaDecoder decoder) {
+        Thread thread = decoder.getDecodingThread() != null ? decoder.getDecodingThread().get() : null;
+        return thread != null && thread.isAlive();
+    }
+}